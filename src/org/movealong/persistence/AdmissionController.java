@@ -0,0 +1,231 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Limits the number of sessions that {@link HibernateFacade} holds open at once, so that when the database slows
+ * down, work waits briefly and is then refused with an {@link AdmissionRejectedException} rather than piling up
+ * behind the connection pool.  Admission control is enabled by binding {@link #QUEUE_TIMEOUT}, and the limit is
+ * {@link HibernateFacade#MAXIMUM_SESSIONS}.</p>
+ *
+ * <p>Each session is admitted with a {@link SessionPriority}.  Waiting sessions of a higher priority are admitted
+ * first, and sessions of each priority may use only their share of the limit.</p>
+ *
+ * <p>When {@link #LATENCY_TARGET} is bound, the limit adapts to the latency of transactions: it is cut by a tenth,
+ * at most once per latency target, when a transaction takes longer than the target, and otherwise grows by the
+ * reciprocal of the limit for each transaction that completes while the limit is fully used.  It stays between
+ * {@link #MINIMUM_SESSIONS} and the maximum.</p>
+ */
+@Singleton
+public class AdmissionController implements AdmissionControllerMXBean {
+    /**
+     * The binding name of the time, in milliseconds, that a session may wait to be admitted.
+     */
+    public static final String QUEUE_TIMEOUT = "org.movealong.persistence.admission.queueTimeout";
+
+    /**
+     * The binding name of the transaction latency, in milliseconds, above which the adaptive limit is reduced.
+     */
+    public static final String LATENCY_TARGET = "org.movealong.persistence.admission.latencyTarget";
+
+    /**
+     * The binding name of the lowest value to which the adaptive limit may be reduced.
+     */
+    public static final String MINIMUM_SESSIONS = "org.movealong.persistence.admission.minimumSessions";
+
+    private static final double BACKOFF = 0.9;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final int[] waiting = new int[SessionPriority.values().length];
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile boolean enabled;
+    private long queueTimeout;
+    private long latencyTarget;
+    private int minimumSessions = 1;
+    private int maximumSessions = Integer.MAX_VALUE;
+    private double limit = Integer.MAX_VALUE;
+    private int inFlight;
+    private long lastDecrease;
+
+    @Inject(optional = true)
+    public void setQueueTimeout(@Named(QUEUE_TIMEOUT) long queueTimeoutMillis) {
+        this.queueTimeout = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.enabled = true;
+    }
+
+    @Inject(optional = true)
+    public void setLatencyTarget(@Named(LATENCY_TARGET) long latencyTargetMillis) {
+        this.latencyTarget = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+    }
+
+    @Inject(optional = true)
+    public void setMinimumSessions(@Named(MINIMUM_SESSIONS) int minimumSessions) {
+        this.minimumSessions = Math.max(1, minimumSessions);
+    }
+
+    @Inject(optional = true)
+    public void setMaximumSessions(@Named(HibernateFacade.MAXIMUM_SESSIONS) int maximumSessions) {
+        this.maximumSessions = maximumSessions;
+        this.limit = maximumSessions;
+    }
+
+    /**
+     * Waits until a session of the given priority may be opened, and counts it as open.
+     *
+     * @param priority the priority of the session
+     * @return true if the session was admitted and must be released, or false if admission control is disabled
+     * @throws AdmissionRejectedException if the session is not admitted within the queue timeout
+     */
+    boolean admit(SessionPriority priority) {
+        if (!enabled) {
+            return false;
+        }
+        lock.lock();
+        try {
+            long remaining = queueTimeout;
+            waiting[priority.ordinal()]++;
+            try {
+                while (!admissible(priority)) {
+                    if (remaining <= 0) {
+                        rejected.incrementAndGet();
+                        throw new AdmissionRejectedException("No session was available for " + priority +
+                                " priority work within " + TimeUnit.NANOSECONDS.toMillis(queueTimeout) + "ms; " +
+                                inFlight + " sessions are open and the limit is " + getLimit());
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+            } finally {
+                waiting[priority.ordinal()]--;
+            }
+            inFlight++;
+            admitted.incrementAndGet();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            throw new AdmissionRejectedException("Interrupted while waiting for a session");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts an admitted session as closed.
+     */
+    void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adapts the limit to the latency of a completed transaction, when a latency target is bound.
+     *
+     * @param elapsed the time, in nanoseconds, from the beginning of the transaction until its commit or rollback
+     */
+    void transactionCompleted(long elapsed) {
+        if (!enabled || latencyTarget == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (elapsed > latencyTarget) {
+                long now = System.nanoTime();
+                if (now - lastDecrease >= latencyTarget) {
+                    limit = Math.max(minimumSessions, limit * BACKOFF);
+                    lastDecrease = now;
+                }
+            } else if (inFlight >= (int) limit && limit < maximumSessions) {
+                limit = Math.min(maximumSessions, limit + 1 / limit);
+                released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean admissible(SessionPriority priority) {
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (waiting[i] > 0) {
+                return false;
+            }
+        }
+        return inFlight < Math.max(1, (int) Math.ceil(limit * priority.getShare()));
+    }
+
+    @Override
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getInFlightCount() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (int priorityWaiting : waiting) {
+                count += priorityWaiting;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
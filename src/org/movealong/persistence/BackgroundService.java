@@ -0,0 +1,39 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A component which runs work on threads of its own, and which must be stopped before the process ends for that
+ * work to complete.  Every background service created by an injector with a {@link HibernateFacadeModule} is
+ * stopped by {@link HibernateFacadeLifecycle#shutdown(long, TimeUnit)}.
+ */
+public interface BackgroundService {
+    /**
+     * Stops the service's threads after they have completed the work already submitted.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of timeout
+     * @return true if the service stopped within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException;
+}
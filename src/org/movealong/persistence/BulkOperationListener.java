@@ -0,0 +1,38 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import org.hibernate.classic.Session;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * Receives notice of each bulk statement run by {@link HibernateFacade#bulkUpdate(String, Object...)}, which writes
+ * tables without loading entities and so without Hibernate's entity events.  Listeners are called on the thread
+ * which owns the session, inside the transaction that ran the statement, after it has run.
+ */
+public interface BulkOperationListener {
+    /**
+     * @param session     the session which ran the statement
+     * @param querySpaces the tables the statement may have written
+     */
+    void bulkExecuted(Session session, Set<Serializable> querySpaces);
+}
@@ -0,0 +1,530 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.hibernate.MappingException;
+import org.hibernate.SessionFactory;
+import org.hibernate.classic.Session;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Accumulates increments to numeric columns of entities in memory and writes them in batches, so that hot
+ * counters such as view counts cost neither a write nor a row lock per increment.  Increments are added to striped
+ * in-memory cells, and the sum of each counter's increments is written by one
+ * <code>update ... set column = column + ?</code> statement per counter, all in one JDBC batch and one transaction,
+ * every {@link #INTERVAL} or as soon as {@link #MAXIMUM_PENDING} increments are waiting.  A flush which fails keeps
+ * its deltas for the next one.</p>
+ *
+ * <p>Increments are not transactional: they are written whether or not the transaction that made them commits, and
+ * those not yet written are lost if the process ends without {@link #shutdown(long, TimeUnit)}, which
+ * {@link HibernateFacadeLifecycle} calls.  The updates bypass the
+ * persistence context, so loaded entities do not see them, but query caches are told of the tables written.  The
+ * counted property must be mapped to a column of the entity's own table.</p>
+ */
+@Singleton
+public class CoalescingCounters implements CoalescingCountersMXBean, BackgroundService {
+    /**
+     * The binding name of the time, in milliseconds, between flushes.
+     */
+    public static final String INTERVAL = "org.movealong.persistence.counters.interval";
+
+    /**
+     * The binding name of the number of unflushed increments which causes a flush without waiting for the interval.
+     */
+    public static final String MAXIMUM_PENDING = "org.movealong.persistence.counters.maximumPending";
+
+    private static final Logger log = LoggerFactory.getLogger(CoalescingCounters.class);
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+
+    private final HibernateFacade hibernateFacade;
+    private final ConcurrentMap<CounterKey, Counter> counters = new ConcurrentHashMap<CounterKey, Counter>();
+    private final Object flushLock = new Object();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private long interval = 1000;
+    private long maximumPending = 10000;
+    private volatile ScheduledExecutorService flusher;
+    private volatile boolean shutdown;
+
+    @Inject
+    public CoalescingCounters(HibernateFacade hibernateFacade) {
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    @Inject(optional = true)
+    public void setInterval(@Named(INTERVAL) long intervalMillis) {
+        this.interval = intervalMillis;
+    }
+
+    @Inject(optional = true)
+    public void setMaximumPending(@Named(MAXIMUM_PENDING) long maximumPending) {
+        this.maximumPending = maximumPending;
+    }
+
+    /**
+     * Adds to a counter column of an entity.  The delta is written by a later flush.
+     *
+     * @param entityClass the class of the entity
+     * @param id          the id of the entity
+     * @param property    the numeric property holding the counter
+     * @param delta       the amount to add, which may be negative
+     * @throws MappingException         if the property is not mapped
+     * @throws IllegalArgumentException if the id is not of the entity's identifier type
+     */
+    public void increment(Class<?> entityClass, Serializable id, String property, long delta) {
+        add(new CounterKey(hibernateFacade.getTenantContext().currentTenant(), entityClass, id, property), delta);
+    }
+
+    private void add(CounterKey key, long delta) {
+        while (true) {
+            Counter counter = counters.get(key);
+            if (counter == null) {
+                Counter created = new Counter(key);
+                counter = counters.putIfAbsent(key, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            if (counter.add(delta)) {
+                break;
+            }
+            // retired by a flush, which removes it; remove it here too rather than wait for that
+            counters.remove(key, counter);
+        }
+        if (pending.incrementAndGet() >= maximumPending && flushRequested.compareAndSet(false, true)) {
+            requestFlush();
+        } else if (flusher == null && !shutdown) {
+            flusher();
+        }
+    }
+
+    /**
+     * Writes the unflushed deltas now, on the calling thread, which must not have a session.
+     */
+    @Override
+    public void flush() {
+        synchronized (flushLock) {
+            flushRequested.set(false);
+            pending.set(0);
+            Map<String, Map<Counter, Long>> tenants = new LinkedHashMap<String, Map<Counter, Long>>();
+            for (Counter counter : counters.values()) {
+                long delta = counter.drain();
+                if (delta == 0) {
+                    // idle since the last flush, so it is removed, and recreated if it is incremented again
+                    delta = counter.retire();
+                    counters.remove(counter.key, counter);
+                }
+                if (delta != 0) {
+                    Map<Counter, Long> deltas = tenants.get(counter.key.tenant);
+                    if (deltas == null) {
+                        deltas = new LinkedHashMap<Counter, Long>();
+                        tenants.put(counter.key.tenant, deltas);
+                    }
+                    deltas.put(counter, delta);
+                }
+            }
+            RuntimeException failure = null;
+            for (Map.Entry<String, Map<Counter, Long>> tenant : tenants.entrySet()) {
+                try {
+                    write(tenant.getKey(), tenant.getValue());
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Writes one tenant's deltas in a transaction of their own, keeping them for the next flush if it fails.
+     */
+    private void write(String tenant, final Map<Counter, Long> deltas) {
+        long start = System.nanoTime();
+        try {
+            hibernateFacade.getTenantContext().callAs(tenant, new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return hibernateFacade.callInSession(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            return hibernateFacade.inTransaction(new SessionAdapter<Object>() {
+                                @Override
+                                public Object receive(Session session) {
+                                    write(session, deltas);
+                                    return null;
+                                }
+                            });
+                        }
+                    });
+                }
+            });
+        } catch (Exception e) {
+            failedFlushes.incrementAndGet();
+            for (Map.Entry<Counter, Long> delta : deltas.entrySet()) {
+                add(delta.getKey().key, delta.getValue());
+            }
+            throw SessionAdapter.uncheck(e);
+        }
+        long elapsed = System.nanoTime() - start;
+        flushes.incrementAndGet();
+        lastFlushNanos.set(elapsed);
+        totalFlushNanos.addAndGet(elapsed);
+    }
+
+    /**
+     * Stops flushing periodically and writes the unflushed deltas.  Later increments are written only by calls to
+     * {@link #flush()}.
+     */
+    public void shutdown() {
+        ScheduledExecutorService flusher = stopFlushing();
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * Stops flushing periodically, waits for a flush in progress on the flusher thread, and writes the unflushed
+     * deltas.  A final flush which fails is logged, and its deltas are kept for a later call to {@link #flush()}.
+     *
+     * @param timeout the maximum time to wait for the flusher thread
+     * @param unit    the unit of timeout
+     * @return true if the flusher thread stopped within the timeout and the final flush succeeded
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        ScheduledExecutorService flusher = stopFlushing();
+        boolean stopped = true;
+        if (flusher != null) {
+            flusher.shutdown();
+            stopped = flusher.awaitTermination(timeout, unit);
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Unable to write the unflushed counter deltas", e);
+            return false;
+        }
+        return stopped;
+    }
+
+    private synchronized ScheduledExecutorService stopFlushing() {
+        shutdown = true;
+        ScheduledExecutorService flusher = this.flusher;
+        this.flusher = null;
+        return flusher;
+    }
+
+    @Override
+    public long getUnflushedCount() {
+        return pending.get();
+    }
+
+    @Override
+    public long getUnflushedDelta() {
+        long sum = 0;
+        for (Counter counter : counters.values()) {
+            sum += counter.sum();
+        }
+        return sum;
+    }
+
+    @Override
+    public int getCounterCount() {
+        return counters.size();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    @Override
+    public long getFailedFlushCount() {
+        return failedFlushes.get();
+    }
+
+    @Override
+    public long getLastFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastFlushNanos.get());
+    }
+
+    @Override
+    public double getAverageFlushMillis() {
+        long count = flushes.get();
+        return count == 0 ? 0.0 : (double) totalFlushNanos.get() / TimeUnit.MILLISECONDS.toNanos(1) / count;
+    }
+
+    private void write(Session session, Map<Counter, Long> deltas) {
+        final Map<String, List<Map.Entry<Counter, Long>>> statements =
+                new LinkedHashMap<String, List<Map.Entry<Counter, Long>>>();
+        Set<Serializable> querySpaces = new HashSet<Serializable>();
+        for (Map.Entry<Counter, Long> delta : deltas.entrySet()) {
+            Counter counter = delta.getKey();
+            List<Map.Entry<Counter, Long>> batch = statements.get(counter.sql);
+            if (batch == null) {
+                batch = new ArrayList<Map.Entry<Counter, Long>>();
+                statements.put(counter.sql, batch);
+            }
+            batch.add(delta);
+            querySpaces.addAll(Arrays.asList(counter.querySpaces));
+        }
+        session.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                for (Map.Entry<String, List<Map.Entry<Counter, Long>>> statement : statements.entrySet()) {
+                    PreparedStatement update = connection.prepareStatement(statement.getKey());
+                    try {
+                        for (Map.Entry<Counter, Long> delta : statement.getValue()) {
+                            update.setLong(1, delta.getValue());
+                            update.setObject(2, delta.getKey().key.id);
+                            update.addBatch();
+                        }
+                        update.executeBatch();
+                    } finally {
+                        update.close();
+                    }
+                }
+            }
+        });
+        hibernateFacade.bulkExecuted(session, querySpaces);
+    }
+
+    /**
+     * Flushes on the flusher thread, unless the counters have been shut down, in which case the deltas wait for the
+     * next call to {@link #flush()}.
+     */
+    private void requestFlush() {
+        ScheduledExecutorService flusher = flusher();
+        try {
+            if (flusher != null) {
+                flusher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushQuietly();
+                    }
+                });
+                return;
+            }
+        } catch (RejectedExecutionException e) {
+            // shut down since flusher() returned it
+        }
+        flushRequested.set(false);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Unable to flush counters; their deltas will be retried", e);
+        }
+    }
+
+    private ScheduledExecutorService flusher() {
+        ScheduledExecutorService flusher = this.flusher;
+        if (flusher == null && !shutdown) {
+            synchronized (this) {
+                flusher = this.flusher;
+                if (flusher == null && !shutdown) {
+                    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "hibernate-fu-counters");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    flusher.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushQuietly();
+                        }
+                    }, interval, interval, TimeUnit.MILLISECONDS);
+                    this.flusher = flusher;
+                }
+            }
+        }
+        return flusher;
+    }
+
+    /**
+     * A counter's update statement and unflushed increments, which are spread over cells chosen by thread so that
+     * concurrent increments of one counter rarely contend.  The statement is resolved when the counter is created,
+     * so that an unmapped property fails its first increment rather than every flush.  Each cell has a count of the
+     * threads adding to it, so that a flush retiring the counter can wait for increments already under way and
+     * later ones go to its replacement.
+     */
+    private class Counter {
+        private final CounterKey key;
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES);
+        private final AtomicIntegerArray writers = new AtomicIntegerArray(STRIPES);
+        private final String sql;
+        private final Serializable[] querySpaces;
+        private volatile boolean retired;
+
+        private Counter(CounterKey key) {
+            this.key = key;
+            SessionFactory sessionFactory;
+            try {
+                // a failed flush re-adds its deltas on the flushing thread, so resolve the key's own tenant
+                sessionFactory = hibernateFacade.getTenantContext().callAs(key.tenant, new Callable<SessionFactory>() {
+                    @Override
+                    public SessionFactory call() {
+                        return hibernateFacade.acquireSessionFactory();
+                    }
+                });
+            } catch (Exception e) {
+                throw SessionAdapter.uncheck(e);
+            }
+            try {
+                AbstractEntityPersister persister =
+                        (AbstractEntityPersister) sessionFactory.getClassMetadata(key.entityClass);
+                if (persister == null) {
+                    throw new MappingException("Not an entity: " + key.entityClass.getName());
+                }
+                if (!persister.getIdentifierType().getReturnedClass().isInstance(key.id)) {
+                    throw new IllegalArgumentException("Not an id of " + key.entityClass.getName() + ": " + key.id);
+                }
+                String column = persister.getPropertyColumnNames(key.property)[0];
+                sql = "update " + persister.getPropertyTableName(key.property) +
+                        " set " + column + " = " + column + " + ? where " +
+                        persister.getIdentifierColumnNames()[0] + " = ?";
+                querySpaces = persister.getQuerySpaces();
+            } finally {
+                hibernateFacade.releaseSessionFactory(sessionFactory);
+            }
+        }
+
+        /**
+         * @return false if the counter has been retired, and the delta must be added to its replacement
+         */
+        private boolean add(long delta) {
+            int cell = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            writers.incrementAndGet(cell);
+            try {
+                if (retired) {
+                    return false;
+                }
+                cells.addAndGet(cell, delta);
+                return true;
+            } finally {
+                writers.decrementAndGet(cell);
+            }
+        }
+
+        /**
+         * Stops the counter taking increments, waits for those under way, and drains them.
+         */
+        private long retire() {
+            retired = true;
+            for (int i = 0; i < STRIPES; i++) {
+                while (writers.get(i) != 0) {
+                    Thread.yield();
+                }
+            }
+            return drain();
+        }
+
+        private long drain() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.getAndSet(i, 0);
+            }
+            return sum;
+        }
+
+        private long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i);
+            }
+            return sum;
+        }
+    }
+
+    private static class CounterKey {
+        private final String tenant;
+        private final Class<?> entityClass;
+        private final Serializable id;
+        private final String property;
+
+        private CounterKey(String tenant, Class<?> entityClass, Serializable id, String property) {
+            this.tenant = tenant;
+            this.entityClass = entityClass;
+            this.id = id;
+            this.property = property;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CounterKey)) {
+                return false;
+            }
+            CounterKey other = (CounterKey) o;
+            return (tenant == null ? other.tenant == null : tenant.equals(other.tenant))
+                    && entityClass.equals(other.entityClass) && id.equals(other.id) && property.equals(other.property);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((31 * (tenant == null ? 0 : tenant.hashCode()) + entityClass.hashCode()) * 31 + id.hashCode()) * 31
+                    + property.hashCode();
+        }
+    }
+}
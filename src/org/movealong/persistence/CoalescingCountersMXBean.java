@@ -0,0 +1,65 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+/**
+ * The JMX view of the {@link CoalescingCounters}.
+ */
+public interface CoalescingCountersMXBean {
+    /**
+     * @return the number of increments not yet written to the database
+     */
+    long getUnflushedCount();
+
+    /**
+     * @return the sum of the deltas not yet written to the database
+     */
+    long getUnflushedDelta();
+
+    /**
+     * @return the number of counters held in memory, which are those incremented since the flush before last
+     */
+    int getCounterCount();
+
+    /**
+     * @return the number of flushes which have written to the database
+     */
+    long getFlushCount();
+
+    /**
+     * @return the number of flushes which failed, whose deltas were kept for the next flush
+     */
+    long getFailedFlushCount();
+
+    /**
+     * @return the duration of the most recent flush, in milliseconds
+     */
+    long getLastFlushMillis();
+
+    /**
+     * @return the mean duration of the flushes, in milliseconds
+     */
+    double getAverageFlushMillis();
+
+    /**
+     * Writes the unflushed deltas to the database now.
+     */
+    void flush();
+}
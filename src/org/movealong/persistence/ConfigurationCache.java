@@ -0,0 +1,326 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.util.ConfigHelper;
+import org.hibernate.util.DTDEntityResolver;
+import org.hibernate.util.SerializationHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.Embeddable;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * A local file cache of a fully bound {@link AnnotationConfiguration}.  Building a configuration requires parsing
+ * every XML configuration file and binding the annotations of every mapped class, which is slow for large models
+ * even though the mappings rarely change between restarts.  The cached configuration is keyed by a fingerprint of
+ * the XML configuration files and of the classes and resources they map, including every superclass of a mapped
+ * class and every {@link Embeddable} type its fields and properties use, so any change to them causes the cache to
+ * miss and the configuration to be rebuilt.  A change to any other class, such as an entity type which is reached
+ * only through an association, is not detected, and requires the cache file to be deleted.
+ *
+ * Passwords are removed from the configuration's properties before it is written, and are set again on loading
+ * from Hibernate's environment and the configuration files, so the cache file holds no credentials.  The file is
+ * also made readable only by its owner where the file system allows it.
+ */
+public class ConfigurationCache {
+    private static final Logger log = LoggerFactory.getLogger(ConfigurationCache.class);
+
+    private final File cacheFile;
+
+    public ConfigurationCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Loads the cached configuration if it was built from the same configuration files in the same state as they
+     * are now.
+     *
+     * @param configurationFiles the configuration file resource names, in the order they are applied
+     * @return the cached configuration, or null if there is no usable cached configuration
+     */
+    public AnnotationConfiguration load(Collection<String> configurationFiles) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        try {
+            String fingerprint = fingerprint(configurationFiles);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            try {
+                if (!fingerprint.equals(in.readUTF())) {
+                    log.info("Configuration cache {} is stale", cacheFile);
+                    return null;
+                }
+                AnnotationConfiguration configuration = (AnnotationConfiguration) SerializationHelper.deserialize(in);
+                restoreCredentials(configuration, configurationFiles);
+                return configuration;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            // a damaged or incompatible cache is never fatal, it only costs a cold start
+            log.warn("Unable to load configuration cache " + cacheFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a configuration in the cache file, replacing any previously cached configuration.  The configuration
+     * should have its mappings built already so that loading it skips annotation binding.
+     *
+     * @param configurationFiles the configuration file resource names the configuration was built from
+     * @param configuration      the configuration
+     */
+    public void store(Collection<String> configurationFiles, AnnotationConfiguration configuration) {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            String fingerprint = fingerprint(configurationFiles);
+            OutputStream file = new FileOutputStream(tempFile);
+            // best effort, since not every file system has permissions
+            tempFile.setReadable(false, false);
+            tempFile.setReadable(true, true);
+            tempFile.setWritable(false, false);
+            tempFile.setWritable(true, true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            Properties credentials = removeCredentials(configuration.getProperties());
+            try {
+                out.writeUTF(fingerprint);
+                SerializationHelper.serialize(configuration, out);
+            } finally {
+                configuration.getProperties().putAll(credentials);
+                out.close();
+            }
+            // replace the cache in one step so that a concurrent or interrupted start never reads half a file
+            if (!tempFile.renameTo(cacheFile) && !(cacheFile.delete() && tempFile.renameTo(cacheFile))) {
+                throw new IOException("Unable to replace " + cacheFile);
+            }
+        } catch (Exception e) {
+            log.warn("Unable to store configuration cache " + cacheFile, e);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Computes a digest of the configuration files, the classes, packages, and resources they map, and the
+     * Hibernate version that would deserialize the cached configuration.
+     *
+     * @param configurationFiles the configuration file resource names
+     * @return a hexadecimal digest
+     * @throws IOException if a configuration file or mapped resource cannot be read
+     */
+    String fingerprint(Collection<String> configurationFiles) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new HibernateException("SHA-1 is not available", e);
+        }
+        digest.update(String.valueOf(Configuration.class.getPackage().getImplementationVersion()).getBytes("UTF-8"));
+        digest.update(String.valueOf(AnnotationConfiguration.class.getPackage().getImplementationVersion()).getBytes("UTF-8"));
+        for (String configurationFile : configurationFiles) {
+            byte[] xml = readFully(ConfigHelper.getResourceAsStream(configurationFile), configurationFile);
+            digest.update(configurationFile.getBytes("UTF-8"));
+            digest.update(xml);
+            Element sessionFactory = parse(xml, configurationFile).getRootElement().element("session-factory");
+            if (sessionFactory != null) {
+                for (Object mapping : sessionFactory.elements("mapping")) {
+                    digestMapping(digest, (Element) mapping);
+                }
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static boolean isCredential(Object property) {
+        return String.valueOf(property).toLowerCase(Locale.ENGLISH).endsWith("password");
+    }
+
+    private static Properties removeCredentials(Properties properties) {
+        Properties credentials = new Properties();
+        for (Map.Entry<Object, Object> property : properties.entrySet()) {
+            if (isCredential(property.getKey())) {
+                credentials.put(property.getKey(), property.getValue());
+            }
+        }
+        for (Object credential : credentials.keySet()) {
+            properties.remove(credential);
+        }
+        return credentials;
+    }
+
+    /**
+     * Sets the passwords removed by {@link #store} again, as {@link Configuration#configure(String)} would set them.
+     */
+    private static void restoreCredentials(Configuration configuration, Collection<String> configurationFiles)
+            throws IOException {
+        for (Map.Entry<Object, Object> property : Environment.getProperties().entrySet()) {
+            if (isCredential(property.getKey())) {
+                configuration.setProperty((String) property.getKey(), (String) property.getValue());
+            }
+        }
+        for (String configurationFile : configurationFiles) {
+            byte[] xml = readFully(ConfigHelper.getResourceAsStream(configurationFile), configurationFile);
+            Element sessionFactory = parse(xml, configurationFile).getRootElement().element("session-factory");
+            if (sessionFactory == null) {
+                continue;
+            }
+            for (Object element : sessionFactory.elements("property")) {
+                String name = ((Element) element).attributeValue("name");
+                if (isCredential(name)) {
+                    String value = ((Element) element).getTextTrim();
+                    configuration.setProperty(name, value);
+                    if (!name.startsWith("hibernate")) {
+                        configuration.setProperty("hibernate." + name, value);
+                    }
+                }
+            }
+        }
+    }
+
+    private void digestMapping(MessageDigest digest, Element mapping) throws IOException {
+        String className = mapping.attributeValue("class");
+        String packageName = mapping.attributeValue("package");
+        String resource = mapping.attributeValue("resource");
+        String file = mapping.attributeValue("file");
+        String jar = mapping.attributeValue("jar");
+        if (className != null) {
+            Class<?> mappedClass;
+            try {
+                ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+                mappedClass = Class.forName(className, false,
+                        classLoader != null ? classLoader : ConfigurationCache.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new FileNotFoundException(className);
+            }
+            digestClass(digest, mappedClass, new HashSet<Class<?>>());
+        } else if (packageName != null) {
+            digestResource(digest, packageName.replace('.', '/') + "/package-info.class", false);
+        } else if (resource != null) {
+            digestResource(digest, resource, true);
+        } else if (file != null || jar != null) {
+            File mapped = new File(file != null ? file : jar);
+            digest.update(mapped.getPath().getBytes("UTF-8"));
+            digest.update(readFully(new FileInputStream(mapped), mapped.getPath()));
+        }
+    }
+
+    /**
+     * Digests a mapped class, its superclasses, and the embeddable types used by any of them, all of which are read
+     * in binding its annotations.
+     */
+    private void digestClass(MessageDigest digest, Class<?> mappedClass, Set<Class<?>> digested) throws IOException {
+        for (Class<?> type = mappedClass; type != null && type.getClassLoader() != null; type = type.getSuperclass()) {
+            if (!digested.add(type)) {
+                return;
+            }
+            digestResource(digest, type.getName().replace('.', '/') + ".class", true);
+            for (Field field : type.getDeclaredFields()) {
+                digestEmbeddables(digest, field.getGenericType(), digested);
+            }
+            for (Method method : type.getDeclaredMethods()) {
+                if (method.getParameterTypes().length == 0) {
+                    digestEmbeddables(digest, method.getGenericReturnType(), digested);
+                }
+            }
+        }
+    }
+
+    private void digestEmbeddables(MessageDigest digest, Type type, Set<Class<?>> digested) throws IOException {
+        if (type instanceof Class) {
+            Class<?> typeClass = (Class<?>) type;
+            if (typeClass.isArray()) {
+                digestEmbeddables(digest, typeClass.getComponentType(), digested);
+            } else if (typeClass.isAnnotationPresent(Embeddable.class)) {
+                digestClass(digest, typeClass, digested);
+            }
+        } else if (type instanceof ParameterizedType) {
+            // collections of components
+            for (Type argument : ((ParameterizedType) type).getActualTypeArguments()) {
+                digestEmbeddables(digest, argument, digested);
+            }
+        } else if (type instanceof GenericArrayType) {
+            digestEmbeddables(digest, ((GenericArrayType) type).getGenericComponentType(), digested);
+        }
+    }
+
+    private void digestResource(MessageDigest digest, String name, boolean required) throws IOException {
+        InputStream in = ConfigHelper.getResourceAsStream(name);
+        digest.update(name.getBytes("UTF-8"));
+        if (in != null) {
+            digest.update(readFully(in, name));
+        } else if (required) {
+            throw new FileNotFoundException(name);
+        }
+    }
+
+    private static Document parse(byte[] xml, String name) throws IOException {
+        SAXReader reader = new SAXReader();
+        reader.setEntityResolver(new DTDEntityResolver());
+        reader.setValidation(false);
+        try {
+            return reader.read(new ByteArrayInputStream(xml), name);
+        } catch (DocumentException e) {
+            throw new IOException("Unable to parse " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static byte[] readFully(InputStream in, String name) throws IOException {
+        if (in == null) {
+            throw new FileNotFoundException(name);
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import org.hibernate.cfg.AnnotationConfiguration;
+
+/**
+ * A ConfigurationCustomizer makes programmatic changes to the Hibernate configuration built by
+ * {@link XmlSessionFactoryProvider}, such as installing event listeners or a connection provider.  Customizers
+ * are bound using {@link HibernateFacadeModule#addConfigurationCustomizer(com.google.inject.Binder, Class)}.
+ */
+public interface ConfigurationCustomizer {
+    /**
+     * Called with each configuration after it has been read from the XML configuration files or the configuration
+     * cache, and before a SessionFactory is built from it.  Changes made here are never written to the
+     * configuration cache, so the configuration may be given objects that are not serializable.
+     *
+     * @param configuration the configuration
+     */
+    void customize(AnnotationConfiguration configuration);
+}
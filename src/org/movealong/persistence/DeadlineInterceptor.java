@@ -0,0 +1,61 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import org.movealong.persistence.jdbc.StatementInterceptor;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces the calling thread's deadline, as set through {@link HibernateFacade#setDeadline(long, TimeUnit)} or
+ * {@link HibernateFacade#inTransaction(TransactionReceiver, long, TimeUnit)}, on each JDBC statement.  A statement
+ * is refused once the deadline has passed, and otherwise its query timeout is limited to the time remaining,
+ * rounded up to the whole second that JDBC allows.
+ */
+@Singleton
+public class DeadlineInterceptor implements StatementInterceptor {
+    private final Provider<HibernateFacade> hibernateFacade;
+
+    @Inject
+    public DeadlineInterceptor(Provider<HibernateFacade> hibernateFacade) {
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    @Override
+    public void beforeExecute(Statement statement, String sql) throws SQLException {
+        long remaining = hibernateFacade.get().getRemainingTime(TimeUnit.MILLISECONDS);
+        if (remaining == Long.MAX_VALUE) {
+            return;
+        }
+        if (remaining <= 0) {
+            throw new DeadlineExceededException("The deadline passed before executing " + sql);
+        }
+        int timeout = (int) Math.min(Integer.MAX_VALUE, TimeUnit.MILLISECONDS.toSeconds(remaining + 999));
+        int configured = statement.getQueryTimeout();
+        if (configured == 0 || configured > timeout) {
+            statement.setQueryTimeout(timeout);
+        }
+    }
+}
@@ -34,6 +34,31 @@ public class DissociatedEntity {
         return (E) Proxy.newProxyInstance(entityClass.getClassLoader(), entityClass.getInterfaces(), new DissociationHandler(hibernateFacade, entityClass, id));
     }
 
+    /**
+     * Like {@link #dissociate(HibernateFacade, Class, Serializable)}, but the entity is loaded for each call by a
+     * {@link SingleFlightLoader}, so concurrent calls share one read and no session is needed to make them.
+     */
+    public static <E> E dissociate(SingleFlightLoader loader, Class<E> entityClass, Serializable id) {
+        return (E) Proxy.newProxyInstance(entityClass.getClassLoader(), entityClass.getInterfaces(), new SharedDissociationHandler(loader, entityClass, id));
+    }
+
+    private static class SharedDissociationHandler implements InvocationHandler {
+        private final SingleFlightLoader loader;
+        private final Class<?> entityClass;
+        private final Serializable id;
+
+        public SharedDissociationHandler(SingleFlightLoader loader, Class<?> entityClass, Serializable id) {
+            this.loader = loader;
+            this.entityClass = entityClass;
+            this.id = id;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            return method.invoke(loader.load(entityClass, id), args);
+        }
+    }
+
     private static class DissociationHandler implements InvocationHandler {
         private final HibernateFacade hibernateFacade;
         private final Class<?> entityClass;
@@ -0,0 +1,91 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the sessions in flight against a {@link SessionFactory} so that it can be retired while in use and closed
+ * when the last of those sessions ends.  No lease is granted once the SessionFactory is retired.
+ */
+class DrainingSessionFactory {
+    private static final Logger log = LoggerFactory.getLogger(DrainingSessionFactory.class);
+
+    private final SessionFactory sessionFactory;
+    private final AtomicInteger leases = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean retired;
+
+    DrainingSessionFactory(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    SessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    int getLeases() {
+        return leases.get();
+    }
+
+    /**
+     * @return true if a lease was granted, or false if the SessionFactory has been retired
+     */
+    boolean lease() {
+        leases.incrementAndGet();
+        if (retired) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if this call closed the SessionFactory
+     */
+    boolean release() {
+        return leases.decrementAndGet() == 0 && retired && close();
+    }
+
+    /**
+     * @return true if this call closed the SessionFactory
+     */
+    boolean retire() {
+        retired = true;
+        return leases.get() == 0 && close();
+    }
+
+    private boolean close() {
+        if (closed.compareAndSet(false, true)) {
+            try {
+                sessionFactory.close();
+            } catch (RuntimeException e) {
+                log.warn("Error closing retired session factory", e);
+            }
+            return true;
+        }
+        return false;
+    }
+}
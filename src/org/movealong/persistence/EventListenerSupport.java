@@ -0,0 +1,45 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for {@link ConfigurationCustomizer}s which install Hibernate event listeners.
+ */
+public final class EventListenerSupport {
+
+    private EventListenerSupport() {}
+
+    /**
+     * Appends a listener to an array of listeners, as taken from {@link org.hibernate.event.EventListeners}, so that
+     * it runs after the listeners that are already configured.
+     *
+     * @param listeners the configured listeners
+     * @param listener  the listener to append
+     * @param <L>       the listener type
+     * @return a new array containing the configured listeners followed by listener
+     */
+    public static <L> L[] append(L[] listeners, L listener) {
+        L[] appended = Arrays.copyOf(listeners, listeners.length + 1);
+        appended[listeners.length] = listener;
+        return appended;
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.hibernate.classic.Session;
+import org.hibernate.jdbc.Work;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Runs small, independent transactions together, so that many threads issuing one-row transactions share the
+ * cost of a commit.  Receivers submitted to {@link #inTransaction(TransactionReceiver)} within a short window of one
+ * another are run one after another on a committer thread, in one session and one database transaction.  The
+ * submitting thread waits until that transaction completes and then returns the receiver's result or throws its
+ * exception, just as {@link HibernateFacade#inTransaction(TransactionReceiver)} would.</p>
+ *
+ * <p>Each receiver runs between a JDBC savepoint and a flush, so a receiver that throws rolls back only its own
+ * changes, and the session is cleared afterward.  Its preRollback and postRollback callbacks are called around the
+ * rollback to the savepoint.  The preCommit callback of each receiver is called before its flush, and its postCommit
+ * callback after the shared transaction commits.  If the shared commit fails, every receiver which had succeeded
+ * translates the commit failure and has its rollback callbacks called.  Synchronizations registered through
+ * {@link HibernateFacade#registerSynchronization} while a receiver runs, such as post-commit tasks and collected
+ * entity changes, are registered with the shared transaction only if the receiver succeeds.</p>
+ *
+ * <p>Receivers must not depend on state associated with the submitting thread, including its session, since they
+ * run on a different thread.  They do run as the submitting thread's tenant, and only receivers of the same tenant
+ * share a transaction.  A thread that has a session cannot submit a receiver at all, since the committer might need
+ * the locks or the connection that its session holds.  A submitter waits at most {@link #WAIT_TIMEOUT} for its
+ * receiver; a receiver that has not started by then is withdrawn, but one that has started may still commit.  The
+ * database and its JDBC driver must support savepoints.</p>
+ */
+@Singleton
+public class GroupCommitter implements GroupCommitterMXBean, BackgroundService {
+    /**
+     * The binding name of the time, in microseconds, that a committer waits for more receivers after the first.
+     */
+    public static final String WINDOW = "org.movealong.persistence.groupCommit.window";
+
+    /**
+     * The binding name of the maximum number of receivers run in one transaction.
+     */
+    public static final String MAXIMUM_BATCH_SIZE = "org.movealong.persistence.groupCommit.maximumBatchSize";
+
+    /**
+     * The binding name of the number of committer threads.
+     */
+    public static final String COMMITTERS = "org.movealong.persistence.groupCommit.committers";
+
+    /**
+     * The binding name of the time, in milliseconds, that a submitter waits for its receiver's transaction.
+     */
+    public static final String WAIT_TIMEOUT = "org.movealong.persistence.groupCommit.waitTimeout";
+
+    private static final Logger log = LoggerFactory.getLogger(GroupCommitter.class);
+    private static final long IDLE_MILLIS = 100;
+
+    private final HibernateFacade hibernateFacade;
+    private final BlockingQueue<Submission<?>> queue = new LinkedBlockingQueue<Submission<?>>();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong receivers = new AtomicLong();
+    private long windowNanos = TimeUnit.MILLISECONDS.toNanos(2);
+    private int maximumBatchSize = 100;
+    private int committers = 1;
+    private long waitTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private volatile Thread[] threads;
+    private volatile boolean running = true;
+
+    @Inject
+    public GroupCommitter(HibernateFacade hibernateFacade) {
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    @Inject(optional = true)
+    public void setWindow(@Named(WINDOW) long windowMicros) {
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+    }
+
+    @Inject(optional = true)
+    public void setMaximumBatchSize(@Named(MAXIMUM_BATCH_SIZE) int maximumBatchSize) {
+        this.maximumBatchSize = maximumBatchSize;
+    }
+
+    @Inject(optional = true)
+    public void setCommitters(@Named(COMMITTERS) int committers) {
+        this.committers = committers;
+    }
+
+    @Inject(optional = true)
+    public void setWaitTimeout(@Named(WAIT_TIMEOUT) long waitTimeoutMillis) {
+        this.waitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(waitTimeoutMillis);
+    }
+
+    /**
+     * Runs a receiver in a transaction shared with other receivers, and waits for that transaction to complete.
+     *
+     * @param receiver the receiver
+     * @param <T>      the return type of receiver.receive()
+     * @return the value of receiver.receive()
+     * @throws SessionExistsException   if the calling thread has a session
+     * @throws HibernateFacadeException if the transaction does not complete within the wait timeout, or the
+     *                                  calling thread is interrupted while waiting
+     */
+    public <T> T inTransaction(final SessionReceiver<T> receiver) {
+        return inTransaction(
+                new TransactionAdapter<T>() {
+                    @Override
+                    public T receive(Session session) throws Exception {
+                        return receiver.receive(session);
+                    }
+
+                    @Override
+                    public RuntimeException translateException(Exception e) {
+                        return receiver.translateException(e);
+                    }
+                });
+    }
+
+    /**
+     * Runs a receiver in a transaction shared with other receivers, and waits for that transaction to complete.
+     * The receiver's callbacks are called as specified for {@link TransactionReceiver}, on the committer thread.
+     *
+     * @param receiver the receiver
+     * @param <T>      the return type of receiver.receive()
+     * @return the value of receiver.receive()
+     * @throws SessionExistsException   if the calling thread has a session
+     * @throws HibernateFacadeException if the transaction does not complete within the wait timeout, or the
+     *                                  calling thread is interrupted while waiting
+     */
+    public <T> T inTransaction(TransactionReceiver<T> receiver) {
+        if (!running) {
+            throw new HibernateFacadeException("The group committer has been shut down");
+        }
+        if (hibernateFacade.hasSession()) {
+            // the committer could wait for this thread's locks or connection while this thread waits for it
+            throw new SessionExistsException("Group commit called with an existing session");
+        }
+        start();
+        Submission<T> submission = new Submission<T>(receiver);
+        queue.add(submission);
+        return submission.await(waitTimeoutNanos);
+    }
+
+    /**
+     * Stops the committer threads after they have run the receivers already submitted.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of timeout
+     * @return true if the committer threads stopped within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        running = false;
+        Thread[] threads = this.threads;
+        if (threads == null) {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    @Override
+    public long getReceiverCount() {
+        return receivers.get();
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0.0 : (double) receivers.get() / count;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void start() {
+        if (threads == null) {
+            synchronized (this) {
+                if (threads == null) {
+                    Thread[] threads = new Thread[committers];
+                    for (int i = 0; i < committers; i++) {
+                        threads[i] = new Thread(new Committer(), "hibernate-fu-group-commit-" + i);
+                        threads[i].setDaemon(true);
+                        threads[i].start();
+                    }
+                    this.threads = threads;
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits a batch in one transaction for each tenant among its submitters, since a transaction belongs to one
+     * tenant's SessionFactory.
+     */
+    private void commitByTenant(List<Submission<?>> batch) {
+        Map<String, List<Submission<?>>> tenants = new LinkedHashMap<String, List<Submission<?>>>();
+        for (Submission<?> submission : batch) {
+            List<Submission<?>> tenantBatch = tenants.get(submission.tenant);
+            if (tenantBatch == null) {
+                tenantBatch = new ArrayList<Submission<?>>();
+                tenants.put(submission.tenant, tenantBatch);
+            }
+            tenantBatch.add(submission);
+        }
+        for (final Map.Entry<String, List<Submission<?>>> tenant : tenants.entrySet()) {
+            hibernateFacade.getTenantContext().runAs(tenant.getKey(), new Runnable() {
+                @Override
+                public void run() {
+                    commit(tenant.getValue());
+                }
+            });
+        }
+    }
+
+    private void commit(final List<Submission<?>> batch) {
+        batches.incrementAndGet();
+        receivers.addAndGet(batch.size());
+        try {
+            hibernateFacade.runInSession(new Runnable() {
+                @Override
+                public void run() {
+                    hibernateFacade.inTransaction(new Batch(batch));
+                }
+            });
+        } catch (Throwable e) {
+            // an Error must not stop the committer, or its submitters would wait forever
+            log.debug("Group commit of {} receivers failed", batch.size(), e);
+            for (Submission<?> submission : batch) {
+                submission.fail(e);
+            }
+        }
+    }
+
+    private class Committer implements Runnable {
+        @Override
+        public void run() {
+            List<Submission<?>> batch = new ArrayList<Submission<?>>();
+            try {
+                while (running || !queue.isEmpty()) {
+                    Submission<?> submission = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (submission == null) {
+                        continue;
+                    }
+                    batch.add(submission);
+                    long deadline = System.nanoTime() + windowNanos;
+                    while (batch.size() < maximumBatchSize) {
+                        long remaining = deadline - System.nanoTime();
+                        submission = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                        if (submission == null) {
+                            break;
+                        }
+                        batch.add(submission);
+                    }
+                    commitByTenant(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                log.warn("Group committer {} interrupted", Thread.currentThread().getName());
+                for (Submission<?> submission : batch) {
+                    submission.fail(new HibernateFacadeException("The group committer was interrupted"));
+                }
+            }
+        }
+    }
+
+    /**
+     * The receiver of the shared transaction, which runs each submitted receiver in turn and relays the shared
+     * transaction's outcome to those that succeeded.
+     */
+    private class Batch extends TransactionAdapter<Void> {
+        private final List<Submission<?>> batch;
+        private final List<Submission<?>> received = new ArrayList<Submission<?>>();
+        private Exception failure;
+
+        private Batch(List<Submission<?>> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public Void receive(Session session) throws Exception {
+            for (int i = 0; i < batch.size(); i++) {
+                Submission<?> submission = batch.get(i);
+                if (submission.start() && submission.receive(session, "group_commit_" + i)) {
+                    received.add(submission);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void postCommit(Session session) {
+            for (Submission<?> submission : received) {
+                submission.postCommit(session);
+            }
+        }
+
+        @Override
+        public RuntimeException translateException(Exception e) {
+            failure = e;
+            return super.translateException(e);
+        }
+
+        @Override
+        public void preRollback(Session session) {
+            for (Submission<?> submission : received) {
+                submission.preRollback(session, failure);
+            }
+        }
+
+        @Override
+        public void postRollback(Session session) {
+            for (Submission<?> submission : received) {
+                submission.postRollback(session);
+            }
+        }
+    }
+
+    private class Submission<T> {
+        private final TransactionReceiver<T> receiver;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicBoolean taken = new AtomicBoolean();
+        private final String tenant = hibernateFacade.getTenantContext().currentTenant();
+        private T result;
+        private Throwable exception;
+        private boolean rollbackCallbacks;
+
+        private Submission(TransactionReceiver<T> receiver) {
+            this.receiver = receiver;
+        }
+
+        /**
+         * @return true if the receiver is to be run, or false if its submitter has withdrawn it
+         */
+        private boolean start() {
+            return taken.compareAndSet(false, true);
+        }
+
+        /**
+         * @return true if the receiver's changes are part of the shared transaction
+         */
+        private boolean receive(Session session, final String name) {
+            // savepoints are named since some drivers give every unnamed savepoint the same name
+            final Savepoint[] savepoint = new Savepoint[1];
+            session.doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    savepoint[0] = connection.setSavepoint(name);
+                }
+            });
+            hibernateFacade.beginSynchronizationScope();
+            try {
+                result = receiver.receive(session);
+                receiver.preCommit(session);
+                session.flush();
+            } catch (HibernateFacadeException e) {
+                rollback(session, savepoint[0], e);
+                return false;
+            } catch (Error e) {
+                rollback(session, savepoint[0], e);
+                return false;
+            } catch (Exception e) {
+                RuntimeException translated;
+                try {
+                    translated = receiver.translateException(e);
+                } catch (RuntimeException t) {
+                    translated = t;
+                }
+                rollback(session, savepoint[0], translated);
+                return false;
+            }
+            // the savepoint is released when the shared transaction completes
+            hibernateFacade.endSynchronizationScope(true);
+            return true;
+        }
+
+        private void rollback(Session session, final Savepoint savepoint, Throwable e) {
+            exception = e;
+            boolean rolledBack = false;
+            try {
+                receiver.preRollback(session);
+                rolledBack = true;
+            } catch (RuntimeException preRollbackError) {
+                exception = preRollbackError;
+            } finally {
+                session.doWork(new Work() {
+                    @Override
+                    public void execute(Connection connection) throws SQLException {
+                        connection.rollback(savepoint);
+                    }
+                });
+                // the session may hold state that was written after the savepoint; everything else has been flushed
+                session.clear();
+                try {
+                    hibernateFacade.endSynchronizationScope(false);
+                } catch (RuntimeException discardError) {
+                    log.warn("Discarding the synchronizations of a rolled back receiver failed", discardError);
+                }
+            }
+            if (rolledBack) {
+                try {
+                    receiver.postRollback(session);
+                } catch (RuntimeException postRollbackError) {
+                    exception = postRollbackError;
+                }
+            }
+            done.countDown();
+        }
+
+        private void postCommit(Session session) {
+            try {
+                receiver.postCommit(session);
+            } catch (RuntimeException e) {
+                exception = e;
+            }
+            done.countDown();
+        }
+
+        private void preRollback(Session session, Exception failure) {
+            try {
+                exception = failure instanceof HibernateFacadeException
+                        ? (HibernateFacadeException) failure
+                        : receiver.translateException(failure);
+                receiver.preRollback(session);
+                rollbackCallbacks = true;
+            } catch (RuntimeException e) {
+                exception = e;
+            }
+        }
+
+        private void postRollback(Session session) {
+            if (rollbackCallbacks) {
+                try {
+                    receiver.postRollback(session);
+                } catch (RuntimeException e) {
+                    exception = e;
+                }
+            }
+            done.countDown();
+        }
+
+        private void fail(Throwable e) {
+            if (done.getCount() > 0) {
+                if (exception == null) {
+                    exception = e;
+                }
+                done.countDown();
+            }
+        }
+
+        private T await(long timeoutNanos) {
+            try {
+                if (!done.await(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                    throw abandon("The group commit did not complete within "
+                            + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw abandon("Interrupted while waiting for the group commit");
+            }
+            if (exception instanceof Error) {
+                throw (Error) exception;
+            } else if (exception != null) {
+                throw (RuntimeException) exception;
+            }
+            return result;
+        }
+
+        private HibernateFacadeException abandon(String message) {
+            return new HibernateFacadeException(taken.compareAndSet(false, true)
+                    ? message + "; the receiver was withdrawn without running"
+                    : message + "; the receiver has started and may still commit");
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+/**
+ * The JMX view of the {@link GroupCommitter}.
+ */
+public interface GroupCommitterMXBean {
+    /**
+     * @return the number of database transactions committed or rolled back
+     */
+    long getBatchCount();
+
+    /**
+     * @return the number of receivers run
+     */
+    long getReceiverCount();
+
+    /**
+     * @return the mean number of receivers run per database transaction
+     */
+    double getAverageBatchSize();
+
+    /**
+     * @return the number of receivers waiting to run
+     */
+    int getQueueDepth();
+}
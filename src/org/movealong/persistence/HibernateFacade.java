@@ -23,12 +23,39 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import org.hibernate.HibernateException;
+import org.hibernate.Query;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.classic.Session;
+import org.hibernate.collection.PersistentCollection;
+import org.hibernate.engine.CollectionEntry;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.id.IdentifierGeneratorFactory;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.movealong.persistence.stream.Publisher;
+import org.movealong.persistence.stream.QueryBuilder;
 
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.io.Serializable;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * HibernateFacade enforces proper creation, closure, and disposal of Hibernate sessions and transactions.  It
@@ -36,16 +63,129 @@ import java.util.concurrent.Callable;
  */
 @Singleton
 public class HibernateFacade {
+    /**
+     * The binding name of the number of sessions that the facade is expected to hold open at once, to which the
+     * connection pool is sized, plus {@link org.movealong.persistence.pool.ConnectionPoolCustomizer#HEADROOM}.
+     * Binding it alone does not limit the number of open sessions; the {@link AdmissionController} limits them to
+     * this number only when {@link AdmissionController#QUEUE_TIMEOUT} is bound as well.
+     */
+    public static final String MAXIMUM_SESSIONS = "org.movealong.persistence.maximumSessions";
+
+    private static final ThreadFactory PARTITION_THREADS = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "hibernate-fu-partition-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
 
     private Provider<SessionFactory> sessionFactoryProvider;
-    private ThreadLocal<Session> sessionLocal = new ThreadLocal<Session>();
-    private ThreadLocal<Transaction> txLocal = new ThreadLocal<Transaction>();
+    private LeasingSessionFactoryProvider leasingSessionFactoryProvider;
+    private SessionListener[] sessionListeners = new SessionListener[0];
+    private BulkOperationListener[] bulkOperationListeners = new BulkOperationListener[0];
+    private PersistenceContextGuard persistenceContextGuard;
+    private AdmissionController admissionController;
+    private WorkloadRecorder workloadRecorder;
+    private TenantContext tenantContext = new TenantContext();
+    private ThreadLocal<SessionState> stateLocal = new ThreadLocal<SessionState>();
 
     @Inject
     public HibernateFacade(Provider<SessionFactory> sessionFactoryProvider) {
         this.sessionFactoryProvider = sessionFactoryProvider;
     }
 
+    /**
+     * Supplies a {@link LeasingSessionFactoryProvider}, which is then used instead of the SessionFactory provider
+     * to open sessions, and is notified as each of those sessions is closed.
+     *
+     * @param leasingSessionFactoryProvider the provider
+     */
+    @Inject(optional = true)
+    public void setLeasingSessionFactoryProvider(LeasingSessionFactoryProvider leasingSessionFactoryProvider) {
+        this.leasingSessionFactoryProvider = leasingSessionFactoryProvider;
+    }
+
+    /**
+     * Supplies the {@link SessionListener}s to notify as each session is opened and closed.
+     *
+     * @param sessionListeners the listeners
+     */
+    @Inject(optional = true)
+    public void setSessionListeners(Set<SessionListener> sessionListeners) {
+        this.sessionListeners = sessionListeners.toArray(new SessionListener[sessionListeners.size()]);
+    }
+
+    /**
+     * Supplies the {@link BulkOperationListener}s to notify after each bulk statement.
+     *
+     * @param bulkOperationListeners the listeners
+     */
+    @Inject(optional = true)
+    public void setBulkOperationListeners(Set<BulkOperationListener> bulkOperationListeners) {
+        this.bulkOperationListeners = bulkOperationListeners.toArray(
+                new BulkOperationListener[bulkOperationListeners.size()]);
+    }
+
+    /**
+     * Supplies the {@link TenantContext} which carries the tenant of the calling thread to the threads on which the
+     * facade opens sessions for it.
+     *
+     * @param tenantContext the tenant context
+     */
+    @Inject
+    public void setTenantContext(TenantContext tenantContext) {
+        this.tenantContext = tenantContext;
+    }
+
+    /**
+     * Supplies the {@link PersistenceContextGuard} which decides whether to clear sessions at checkpoints.
+     *
+     * @param persistenceContextGuard the guard
+     */
+    @Inject(optional = true)
+    public void setPersistenceContextGuard(@Installed PersistenceContextGuard persistenceContextGuard) {
+        this.persistenceContextGuard = persistenceContextGuard;
+    }
+
+    /**
+     * Supplies the {@link AdmissionController} which limits the number of sessions open at once.
+     *
+     * @param admissionController the controller
+     */
+    @Inject(optional = true)
+    public void setAdmissionController(@Installed AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    /**
+     * Supplies the {@link WorkloadRecorder} to notify as each transaction begins and completes.
+     *
+     * @param workloadRecorder the recorder
+     */
+    @Inject(optional = true)
+    public void setWorkloadRecorder(@Installed WorkloadRecorder workloadRecorder) {
+        this.workloadRecorder = workloadRecorder;
+    }
+
+    /**
+     * Marks a point in the calling thread's work at which none of the entities in its session are still needed, so
+     * that the session may be cleared if its persistence context has grown too large.  Within a transaction the
+     * session is flushed before it is cleared.  Whether and when sessions are cleared is decided by the
+     * {@link PersistenceContextGuard}; by default they are not.  Sessions are cleared only at explicit checkpoints,
+     * never implicitly, since only the caller knows which of the session's entities it still holds.
+     *
+     * @throws HibernateException if no open session exists for the calling thread
+     */
+    public void checkpoint() throws HibernateException {
+        SessionState state = getState();
+        if (persistenceContextGuard != null) {
+            persistenceContextGuard.checkpoint(state.session, state.transaction != null);
+        }
+    }
+
     /**
      * Gets the existing open Hibernate session for the current thread and calls {@link SessionReceiver}'s
      * interface methods according to the specification in that interface's documentation.
@@ -56,8 +196,66 @@ public class HibernateFacade {
      * @throws HibernateException if no open session exists for the calling thread.
      */
     public <T> T usingSession(SessionReceiver<T> receiver) throws HibernateException {
+        return usingSession(receiver, receiver);
+    }
+
+    /**
+     * Identifies the receiver that the facade is running on the calling thread, for diagnostics.  When receivers are
+     * nested, this is the innermost receiver.
+     *
+     * @return the class of the receiver passed to the innermost call to usingSession or inTransaction which is in
+     *         progress on the calling thread, or null if there is none
+     */
+    public Class<?> getReceiverClass() {
+        SessionState state = stateLocal.get();
+        return state == null || state.receiver == null ? null : state.receiver.getClass();
+    }
+
+    /**
+     * Measures how long the calling thread's transaction has been open, for diagnostics.
+     *
+     * @param unit the unit of the result
+     * @return the time since the calling thread's transaction began, or -1 if the calling thread is not in a
+     *         transaction
+     */
+    public long getTransactionAge(TimeUnit unit) {
+        SessionState state = stateLocal.get();
+        return state == null || state.transaction == null
+                ? -1
+                : unit.convert(System.nanoTime() - state.transactionStart, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets a deadline for the rest of the calling thread's session.  Transactions are not begun or committed after
+     * the deadline passes, and when statement deadlines are enforced, each statement's query timeout is limited to
+     * the time remaining.  An earlier deadline that is already set is kept.
+     *
+     * @param timeout the time from now until the deadline
+     * @param unit    the unit of timeout
+     * @throws HibernateException if no open session exists for the calling thread
+     */
+    public void setDeadline(long timeout, TimeUnit unit) throws HibernateException {
+        getState().restrictDeadline(timeout, unit);
+    }
+
+    /**
+     * @param unit the unit of the result
+     * @return the time remaining until the calling thread's deadline, which is negative once it has passed, or
+     *         {@link Long#MAX_VALUE} if no deadline is set
+     */
+    public long getRemainingTime(TimeUnit unit) {
+        SessionState state = stateLocal.get();
+        return state == null || !state.hasDeadline
+                ? Long.MAX_VALUE
+                : unit.convert(state.deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private <T> T usingSession(SessionReceiver<T> receiver, Object reportedReceiver) throws HibernateException {
+        SessionState state = getState();
+        Object previousReceiver = state.receiver;
+        state.receiver = reportedReceiver;
         try {
-            return receiver.receive(getSession());
+            return receiver.receive(state.session);
         } catch (HibernateFacadeException e) {
             // HibernateFacadeExceptions are thrown higher up the call stack
             // when another call to the facade singleton generates an error
@@ -66,6 +264,90 @@ public class HibernateFacade {
             throw e;
         } catch (Exception e) {
             throw receiver.translateException(e);
+        } finally {
+            state.receiver = previousReceiver;
+        }
+    }
+
+    /**
+     * @return true if a session is associated with the current call stack
+     */
+    public boolean hasSession() {
+        return stateLocal.get() != null;
+    }
+
+    /**
+     * @return true if the calling thread is in a transaction begun by {@link #inTransaction(TransactionReceiver)}
+     */
+    public boolean isInTransaction() {
+        SessionState state = stateLocal.get();
+        return state != null && state.transaction != null;
+    }
+
+    /**
+     * Identifies the scope in which synchronizations registered for a transaction complete.  This is the transaction
+     * itself, except while a {@link GroupCommitter} runs one of the receivers sharing it, when it is that receiver's
+     * scope.  Components which keep one synchronization per transaction should keep one per scope instead, and
+     * register it through {@link #registerSynchronization(Transaction, Synchronization)}.
+     *
+     * @param transaction the transaction
+     * @return the scope of the transaction's synchronizations on the calling thread
+     */
+    public Object getSynchronizationScope(Transaction transaction) {
+        SessionState state = stateLocal.get();
+        return state != null && state.scope != null && state.transaction == transaction ? state.scope : transaction;
+    }
+
+    /**
+     * Registers a synchronization for a transaction in the calling thread's current
+     * {@link #getSynchronizationScope(Transaction) scope}.  A synchronization registered while a group committed
+     * receiver runs is registered with the shared transaction only if the receiver succeeds; if it is rolled back to
+     * its savepoint, the synchronization is completed at once with {@link Status#STATUS_ROLLEDBACK}.
+     *
+     * @param transaction     the transaction
+     * @param synchronization the synchronization
+     */
+    public void registerSynchronization(Transaction transaction, Synchronization synchronization) {
+        SessionState state = stateLocal.get();
+        if (state != null && state.scope != null && state.transaction == transaction) {
+            state.scope.add(synchronization);
+        } else {
+            transaction.registerSynchronization(synchronization);
+        }
+    }
+
+    /**
+     * Begins a scope for the synchronizations registered with the calling thread's transaction.
+     */
+    void beginSynchronizationScope() {
+        getState().scope = new ArrayList<Synchronization>();
+    }
+
+    /**
+     * Ends the calling thread's synchronization scope, registering its synchronizations with the transaction if
+     * the work in the scope is kept, or else completing them as rolled back.
+     */
+    void endSynchronizationScope(boolean kept) {
+        SessionState state = getState();
+        List<Synchronization> scope = state.scope;
+        state.scope = null;
+        if (scope == null) {
+            return;
+        }
+        RuntimeException failure = null;
+        for (Synchronization synchronization : scope) {
+            try {
+                if (kept) {
+                    state.transaction.registerSynchronization(synchronization);
+                } else {
+                    synchronization.afterCompletion(Status.STATUS_ROLLEDBACK);
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
         }
     }
 
@@ -75,12 +357,16 @@ public class HibernateFacade {
      * @throws HibernateException if there is no session associate with the current call stack.
      */
     public Session getSession() {
-        Session session = sessionLocal.get();
-        if (session == null) {
+        return getState().session;
+    }
+
+    private SessionState getState() {
+        SessionState state = stateLocal.get();
+        if (state == null) {
             throw new NoSessionException("There is no session associated with the current call stack." +
                     "  Sessions are managed by a call to inSession at a point higher on the call stack.");
         }
-        return session;
+        return state;
     }
 
     /**
@@ -92,7 +378,12 @@ public class HibernateFacade {
      *         call ends either by returning or throwing an exception.
      */
     public Runnable inSession(final Runnable runner) {
-        return new RunnableCallable(inSession(new CallableRunnable(runner)));
+        return new Runnable() {
+            @Override
+            public void run() {
+                runInSession(runner);
+            }
+        };
     }
 
     /**
@@ -107,20 +398,7 @@ public class HibernateFacade {
         return new Callable<T>() {
             @Override
             public T call() throws Exception {
-                Session session;
-                try {
-                    getSession();
-                    throw new SessionExistsException("Called with an existing session");
-                } catch (NoSessionException e) {
-                    session = getSessionFactory().openSession();
-                }
-                sessionLocal.set(session);
-                try {
-                    return call.call();
-                } finally {
-                    sessionLocal.remove();
-                    session.close();
-                }
+                return callInSession(call);
             }
         };
     }
@@ -135,7 +413,28 @@ public class HibernateFacade {
      *          if called in a thread that already has a Session associated with it.
      */
     public void runInSession(final Runnable runner) throws HibernateException {
-        inSession(runner).run();
+        runInSession(runner, SessionPriority.NORMAL);
+    }
+
+    /**
+     * Like {@link #runInSession(Runnable)}, but the session is admitted with the given priority when the number of
+     * open sessions is limited by the {@link AdmissionController}.
+     *
+     * @param runner   a Runnable that will have its run method called immediately with a Hibernate session
+     *                 associated with the thread.
+     * @param priority the priority of the session
+     * @throws HibernateException if called in a thread that already has a Session associated with it.
+     * @throws AdmissionRejectedException if the session is not admitted within the queue timeout
+     */
+    public void runInSession(Runnable runner, SessionPriority priority) throws HibernateException {
+        try {
+            withSession(null, runner, priority);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // neither a Runnable nor the session listeners can throw these
+            throw new UndeclaredThrowableException(e);
+        }
     }
 
     /**
@@ -150,7 +449,139 @@ public class HibernateFacade {
      * @throws Exception          as thrown from call.call()
      */
     public <T> T callInSession(final Callable<T> call) throws Exception {
-        return inSession(call).call();
+        return withSession(call, null, SessionPriority.NORMAL);
+    }
+
+    /**
+     * Like {@link #callInSession(Callable)}, but the session is admitted with the given priority when the number of
+     * open sessions is limited by the {@link AdmissionController}.
+     *
+     * @param call     a Callable that will have its call method called immediately with a Hibernate session
+     *                 associated with the thread.
+     * @param priority the priority of the session
+     * @return the value returned by call.call()
+     * @throws HibernateException if called in a thread that already has a Session associated with it
+     * @throws AdmissionRejectedException if the session is not admitted within the queue timeout
+     * @throws Exception as thrown from call.call()
+     */
+    public <T> T callInSession(Callable<T> call, SessionPriority priority) throws Exception {
+        return withSession(call, null, priority);
+    }
+
+    /**
+     * Opens a session around either call.call() or runner.run(), whichever is not null.  This and
+     * {@link #openState(SessionPriority)}, which it uses, are the one path by which sessions are opened, and it is on
+     * the path of every unit of work, so it allocates nothing beyond the session and its state, and tests for an
+     * existing session without throwing.
+     */
+    private <T> T withSession(Callable<T> call, Runnable runner, SessionPriority priority) throws Exception {
+        if (stateLocal.get() != null) {
+            throw new SessionExistsException("Called with an existing session");
+        }
+        SessionState state = openState(priority);
+        try {
+            bindState(state);
+            try {
+                if (call == null) {
+                    runner.run();
+                    return null;
+                }
+                return call.call();
+            } finally {
+                unbindState(state);
+            }
+        } finally {
+            closeState(state);
+        }
+    }
+
+    /**
+     * Admits and opens a session without binding it to the calling thread.  Sessions which outlive the call that
+     * opens them, such as a query subscription's, are opened here and closed by {@link #closeState(SessionState)},
+     * so that they are admitted and counted like any other.
+     */
+    SessionState openState(SessionPriority priority) {
+        boolean admitted = admissionController != null && admissionController.admit(priority);
+        try {
+            SessionFactory sessionFactory = acquireSessionFactory();
+            try {
+                SessionState state = new SessionState(sessionFactory.openSession(), sessionFactory, admitted);
+                admitted = false;
+                return state;
+            } catch (RuntimeException e) {
+                releaseSessionFactory(sessionFactory);
+                throw e;
+            }
+        } finally {
+            if (admitted) {
+                admissionController.release();
+            }
+        }
+    }
+
+    /**
+     * Binds an open session to the calling thread, which must have none, and notifies the session listeners.
+     */
+    void bindState(SessionState state) {
+        if (stateLocal.get() != null) {
+            throw new SessionExistsException("Called with an existing session");
+        }
+        stateLocal.set(state);
+        try {
+            for (SessionListener sessionListener : sessionListeners) {
+                sessionListener.sessionOpened(state.session);
+            }
+        } catch (RuntimeException e) {
+            unbindState(state);
+            throw e;
+        } catch (Error e) {
+            unbindState(state);
+            throw e;
+        }
+    }
+
+    /**
+     * Notifies the session listeners that the calling thread is done with its session, and unbinds it.
+     */
+    void unbindState(SessionState state) {
+        try {
+            for (SessionListener sessionListener : sessionListeners) {
+                sessionListener.sessionClosing(state.session);
+            }
+        } finally {
+            stateLocal.remove();
+        }
+    }
+
+    /**
+     * Unbinds the calling thread's session, if any, without notifying the session listeners, so that the thread
+     * can open a session of its own until {@link #resumeState(SessionState)}.
+     */
+    SessionState suspendState() {
+        SessionState state = stateLocal.get();
+        stateLocal.remove();
+        return state;
+    }
+
+    void resumeState(SessionState state) {
+        stateLocal.set(state);
+    }
+
+    /**
+     * Closes a session opened by {@link #openState(SessionPriority)}, releasing its session factory and admission.
+     */
+    void closeState(SessionState state) {
+        try {
+            state.session.close();
+        } finally {
+            try {
+                releaseSessionFactory(state.sessionFactory);
+            } finally {
+                if (state.admitted) {
+                    admissionController.release();
+                }
+            }
+        }
     }
 
     /**
@@ -164,13 +595,7 @@ public class HibernateFacade {
      * @throws HibernateException if called in a thread that has no Session associated with it
      */
     public <T> T inTransaction(final SessionReceiver<T> receiver) throws HibernateException {
-        return inTransaction(
-                new TransactionAdapter<T>() {
-                    @Override
-                    public T receive(Session session) throws Exception {
-                        return receiver.receive(session);
-                    }
-                });
+        return inTransaction(receiver, null);
     }
 
     /**
@@ -185,88 +610,438 @@ public class HibernateFacade {
      * @throws HibernateException if called in a thread that has no Session associated with it
      */
     public <T> T inTransaction(final TransactionReceiver<T> receiver) throws HibernateException {
-        return usingSession(
-                new SessionAdapter<T>() {
-                    @Override
-                    public T receive(Session session) {
-                        Transaction transaction = txLocal.get();
-                        if (transaction == null) {
-                            transaction = session.beginTransaction();
-                            txLocal.set(transaction);
-                        } else {
-                            throw new TransactionExistsException("Current thread is already in a transaction");
-                        }
+        return inTransaction(receiver, receiver);
+    }
 
-                        T result;
-                        try {
-                            result = receiver.receive(session);
-                            receiver.preCommit(session);
-                            transaction.commit();
-                        } catch (TransactionExistsException e) {
-                            // TransactionExistsException is thrown higher up the call stack
-                            // when another call to inTransaction is made during the current
-                            // frame's call to receiver.receive(..).  We're not going to let
-                            // the receiver translate it.
-                            handleRollback(session, transaction);
-                            throw e;
-                        } catch (Exception e) {
-                            RuntimeException exception = receiver.translateException(e);
-                            handleRollback(session, transaction);
-                            throw exception;
-                        } finally {
-                            txLocal.remove();
-                        }
-                        receiver.postCommit(session);
-                        return result;
-                    }
+    /**
+     * Like {@link #inTransaction(SessionReceiver)}, but the transaction is not begun or committed once the timeout
+     * has elapsed, and when statement deadlines are enforced, no statement in it may run past the timeout.
+     *
+     * @param receiver the receiver that will be provided with the thread's open Session
+     * @param timeout  the time allowed for the transaction
+     * @param unit     the unit of timeout
+     * @param <T>      the return type of receiver.receive()
+     * @return the value of receiver.receive()
+     * @throws HibernateException if called in a thread that has no Session associated with it
+     * @throws DeadlineExceededException if the timeout elapses before the transaction commits
+     */
+    public <T> T inTransaction(final SessionReceiver<T> receiver, long timeout, TimeUnit unit) throws HibernateException {
+        SessionState state = getState();
+        boolean hadDeadline = state.hasDeadline;
+        long previousDeadline = state.deadline;
+        state.restrictDeadline(timeout, unit);
+        try {
+            return inTransaction(receiver);
+        } finally {
+            state.hasDeadline = hadDeadline;
+            state.deadline = previousDeadline;
+        }
+    }
+
+    /**
+     * Like {@link #inTransaction(TransactionReceiver)}, but the transaction is not begun or committed once the
+     * timeout has elapsed, and when statement deadlines are enforced, no statement in it may run past the timeout.
+     * A deadline already set for the calling thread is kept if it is earlier.
+     *
+     * @param receiver the receiver that will be provided with the thread's open Session
+     * @param timeout  the time allowed for the transaction
+     * @param unit     the unit of timeout
+     * @param <T>      the return type of receiver.receive()
+     * @return the value of receiver.receive()
+     * @throws HibernateException if called in a thread that has no Session associated with it
+     * @throws DeadlineExceededException if the timeout elapses before the transaction commits
+     */
+    public <T> T inTransaction(TransactionReceiver<T> receiver, long timeout, TimeUnit unit) throws HibernateException {
+        SessionState state = getState();
+        boolean hadDeadline = state.hasDeadline;
+        long previousDeadline = state.deadline;
+        state.restrictDeadline(timeout, unit);
+        try {
+            return inTransaction(receiver);
+        } finally {
+            state.hasDeadline = hadDeadline;
+            state.deadline = previousDeadline;
+        }
+    }
+
+    /**
+     * Runs receiver in a transaction, calling the transaction callbacks when they are given.  Without them, the
+     * receiver's exceptions are translated as a {@link SessionAdapter} would, which the receiver's own translation
+     * never was for plain SessionReceivers.
+     */
+    private <T> T inTransaction(SessionReceiver<T> receiver, TransactionReceiver<T> callbacks)
+            throws HibernateException {
+        SessionState state = getState();
+        if (state.transaction != null) {
+            throw new TransactionExistsException("Current thread is already in a transaction");
+        }
+        Session session = state.session;
+        Object previousReceiver = state.receiver;
+        state.receiver = receiver;
+        try {
+            state.checkDeadline("beginning a transaction");
+            Transaction transaction = session.beginTransaction();
+            state.transaction = transaction;
+            state.transactionStart = System.nanoTime();
+            if (workloadRecorder != null) {
+                workloadRecorder.transactionBegun();
+            }
+
+            boolean committed = false;
+            T result;
+            try {
+                result = receiver.receive(session);
+                if (callbacks != null) {
+                    callbacks.preCommit(session);
+                }
+                state.checkDeadline("committing");
+                transaction.commit();
+                committed = true;
+            } catch (TransactionExistsException e) {
+                // TransactionExistsException is thrown higher up the call stack
+                // when another call to inTransaction is made during the current
+                // frame's call to receiver.receive(..).  We're not going to let
+                // the receiver translate it.
+                handleRollback(session, transaction, callbacks);
+                throw e;
+            } catch (DeadlineExceededException e) {
+                // likewise, the deadline is the facade's and not the receiver's
+                handleRollback(session, transaction, callbacks);
+                throw e;
+            } catch (Exception e) {
+                RuntimeException exception = callbacks == null
+                        ? SessionAdapter.uncheck(e)
+                        : callbacks.translateException(e);
+                handleRollback(session, transaction, callbacks);
+                throw exception;
+            } finally {
+                state.transaction = null;
+                if (admissionController != null) {
+                    admissionController.transactionCompleted(System.nanoTime() - state.transactionStart);
+                }
+                if (workloadRecorder != null) {
+                    workloadRecorder.transactionCompleted(committed);
+                }
+            }
+            if (callbacks != null) {
+                callbacks.postCommit(session);
+            }
+            return result;
+        } finally {
+            state.receiver = previousReceiver;
+        }
+    }
+
+    private void handleRollback(Session session, Transaction transaction, TransactionReceiver<?> callbacks) {
+        if (callbacks == null) {
+            transaction.rollback();
+            return;
+        }
+        try {
+            callbacks.preRollback(session);
+        } finally {
+            transaction.rollback();
+        }
+        callbacks.postRollback(session);
+    }
+
+    /**
+     * Allocates an id for an entity from its mapped identifier generator, in the calling thread's session, so that
+     * it can be assigned before the entity is saved.  With a
+     * {@link org.movealong.persistence.id.BlockIdGenerator} this seldom needs a round trip.
+     *
+     * @param entityClass the class of the entity
+     * @return the id
+     * @throws HibernateException if no open session exists for the calling thread, or if the entity's ids are
+     *                            generated by the database on insert
+     */
+    public Serializable allocateId(Class<?> entityClass) throws HibernateException {
+        SessionImplementor session = (SessionImplementor) getSession();
+        Serializable id = session.getFactory().getEntityPersister(entityClass.getName())
+                .getIdentifierGenerator().generate(session, null);
+        if (id == IdentifierGeneratorFactory.POST_INSERT_INDICATOR ||
+                id == IdentifierGeneratorFactory.SHORT_CIRCUIT_INDICATOR) {
+            throw new HibernateFacadeException("Ids of " + entityClass.getName() + " are not generated before insert");
+        }
+        return id;
+    }
 
-                    private void handleRollback(Session session, Transaction transaction) {
-                        try {
-                            receiver.preRollback(session);
-                        } finally {
-                            transaction.rollback();
+    /**
+     * Runs an HQL update or delete as a single statement in the calling thread's session, with positional
+     * parameters.  See {@link #bulkUpdate(QueryBuilder)}.
+     *
+     * @param hql        the HQL update or delete statement
+     * @param parameters the values of its positional parameters
+     * @return the number of rows updated or deleted
+     * @throws HibernateException if no open session exists for the calling thread
+     */
+    public int bulkUpdate(final String hql, final Object... parameters) throws HibernateException {
+        return bulkUpdate(new QueryBuilder() {
+            @Override
+            public Query build(org.hibernate.Session session) {
+                Query query = session.createQuery(hql);
+                for (int i = 0; i < parameters.length; i++) {
+                    query.setParameter(i, parameters[i]);
+                }
+                return query;
+            }
+        });
+    }
+
+    /**
+     * Runs an HQL update or delete as a single statement in the calling thread's session, in its transaction or, if
+     * it is not in one, in a transaction of its own.  The statement bypasses the persistence context, so afterward
+     * every entity in the session that is stored in a table the statement may have written is evicted, along with
+     * the owners of any such collections, and {@link BulkOperationListener}s such as the query cache's invalidator
+     * are notified.  Hibernate evicts the same entities from the second level cache.
+     *
+     * @param queryBuilder creates the HQL update or delete in the session
+     * @return the number of rows updated or deleted
+     * @throws HibernateException if no open session exists for the calling thread
+     */
+    public int bulkUpdate(final QueryBuilder queryBuilder) throws HibernateException {
+        if (isInTransaction()) {
+            return executeBulk(getSession(), queryBuilder);
+        }
+        return inTransaction(new SessionAdapter<Integer>() {
+            @Override
+            public Integer receive(Session session) {
+                return executeBulk(session, queryBuilder);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private int executeBulk(Session session, QueryBuilder queryBuilder) {
+        Query query = queryBuilder.build(session);
+        SessionImplementor sessionImplementor = (SessionImplementor) session;
+        Set<Serializable> querySpaces = sessionImplementor.getFactory().getQueryPlanCache()
+                .getHQLQueryPlan(query.getQueryString(), false, Collections.emptyMap())
+                .getQuerySpaces();
+        int count = query.executeUpdate();
+
+        List<Object> affected = new ArrayList<Object>();
+        PersistenceContext persistenceContext = sessionImplementor.getPersistenceContext();
+        for (Map.Entry<Object, EntityEntry> entry
+                : ((Map<Object, EntityEntry>) persistenceContext.getEntityEntries()).entrySet()) {
+            if (intersects(querySpaces, entry.getValue().getPersister().getQuerySpaces())) {
+                affected.add(entry.getKey());
+            }
+        }
+        for (Map.Entry<PersistentCollection, CollectionEntry> entry
+                : ((Map<PersistentCollection, CollectionEntry>) persistenceContext.getCollectionEntries()).entrySet()) {
+            CollectionPersister persister = entry.getValue().getLoadedPersister();
+            if (persister != null && intersects(querySpaces, persister.getCollectionSpaces())
+                    && entry.getKey().getOwner() != null) {
+                affected.add(entry.getKey().getOwner());
+            }
+        }
+        for (Object entity : affected) {
+            if (session.contains(entity)) {
+                session.evict(entity);
+            }
+        }
+
+        bulkExecuted(session, querySpaces);
+        return count;
+    }
+
+    /**
+     * Notifies the {@link BulkOperationListener}s of a statement which wrote tables without entity events.
+     */
+    void bulkExecuted(Session session, Set<Serializable> querySpaces) {
+        for (BulkOperationListener bulkOperationListener : bulkOperationListeners) {
+            bulkOperationListener.bulkExecuted(session, querySpaces);
+        }
+    }
+
+    private static boolean intersects(Set<Serializable> querySpaces, Serializable[] spaces) {
+        for (Serializable space : spaces) {
+            if (querySpaces.contains(space)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Equivalent to <code>processInParallel(ids, partitionSize, parallelism, 0, factory)</code>.
+     */
+    public <I, T> PartitionedResult<I, T> processInParallel(Collection<I> ids, int partitionSize, int parallelism,
+                                                           PartitionReceiverFactory<I, T> factory) {
+        return processInParallel(ids, partitionSize, parallelism, 0, factory);
+    }
+
+    /**
+     * Splits ids into partitions and processes each partition on a pool of threads, in its own session and
+     * transaction, using a receiver created for it by factory.  A partition whose transaction fails is retried, in a
+     * new session, up to the given number of times.  The calling thread waits until every partition has committed
+     * or exhausted its retries.  The calling thread's own session, if any, is not used, but the partitions' sessions
+     * belong to the calling thread's tenant.
+     *
+     * @param ids           the ids to process
+     * @param partitionSize the maximum number of ids in each partition
+     * @param parallelism   the maximum number of partitions processed at once
+     * @param retries       the number of times a failed partition is retried
+     * @param factory       creates the receiver for each attempt at a partition
+     * @param <I>           the type of the ids
+     * @param <T>           the type of each partition's result
+     * @return the results and failures of the partitions
+     * @throws HibernateFacadeException if interrupted while waiting for the partitions
+     */
+    public <I, T> PartitionedResult<I, T> processInParallel(Collection<I> ids, int partitionSize, int parallelism,
+                                                           final int retries,
+                                                           final PartitionReceiverFactory<I, T> factory) {
+        List<I> remaining = new ArrayList<I>(ids);
+        List<List<I>> partitions = new ArrayList<List<I>>();
+        for (int i = 0; i < remaining.size(); i += partitionSize) {
+            partitions.add(Collections.unmodifiableList(
+                    new ArrayList<I>(remaining.subList(i, Math.min(remaining.size(), i + partitionSize)))));
+        }
+        PartitionedResult<I, T> result = new PartitionedResult<I, T>();
+        if (partitions.isEmpty()) {
+            return result;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(parallelism, partitions.size())), PARTITION_THREADS);
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>(partitions.size());
+            for (final List<I> partition : partitions) {
+                futures.add(executor.submit(tenantContext.wrap(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        for (int attempt = 0; ; attempt++) {
+                            try {
+                                return callInSession(new Callable<T>() {
+                                    @Override
+                                    public T call() {
+                                        return inTransaction(factory.receiverFor(partition));
+                                    }
+                                });
+                            } catch (RuntimeException e) {
+                                if (attempt >= retries) {
+                                    throw e;
+                                }
+                            }
                         }
-                        receiver.postRollback(session);
                     }
-                });
+                })));
+            }
+            for (int i = 0; i < partitions.size(); i++) {
+                try {
+                    result.succeeded(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    result.failed(partitions.get(i), e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new UndeclaredThrowableException(e.getCause()));
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HibernateFacadeException("Interrupted while processing partitions");
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
-    private SessionFactory getSessionFactory() {
-        return sessionFactoryProvider.get();
+    /**
+     * Creates a {@link Publisher} of the rows of a query, delivered as its subscribers request them.  Each
+     * subscription scrolls the query in a session of its own, independent of the calling thread's, which is opened
+     * on the subscriber's first request and closed when the rows run out, the query fails, or the subscription is
+     * cancelled.  Entities are detached once delivered, so they should be used within onNext.
+     *
+     * @param queryBuilder creates the query in each subscription's session
+     * @param <T>          the type of the rows
+     * @return the publisher
+     */
+    public <T> Publisher<T> publish(QueryBuilder queryBuilder) {
+        return new QueryPublisher<T>(this, queryBuilder);
     }
 
+    /**
+     * Equivalent to <code>iterateByKey(entityClass, null, pageSize, prefetch)</code>, which iterates in identifier
+     * order.
+     */
+    public <E> Iterator<E> iterateByKey(Class<E> entityClass, int pageSize, boolean prefetch) {
+        return iterateByKey(entityClass, null, pageSize, prefetch);
+    }
 
-    private static class CallableRunnable implements Callable<Void> {
-        private final Runnable runner;
+    /**
+     * Iterates every entity of a class in the order of a unique key, reading them in pages of the entities whose
+     * keys follow the last key of the previous page.  Unlike paging by offset, each page costs the same to read, and
+     * since each is read in a short session and transaction of its own, memory use stays flat however many entities
+     * are iterated.  Pages are read on a pool thread, so the calling thread's own session, if any, is not used.  The
+     * entities are detached, so their lazy associations cannot be loaded, and changes to them are not saved.
+     *
+     * @param entityClass the class of the entities
+     * @param keyProperty the unique, ordered property to page by, or null for the identifier
+     * @param pageSize    the number of entities read at a time
+     * @param prefetch    whether to read the next page while the current one is used
+     * @param <E>         the type of the entities
+     * @return an iterator of the entities, which does not support remove()
+     */
+    public <E> Iterator<E> iterateByKey(Class<E> entityClass, String keyProperty, int pageSize, boolean prefetch) {
+        return new KeysetIterator<E>(this, entityClass, keyProperty, pageSize, prefetch);
+    }
 
-        public CallableRunnable(Runnable runner) {
-            this.runner = runner;
-        }
+    TenantContext getTenantContext() {
+        return tenantContext;
+    }
 
-        @Override
-        public Void call() {
-            runner.run();
-            return null;
+    SessionFactory acquireSessionFactory() {
+        return leasingSessionFactoryProvider == null
+                ? sessionFactoryProvider.get()
+                : leasingSessionFactoryProvider.acquire();
+    }
+
+    void releaseSessionFactory(SessionFactory sessionFactory) {
+        if (leasingSessionFactoryProvider != null) {
+            leasingSessionFactoryProvider.release(sessionFactory);
         }
     }
 
-    private static class RunnableCallable implements Runnable {
-        private final Callable<Void> call;
 
-        public RunnableCallable(Callable<Void> call) {
-            this.call = call;
+    /**
+     * Everything the facade tracks for a thread's session, kept together so that opening a session sets one
+     * thread local rather than several.
+     */
+    static class SessionState {
+        private final Session session;
+        private final SessionFactory sessionFactory;
+        private final boolean admitted;
+        private Transaction transaction;
+        private long transactionStart;
+        private Object receiver;
+        private List<Synchronization> scope;
+        private boolean hasDeadline;
+        private long deadline;
+
+        private SessionState(Session session, SessionFactory sessionFactory, boolean admitted) {
+            this.session = session;
+            this.sessionFactory = sessionFactory;
+            this.admitted = admitted;
         }
 
-        @Override
-        public void run() {
-            try {
-                call.call();
-            } catch (RuntimeException e) {
-                throw e;
-            } catch (Error e) {
-                throw e;
-            } catch (Exception e) {
-                throw new UndeclaredThrowableException(e);
+        Session getSession() {
+            return session;
+        }
+
+        private void restrictDeadline(long timeout, TimeUnit unit) {
+            long restricted = System.nanoTime() + unit.toNanos(timeout);
+            if (!hasDeadline || restricted - deadline < 0) {
+                hasDeadline = true;
+                deadline = restricted;
+            }
+        }
+
+        private void checkDeadline(String work) {
+            if (hasDeadline && deadline - System.nanoTime() <= 0) {
+                throw new DeadlineExceededException("The deadline passed before " + work);
             }
         }
     }
@@ -0,0 +1,88 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Releases what the facade's components hold beyond the lifetime of their injector: the threads of each
+ * {@link BackgroundService} and the beans published by {@link ManagementBeans}.  {@link HibernateFacadeModule}
+ * enrolls each component as the injector creates it, so only the components that were used are stopped.</p>
+ *
+ * <p>An application which discards an injector, or ends without exiting the JVM, should call
+ * {@link #shutdown(long, TimeUnit)} first.  Otherwise work queued in the background may be lost, and the injector's
+ * beans remain published, so that a later injector cannot publish its own under the same names.</p>
+ */
+@Singleton
+public class HibernateFacadeLifecycle {
+    private static final Logger log = LoggerFactory.getLogger(HibernateFacadeLifecycle.class);
+
+    private final ManagementBeans managementBeans;
+    private final List<BackgroundService> services = new ArrayList<BackgroundService>();
+
+    @Inject
+    public HibernateFacadeLifecycle(ManagementBeans managementBeans) {
+        this.managementBeans = managementBeans;
+    }
+
+    /**
+     * Stops every background service, in the reverse of the order in which they were created, and then withdraws
+     * the published management beans.  The beans are withdrawn even if a service does not stop in time.
+     *
+     * @param timeout the maximum time to wait for all of the services together
+     * @param unit    the unit of timeout
+     * @return true if every service stopped within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        List<BackgroundService> services;
+        synchronized (this.services) {
+            services = new ArrayList<BackgroundService>(this.services);
+            this.services.clear();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean stopped = true;
+        try {
+            for (int i = services.size() - 1; i >= 0; i--) {
+                BackgroundService service = services.get(i);
+                if (!service.shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    log.warn("{} did not stop within {}ms", service, unit.toMillis(timeout));
+                    stopped = false;
+                }
+            }
+        } finally {
+            managementBeans.unregister();
+        }
+        return stopped;
+    }
+
+    void started(BackgroundService service) {
+        synchronized (services) {
+            services.add(service);
+        }
+    }
+}
@@ -21,24 +21,243 @@ package org.movealong.persistence;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Binder;
+import com.google.inject.Provider;
+import com.google.inject.TypeLiteral;
+import com.google.inject.matcher.Matchers;
 import com.google.inject.multibindings.Multibinder;
 import com.google.inject.name.Names;
+import com.google.inject.spi.InjectionListener;
+import com.google.inject.spi.TypeEncounter;
+import com.google.inject.spi.TypeListener;
 import org.hibernate.SessionFactory;
+import org.movealong.persistence.cache.QueryCache;
+import org.movealong.persistence.cache.QueryCacheInvalidator;
+import org.movealong.persistence.changes.EntityChangeCollector;
+import org.movealong.persistence.changes.EntityChangeFeed;
+import org.movealong.persistence.changes.EntityChangeSubscriber;
+import org.movealong.persistence.jdbc.StatementInterceptor;
+import org.movealong.persistence.jdbc.StatementListener;
+import org.movealong.persistence.pool.ConnectionPoolCustomizer;
 import org.movealong.persistence.servlet.HibernateFacadeFilter;
+import org.movealong.persistence.stats.RepeatedStatementDetector;
+import org.movealong.persistence.stats.SessionMetricsCollector;
+import org.movealong.persistence.stats.SlowQueryLog;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Creates Guice bindings for a HibernateFacade using a Hibernate SessionFactory configured using the named XML
- * configuration file.
+ * configuration file.  Components are published through JMX by {@link ManagementBeans}, and background services
+ * enrolled for {@link HibernateFacadeLifecycle#shutdown(long, TimeUnit)}, as the injector creates them.
  */
 public class HibernateFacadeModule extends AbstractModule {
     @Override
     protected void configure() {
         bind(SessionFactory.class).toProvider(XmlSessionFactoryProvider.class);
+        bind(LeasingSessionFactoryProvider.class).to(XmlSessionFactoryProvider.class);
+        Multibinder.newSetBinder(binder(), ConfigurationCustomizer.class);
+        Multibinder.newSetBinder(binder(), SessionListener.class);
+        Multibinder.newSetBinder(binder(), BulkOperationListener.class);
+        Multibinder.newSetBinder(binder(), StatementInterceptor.class);
+        Multibinder.newSetBinder(binder(), StatementListener.class);
         requestStaticInjection(HibernateFacadeFilter.class);
+
+        PersistenceMethodInterceptor interceptor = new PersistenceMethodInterceptor();
+        requestInjection(interceptor);
+        bindInterceptor(Matchers.any(), interceptor.methods(), interceptor);
+
+        bindListener(Matchers.any(), new TypeListener() {
+            @Override
+            public <I> void hear(TypeLiteral<I> type, TypeEncounter<I> encounter) {
+                final String beanType = ManagementBeans.typeOf(type.getRawType());
+                final boolean service = BackgroundService.class.isAssignableFrom(type.getRawType());
+                if (beanType == null && !service) {
+                    return;
+                }
+                final Provider<ManagementBeans> managementBeans = encounter.getProvider(ManagementBeans.class);
+                final Provider<HibernateFacadeLifecycle> lifecycle =
+                        encounter.getProvider(HibernateFacadeLifecycle.class);
+                encounter.register(new InjectionListener<I>() {
+                    @Override
+                    public void afterInjection(I injectee) {
+                        if (beanType != null) {
+                            managementBeans.get().register(beanType, injectee);
+                        }
+                        if (service) {
+                            lifecycle.get().started((BackgroundService) injectee);
+                        }
+                    }
+                });
+            }
+        });
     }
 
     public static void addXmlConfigurationResource(Binder binder, String configurationFile) {
         Multibinder.newSetBinder(binder, String.class, Names.named(XmlSessionFactoryProvider.DEFAULT_CONFIGURATION_FILE))
                 .addBinding().toInstance(configurationFile);
     }
+
+    public static void addConfigurationCustomizer(Binder binder, Class<? extends ConfigurationCustomizer> customizer) {
+        Multibinder.newSetBinder(binder, ConfigurationCustomizer.class).addBinding().to(customizer);
+    }
+
+    public static void addSessionListener(Binder binder, Class<? extends SessionListener> listener) {
+        Multibinder.newSetBinder(binder, SessionListener.class).addBinding().to(listener);
+    }
+
+    public static void addBulkOperationListener(Binder binder, Class<? extends BulkOperationListener> listener) {
+        Multibinder.newSetBinder(binder, BulkOperationListener.class).addBinding().to(listener);
+    }
+
+    public static void addStatementInterceptor(Binder binder, Class<? extends StatementInterceptor> interceptor) {
+        Multibinder.newSetBinder(binder, StatementInterceptor.class).addBinding().to(interceptor);
+    }
+
+    public static void addStatementListener(Binder binder, Class<? extends StatementListener> listener) {
+        Multibinder.newSetBinder(binder, StatementListener.class).addBinding().to(listener);
+    }
+
+    /**
+     * Sizes the connection pool for the given number of sessions, without limiting the number of open sessions.
+     * Use {@link #limitSessions(Binder, int, long, TimeUnit)} to limit them as well.
+     */
+    public static void setMaximumSessions(Binder binder, int maximumSessions) {
+        binder.bindConstant().annotatedWith(Names.named(HibernateFacade.MAXIMUM_SESSIONS)).to(maximumSessions);
+    }
+
+    public static void limitSessions(Binder binder, int maximumSessions, long queueTimeout, TimeUnit unit) {
+        setMaximumSessions(binder, maximumSessions);
+        binder.bindConstant().annotatedWith(Names.named(AdmissionController.QUEUE_TIMEOUT))
+                .to(unit.toMillis(queueTimeout));
+        binder.bind(AdmissionController.class).annotatedWith(Installed.class).to(AdmissionController.class);
+    }
+
+    public static void limitSessionsAdaptively(Binder binder, int minimumSessions, int maximumSessions,
+                                               long latencyTarget, long queueTimeout, TimeUnit unit) {
+        limitSessions(binder, maximumSessions, queueTimeout, unit);
+        binder.bindConstant().annotatedWith(Names.named(AdmissionController.MINIMUM_SESSIONS)).to(minimumSessions);
+        binder.bindConstant().annotatedWith(Names.named(AdmissionController.LATENCY_TARGET))
+                .to(unit.toMillis(latencyTarget));
+    }
+
+    public static void usePooledConnections(Binder binder, long acquireTimeout, TimeUnit unit) {
+        binder.bindConstant().annotatedWith(Names.named(ConnectionPoolCustomizer.ACQUIRE_TIMEOUT))
+                .to(unit.toMillis(acquireTimeout));
+        addConfigurationCustomizer(binder, ConnectionPoolCustomizer.class);
+    }
+
+    public static void usePooledConnections(Binder binder, long acquireTimeout, TimeUnit unit, int headroom) {
+        usePooledConnections(binder, acquireTimeout, unit);
+        binder.bindConstant().annotatedWith(Names.named(ConnectionPoolCustomizer.HEADROOM)).to(headroom);
+    }
+
+    public static void useQueryCache(Binder binder, long maximumWeight) {
+        binder.bindConstant().annotatedWith(Names.named(QueryCache.MAXIMUM_WEIGHT)).to(maximumWeight);
+        addConfigurationCustomizer(binder, QueryCacheInvalidator.class);
+        addBulkOperationListener(binder, QueryCacheInvalidator.class);
+    }
+
+    public static void configurePostCommitExecutor(Binder binder, int threads, int queueCapacity) {
+        binder.bindConstant().annotatedWith(Names.named(PostCommitExecutor.THREADS)).to(threads);
+        binder.bindConstant().annotatedWith(Names.named(PostCommitExecutor.QUEUE_CAPACITY)).to(queueCapacity);
+    }
+
+    public static void configureCoalescingCounters(Binder binder, long interval, TimeUnit unit, long maximumPending) {
+        binder.bindConstant().annotatedWith(Names.named(CoalescingCounters.INTERVAL)).to(unit.toMillis(interval));
+        binder.bindConstant().annotatedWith(Names.named(CoalescingCounters.MAXIMUM_PENDING)).to(maximumPending);
+    }
+
+    public static void configureTransactionCache(Binder binder, int sharedSize) {
+        binder.bindConstant().annotatedWith(Names.named(TransactionCache.SHARED_SIZE)).to(sharedSize);
+    }
+
+    public static void useGroupCommit(Binder binder, long window, TimeUnit unit, int maximumBatchSize) {
+        binder.bindConstant().annotatedWith(Names.named(GroupCommitter.WINDOW)).to(unit.toMicros(window));
+        binder.bindConstant().annotatedWith(Names.named(GroupCommitter.MAXIMUM_BATCH_SIZE)).to(maximumBatchSize);
+    }
+
+    public static void useGroupCommit(Binder binder, long window, TimeUnit unit, int maximumBatchSize,
+                                      long waitTimeout, TimeUnit waitUnit) {
+        useGroupCommit(binder, window, unit, maximumBatchSize);
+        binder.bindConstant().annotatedWith(Names.named(GroupCommitter.WAIT_TIMEOUT))
+                .to(waitUnit.toMillis(waitTimeout));
+    }
+
+    public static void enforceStatementDeadlines(Binder binder) {
+        addStatementInterceptor(binder, DeadlineInterceptor.class);
+    }
+
+    public static void guardPersistenceContext(Binder binder, int warningThreshold) {
+        binder.bindConstant().annotatedWith(Names.named(PersistenceContextGuard.WARNING_THRESHOLD))
+                .to(warningThreshold);
+        addSessionListener(binder, PersistenceContextGuard.class);
+        addConfigurationCustomizer(binder, PersistenceContextGuard.class);
+        binder.bind(PersistenceContextGuard.class).annotatedWith(Installed.class).to(PersistenceContextGuard.class);
+    }
+
+    public static void guardPersistenceContext(Binder binder, int warningThreshold, int clearThreshold) {
+        binder.bindConstant().annotatedWith(Names.named(PersistenceContextGuard.CLEAR_THRESHOLD)).to(clearThreshold);
+        guardPersistenceContext(binder, warningThreshold);
+    }
+
+    public static void collectSessionMetrics(Binder binder, int statementThreshold, long jdbcTimeThreshold, TimeUnit unit) {
+        binder.bindConstant().annotatedWith(Names.named(SessionMetricsCollector.STATEMENT_THRESHOLD))
+                .to(statementThreshold);
+        binder.bindConstant().annotatedWith(Names.named(SessionMetricsCollector.JDBC_TIME_THRESHOLD))
+                .to(unit.toMillis(jdbcTimeThreshold));
+        addSessionListener(binder, SessionMetricsCollector.class);
+        addStatementListener(binder, SessionMetricsCollector.class);
+        addConfigurationCustomizer(binder, SessionMetricsCollector.class);
+        binder.bind(SessionMetricsCollector.class).annotatedWith(Installed.class).to(SessionMetricsCollector.class);
+    }
+
+    public static void detectRepeatedStatements(Binder binder, int threshold, boolean fail) {
+        binder.bindConstant().annotatedWith(Names.named(RepeatedStatementDetector.THRESHOLD)).to(threshold);
+        binder.bindConstant().annotatedWith(Names.named(RepeatedStatementDetector.FAIL)).to(fail);
+        addSessionListener(binder, RepeatedStatementDetector.class);
+        addStatementListener(binder, RepeatedStatementDetector.class);
+    }
+
+    public static void logSlowQueries(Binder binder, long threshold, TimeUnit unit, int tableSize,
+                                      boolean redactParameters) {
+        binder.bindConstant().annotatedWith(Names.named(SlowQueryLog.THRESHOLD)).to(unit.toMillis(threshold));
+        binder.bindConstant().annotatedWith(Names.named(SlowQueryLog.TABLE_SIZE)).to(tableSize);
+        binder.bindConstant().annotatedWith(Names.named(SlowQueryLog.REDACT_PARAMETERS)).to(redactParameters);
+        addStatementListener(binder, SlowQueryLog.class);
+    }
+
+    public static void useEntityChangeFeed(Binder binder, int ringSize) {
+        binder.bindConstant().annotatedWith(Names.named(EntityChangeFeed.RING_SIZE)).to(ringSize);
+        Multibinder.newSetBinder(binder, EntityChangeSubscriber.class);
+        addConfigurationCustomizer(binder, EntityChangeCollector.class);
+    }
+
+    public static void addEntityChangeSubscriber(Binder binder, Class<? extends EntityChangeSubscriber> subscriber) {
+        Multibinder.newSetBinder(binder, EntityChangeSubscriber.class).addBinding().to(subscriber);
+    }
+
+    public static void useTenantSessionFactories(Binder binder, Class<? extends TenantResolver> tenantResolver,
+                                                 int maximumFactories) {
+        binder.bind(TenantResolver.class).to(tenantResolver);
+        binder.bindConstant().annotatedWith(Names.named(XmlSessionFactoryProvider.MAXIMUM_TENANT_FACTORIES))
+                .to(maximumFactories);
+    }
+
+    public static void recordWorkload(Binder binder, File recordingFile, boolean anonymize) {
+        binder.bind(File.class).annotatedWith(Names.named(WorkloadRecorder.RECORDING_FILE)).toInstance(recordingFile);
+        binder.bindConstant().annotatedWith(Names.named(WorkloadRecorder.ANONYMIZE)).to(anonymize);
+        addSessionListener(binder, WorkloadRecorder.class);
+        addStatementListener(binder, WorkloadRecorder.class);
+        binder.bind(WorkloadRecorder.class).annotatedWith(Installed.class).to(WorkloadRecorder.class);
+    }
+
+    public static void setManagementBeanInstance(Binder binder, String instance) {
+        binder.bindConstant().annotatedWith(Names.named(ManagementBeans.INSTANCE)).to(instance);
+    }
+
+    public static void setConfigurationCacheFile(Binder binder, File configurationCacheFile) {
+        binder.bind(File.class).annotatedWith(Names.named(XmlSessionFactoryProvider.CONFIGURATION_CACHE_FILE))
+                .toInstance(configurationCacheFile);
+    }
 }
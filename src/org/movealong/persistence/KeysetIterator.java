@@ -0,0 +1,193 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import org.hibernate.EntityMode;
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
+import org.hibernate.classic.Session;
+import org.hibernate.metadata.ClassMetadata;
+
+import java.io.Serializable;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Iterates the entities of a class in pages ordered by a unique key, each page read in a session and transaction of
+ * its own by a query for the entities with keys greater than the last key of the previous page.  Pages are read on
+ * a pool thread, as the tenant of the thread which created the iterator, so the calling thread may have a session of
+ * its own, and when prefetching, the next page is read while the current one is used.
+ *
+ * @see HibernateFacade#iterateByKey(Class, String, int, boolean)
+ */
+class KeysetIterator<E> implements Iterator<E> {
+    private static final ExecutorService PAGE_READERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "hibernate-fu-keyset-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final HibernateFacade hibernateFacade;
+    private final Class<E> entityClass;
+    private final String keyProperty;
+    private final int pageSize;
+    private final boolean prefetch;
+    private final String tenant;
+    private Iterator<E> page = Collections.<E>emptyList().iterator();
+    private Future<Page<E>> nextPage;
+    private Object lastKey;
+    private boolean exhausted;
+
+    KeysetIterator(HibernateFacade hibernateFacade, Class<E> entityClass, String keyProperty, int pageSize,
+                   boolean prefetch) {
+        this.hibernateFacade = hibernateFacade;
+        this.entityClass = entityClass;
+        this.keyProperty = keyProperty;
+        this.pageSize = pageSize;
+        this.prefetch = prefetch;
+        this.tenant = hibernateFacade.getTenantContext().currentTenant();
+        if (prefetch) {
+            nextPage = read(null);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext()) {
+            if (exhausted) {
+                return false;
+            }
+            Page<E> read = await(nextPage == null ? read(lastKey) : nextPage);
+            nextPage = null;
+            page = read.entities.iterator();
+            lastKey = read.lastKey;
+            exhausted = read.entities.size() < pageSize;
+            if (prefetch && !exhausted) {
+                nextPage = read(lastKey);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public E next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Entities are read in sessions which are already closed");
+    }
+
+    private Future<Page<E>> read(final Object after) {
+        return PAGE_READERS.submit(new Callable<Page<E>>() {
+            @Override
+            public Page<E> call() throws Exception {
+                return hibernateFacade.getTenantContext().callAs(tenant, new Callable<Page<E>>() {
+                    @Override
+                    public Page<E> call() throws Exception {
+                        return readInSession(after);
+                    }
+                });
+            }
+        });
+    }
+
+    private Page<E> readInSession(final Object after) throws Exception {
+        return hibernateFacade.callInSession(new Callable<Page<E>>() {
+            @Override
+            public Page<E> call() {
+                return hibernateFacade.inTransaction(new SessionAdapter<Page<E>>() {
+                    @Override
+                    public Page<E> receive(Session session) {
+                        return readPage(session, after);
+                    }
+                });
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Page<E> readPage(Session session, Object after) {
+        session.setFlushMode(FlushMode.MANUAL);
+        ClassMetadata metadata = session.getSessionFactory().getClassMetadata(entityClass);
+        String key = keyProperty == null ? metadata.getIdentifierPropertyName() : keyProperty;
+        Query query = session.createQuery("from " + entityClass.getName() + " e" +
+                (after == null ? "" : " where e." + key + " > :last") +
+                " order by e." + key);
+        if (after != null) {
+            query.setParameter("last", after);
+        }
+        List<E> entities = query.setMaxResults(pageSize).list();
+        if (entities.isEmpty()) {
+            return new Page<E>(entities, after);
+        }
+        E last = entities.get(entities.size() - 1);
+        Serializable lastKey = key.equals(metadata.getIdentifierPropertyName())
+                ? metadata.getIdentifier(last, EntityMode.POJO)
+                : (Serializable) metadata.getPropertyValue(last, key, EntityMode.POJO);
+        return new Page<E>(entities, lastKey);
+    }
+
+    private static <E> Page<E> await(Future<Page<E>> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HibernateFacadeException("Interrupted while reading a page");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new UndeclaredThrowableException(e.getCause());
+        }
+    }
+
+    private static class Page<E> {
+        private final List<E> entities;
+        private final Object lastKey;
+
+        public Page(List<E> entities, Object lastKey) {
+            this.entities = entities;
+            this.lastKey = lastKey;
+        }
+    }
+}
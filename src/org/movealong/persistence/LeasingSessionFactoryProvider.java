@@ -0,0 +1,47 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Provider;
+import org.hibernate.SessionFactory;
+
+/**
+ * A {@link Provider} of {@link SessionFactory} instances which knows how many sessions are open against each
+ * SessionFactory that it provides.  This allows the provider to replace or discard a SessionFactory while it is in
+ * use and to close it only after the sessions that were opened from it have been closed.  {@link HibernateFacade}
+ * acquires a SessionFactory from a LeasingSessionFactoryProvider for every session it opens when one is bound.
+ */
+public interface LeasingSessionFactoryProvider extends Provider<SessionFactory> {
+    /**
+     * Provides the current SessionFactory and counts one session as in flight against it.  Every call must be
+     * balanced by a call to {@link #release(SessionFactory)} once the session is closed.
+     *
+     * @return the current SessionFactory
+     */
+    SessionFactory acquire();
+
+    /**
+     * Ends an in flight session against a SessionFactory returned from {@link #acquire()}.  If the SessionFactory
+     * has since been replaced and this was its last session, it is closed.
+     *
+     * @param sessionFactory the SessionFactory returned from acquire()
+     */
+    void release(SessionFactory sessionFactory);
+}
@@ -0,0 +1,132 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * <p>Publishes the facade's statistics beans through JMX.  {@link HibernateFacadeModule} registers each component
+ * which implements an MXBean interface as the injector creates it, with the platform MBean server, as
+ * <code>org.movealong.persistence:type=<i>type</i></code>, where the type is the name of the MXBean interface
+ * without its <code>MXBean</code> suffix.  Components of optional features are created, and so published, only
+ * when the feature is configured.</p>
+ *
+ * <p>Beans are published per injector.  A bean already registered under a name, by another injector, is never
+ * replaced; the later bean is not published, unless {@link #INSTANCE} is bound to a name distinguishing the
+ * injector, which is then added to the object names of its beans as the <code>instance</code> key.  Beans are
+ * withdrawn by {@link HibernateFacadeLifecycle#shutdown(long, java.util.concurrent.TimeUnit)}.</p>
+ */
+@Singleton
+public class ManagementBeans {
+    private static final Logger log = LoggerFactory.getLogger(ManagementBeans.class);
+
+    /**
+     * The JMX domain of the facade's statistics beans.
+     */
+    public static final String DOMAIN = "org.movealong.persistence";
+
+    /**
+     * The binding name of the instance key added to the object names of the injector's beans.
+     */
+    public static final String INSTANCE = "org.movealong.persistence.jmx.instance";
+
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+    private String instance;
+
+    @Inject(optional = true)
+    public void setInstance(@Named(INSTANCE) String instance) {
+        this.instance = instance;
+    }
+
+    /**
+     * @param beanClass the class of a component
+     * @return the type under which the component is published, or null if it implements no MXBean interface
+     */
+    static String typeOf(Class<?> beanClass) {
+        for (Class<?> type = beanClass; type != null; type = type.getSuperclass()) {
+            for (Class<?> beanInterface : type.getInterfaces()) {
+                String name = beanInterface.getSimpleName();
+                if (name.endsWith("MXBean")) {
+                    return name.substring(0, name.length() - "MXBean".length());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers an MXBean.  Failure to register is logged rather than thrown; statistics are never worth failing
+     * over.
+     *
+     * @param type the value of the type key in the bean's object name
+     * @param bean an object implementing an MXBean interface
+     */
+    void register(String type, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Hashtable<String, String> keys = new Hashtable<String, String>();
+            keys.put("type", type);
+            if (instance != null) {
+                keys.put("instance", instance);
+            }
+            ObjectName name = new ObjectName(DOMAIN, keys);
+            synchronized (ManagementBeans.class) {
+                if (server.isRegistered(name)) {
+                    log.info("Not publishing {} since another injector's bean is registered as {}", bean, name);
+                    return;
+                }
+                server.registerMBean(bean, name);
+            }
+            synchronized (registered) {
+                registered.add(name);
+            }
+        } catch (Exception e) {
+            log.warn("Unable to register " + type + " management bean", e);
+        }
+    }
+
+    /**
+     * Withdraws every bean registered by this injector.
+     */
+    void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (registered) {
+            for (ObjectName name : registered) {
+                try {
+                    server.unregisterMBean(name);
+                } catch (Exception e) {
+                    log.warn("Unable to unregister management bean " + name, e);
+                }
+            }
+            registered.clear();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import java.util.List;
+
+/**
+ * Creates the {@link TransactionReceiver} which processes one partition of the ids passed to
+ * {@link HibernateFacade#processInParallel(java.util.Collection, int, int, int, PartitionReceiverFactory)}.  A new
+ * receiver is created for each attempt at a partition, so receivers may keep state without it leaking into a retry.
+ * The factory is called concurrently from several threads.
+ *
+ * @param <I> the type of the ids
+ * @param <T> the type of each partition's result
+ */
+public interface PartitionReceiverFactory<I, T> {
+    /**
+     * @param partition the ids of the partition
+     * @return a receiver which processes the partition
+     */
+    TransactionReceiver<T> receiverFor(List<I> partition);
+}
@@ -0,0 +1,79 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The aggregated outcome of
+ * {@link HibernateFacade#processInParallel(java.util.Collection, int, int, int, PartitionReceiverFactory)}: the
+ * result of each partition that committed, and the exception of each partition that failed every attempt.
+ *
+ * @param <I> the type of the ids
+ * @param <T> the type of each partition's result
+ */
+public class PartitionedResult<I, T> {
+    private final List<T> results = new ArrayList<T>();
+    private final Map<List<I>, RuntimeException> failures = new LinkedHashMap<List<I>, RuntimeException>();
+
+    void succeeded(T result) {
+        results.add(result);
+    }
+
+    void failed(List<I> partition, RuntimeException failure) {
+        failures.put(partition, failure);
+    }
+
+    /**
+     * @return true if every partition committed
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * @return the results of the partitions that committed, in the order of their partitions
+     */
+    public List<T> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * @return the final exception of each partition that failed, keyed by the partition's ids, in partition order
+     */
+    public Map<List<I>, RuntimeException> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return the ids of every partition that failed
+     */
+    public List<I> getFailedIds() {
+        List<I> ids = new ArrayList<I>();
+        for (List<I> partition : failures.keySet()) {
+            ids.addAll(partition);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.event.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.movealong.persistence.EventListenerSupport.append;
+
+/**
+ * <p>Watches the number of entities and collections held in each session's persistence context.  The size is
+ * checked as entities are loaded and inserted and as the session is flushed, and a warning is logged, once per
+ * session, when it passes the warning threshold.  The peak size of each session is published through JMX as
+ * <code>org.movealong.persistence:type=PersistenceContextGuard</code>.</p>
+ *
+ * <p>When a clear threshold is bound, a session larger than the threshold is cleared at the next call to
+ * {@link HibernateFacade#checkpoint()}.  Within a transaction the session is flushed first.  Outside one, a session
+ * holding unflushed changes is left alone, since they could be neither flushed nor discarded safely.  Entities loaded
+ * before a checkpoint may become detached by it, so clearing is suited to batch work which holds no references
+ * across checkpoints.</p>
+ */
+@Singleton
+public class PersistenceContextGuard implements PersistenceContextGuardMXBean, SessionListener,
+        ConfigurationCustomizer, PostLoadEventListener, PostInsertEventListener, FlushEventListener {
+    /**
+     * The binding name of the size above which a session's persistence context is logged.
+     */
+    public static final String WARNING_THRESHOLD = "org.movealong.persistence.persistenceContext.warningThreshold";
+
+    /**
+     * The binding name of the size above which a session's persistence context is cleared at checkpoints.
+     */
+    public static final String CLEAR_THRESHOLD = "org.movealong.persistence.persistenceContext.clearThreshold";
+
+    private static final Logger log = LoggerFactory.getLogger(PersistenceContextGuard.class);
+
+    private final transient Provider<HibernateFacade> hibernateFacade;
+    private final transient ThreadLocal<Peak> peaks = new ThreadLocal<Peak>();
+    private final AtomicInteger maximumPeakSize = new AtomicInteger();
+    private final AtomicLong peakSizeTotal = new AtomicLong();
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong warnings = new AtomicLong();
+    private final AtomicLong clears = new AtomicLong();
+    private int warningThreshold = Integer.MAX_VALUE;
+    private int clearThreshold = Integer.MAX_VALUE;
+
+    @Inject
+    public PersistenceContextGuard(Provider<HibernateFacade> hibernateFacade) {
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    @Inject(optional = true)
+    public void setWarningThreshold(@Named(WARNING_THRESHOLD) int warningThreshold) {
+        this.warningThreshold = warningThreshold;
+    }
+
+    @Inject(optional = true)
+    public void setClearThreshold(@Named(CLEAR_THRESHOLD) int clearThreshold) {
+        this.clearThreshold = clearThreshold;
+    }
+
+    /**
+     * @return the largest size reached by the calling thread's session so far, or 0 if it is not being watched
+     */
+    public int getCurrentPeakSize() {
+        Peak peak = peaks.get();
+        return peak == null ? 0 : peak.size;
+    }
+
+    @Override
+    public void customize(AnnotationConfiguration configuration) {
+        EventListeners listeners = configuration.getEventListeners();
+        listeners.setPostLoadEventListeners(append(listeners.getPostLoadEventListeners(), this));
+        listeners.setPostInsertEventListeners(append(listeners.getPostInsertEventListeners(), this));
+        listeners.setFlushEventListeners(append(listeners.getFlushEventListeners(), this));
+    }
+
+    @Override
+    public void sessionOpened(org.hibernate.classic.Session session) {
+        peaks.set(new Peak());
+    }
+
+    @Override
+    public void sessionClosing(org.hibernate.classic.Session session) {
+        Peak peak = peaks.get();
+        peaks.remove();
+        if (peak != null) {
+            sessions.incrementAndGet();
+            peakSizeTotal.addAndGet(peak.size);
+            int maximum;
+            do {
+                maximum = maximumPeakSize.get();
+            } while (peak.size > maximum && !maximumPeakSize.compareAndSet(maximum, peak.size));
+        }
+    }
+
+    /**
+     * Clears the session if it has grown past the clear threshold, flushing it first if it is in a transaction.
+     *
+     * @param session       the calling thread's session
+     * @param inTransaction true if the session is in a transaction
+     */
+    void checkpoint(Session session, boolean inTransaction) {
+        if (clearThreshold == Integer.MAX_VALUE || !(session instanceof SessionImplementor)) {
+            return;
+        }
+        if (observe((SessionImplementor) session) > clearThreshold) {
+            if (inTransaction) {
+                session.flush();
+            } else if (session.isDirty()) {
+                log.debug("Not clearing a session with unflushed changes outside of a transaction");
+                return;
+            }
+            session.clear();
+            clears.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onPostLoad(PostLoadEvent event) {
+        observe(event.getSession());
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        observe(event.getSession());
+    }
+
+    @Override
+    public void onFlush(FlushEvent event) throws HibernateException {
+        observe(event.getSession());
+    }
+
+    private int observe(SessionImplementor session) {
+        Peak peak = peaks.get();
+        if (peak == null) {
+            return 0;
+        }
+        PersistenceContext context = session.getPersistenceContext();
+        int size = context.getEntityEntries().size() + context.getCollectionEntries().size();
+        if (size > peak.size) {
+            peak.size = size;
+        }
+        if (size > warningThreshold && !peak.warned) {
+            peak.warned = true;
+            warnings.incrementAndGet();
+            Class<?> receiverClass = hibernateFacade.get().getReceiverClass();
+            log.warn("Persistence context of the session on {} has grown to {} entities and collections, in {}",
+                    new Object[]{Thread.currentThread().getName(), size,
+                            receiverClass == null ? "no receiver" : receiverClass.getName()});
+        }
+        return size;
+    }
+
+    @Override
+    public int getMaximumPeakSize() {
+        return maximumPeakSize.get();
+    }
+
+    @Override
+    public double getAveragePeakSize() {
+        long count = sessions.get();
+        return count == 0 ? 0.0 : (double) peakSizeTotal.get() / count;
+    }
+
+    @Override
+    public long getWarningCount() {
+        return warnings.get();
+    }
+
+    @Override
+    public long getClearCount() {
+        return clears.get();
+    }
+
+    @Override
+    public void reset() {
+        maximumPeakSize.set(0);
+        peakSizeTotal.set(0);
+        sessions.set(0);
+        warnings.set(0);
+        clears.set(0);
+    }
+
+    private static class Peak {
+        private int size;
+        private boolean warned;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+/**
+ * The JMX view of the {@link PersistenceContextGuard}.
+ */
+public interface PersistenceContextGuardMXBean {
+    /**
+     * @return the largest number of entities and collections held at once by any session
+     */
+    int getMaximumPeakSize();
+
+    /**
+     * @return the mean, over closed sessions, of the largest number of entities and collections each held at once
+     */
+    double getAveragePeakSize();
+
+    /**
+     * @return the number of sessions which grew past the warning threshold
+     */
+    long getWarningCount();
+
+    /**
+     * @return the number of times a session was cleared at a checkpoint
+     */
+    long getClearCount();
+
+    void reset();
+}
@@ -0,0 +1,197 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.matcher.AbstractMatcher;
+import com.google.inject.matcher.Matcher;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.classic.Session;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs methods annotated with {@link InSession} and {@link Transactional} in a session and transaction.  The
+ * {@link #methods()} matcher records the settings of each Transactional method as Guice binds it, so that a call
+ * only looks them up.
+ */
+class PersistenceMethodInterceptor implements MethodInterceptor {
+    private final ConcurrentMap<Method, Transactional> settings = new ConcurrentHashMap<Method, Transactional>();
+    private Provider<HibernateFacade> hibernateFacadeProvider;
+
+    @Inject
+    public void setHibernateFacadeProvider(Provider<HibernateFacade> hibernateFacadeProvider) {
+        this.hibernateFacadeProvider = hibernateFacadeProvider;
+    }
+
+    /**
+     * @return a matcher of the methods to intercept
+     */
+    Matcher<Method> methods() {
+        return new AbstractMatcher<Method>() {
+            @Override
+            public boolean matches(Method method) {
+                Transactional transactional = method.getAnnotation(Transactional.class);
+                if (transactional != null) {
+                    settings.put(method, transactional);
+                    return true;
+                }
+                return method.isAnnotationPresent(InSession.class);
+            }
+        };
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        HibernateFacade hibernate = hibernateFacadeProvider.get();
+        Transactional transactional = settings.get(invocation.getMethod());
+        if (transactional == null) {
+            transactional = invocation.getMethod().getAnnotation(Transactional.class);
+        }
+        if (hibernate.isInTransaction()) {
+            return invocation.proceed();
+        }
+        if (transactional != null && transactional.propagation() == Transactional.Propagation.MANDATORY) {
+            throw new NoTransactionException(invocation.getMethod() + " must be called in a transaction");
+        }
+        if (transactional != null && transactional.propagation() == Transactional.Propagation.SUPPORTS) {
+            transactional = null;
+        }
+
+        if (hibernate.hasSession()) {
+            return new Call(hibernate, invocation, transactional).proceed();
+        }
+        int retries = transactional == null ? 0 : transactional.retries();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return hibernate.callInSession(new Call(hibernate, invocation, transactional));
+            } catch (HibernateFacadeException e) {
+                throw e;
+            } catch (HibernateException e) {
+                if (attempt >= retries) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * One call to an intercepted method, which serves as both the Callable run in a new session and the receiver
+     * run in the transaction, so that a call needs no other objects.
+     */
+    private static class Call extends TransactionAdapter<Object> implements Callable<Object> {
+        private final HibernateFacade hibernate;
+        private final MethodInvocation invocation;
+        private final Transactional transactional;
+        private FlushMode flushMode;
+
+        public Call(HibernateFacade hibernate, MethodInvocation invocation, Transactional transactional) {
+            this.hibernate = hibernate;
+            this.invocation = invocation;
+            this.transactional = transactional;
+        }
+
+        /**
+         * Calls the method in the calling thread's session, in a transaction if the method is transactional.
+         */
+        Object proceed() throws Throwable {
+            if (transactional == null) {
+                return invocation.proceed();
+            }
+            try {
+                return transactional.timeout() > 0
+                        ? hibernate.inTransaction(this, transactional.timeout(), TimeUnit.MILLISECONDS)
+                        : hibernate.inTransaction(this);
+            } catch (CheckedFailure e) {
+                throw e.getCause();
+            }
+        }
+
+        @Override
+        public Object call() throws Exception {
+            try {
+                return proceed();
+            } catch (Exception e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+
+        @Override
+        public Object receive(Session session) throws Exception {
+            if (transactional.readOnly()) {
+                flushMode = session.getFlushMode();
+                session.setFlushMode(FlushMode.MANUAL);
+            }
+            try {
+                return invocation.proceed();
+            } catch (Exception e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+
+        @Override
+        public RuntimeException translateException(Exception e) {
+            return e instanceof RuntimeException ? (RuntimeException) e : new CheckedFailure(e);
+        }
+
+        @Override
+        public void postCommit(Session session) {
+            restoreFlushMode(session);
+        }
+
+        @Override
+        public void postRollback(Session session) {
+            restoreFlushMode(session);
+        }
+
+        private void restoreFlushMode(Session session) {
+            if (flushMode != null) {
+                session.setFlushMode(flushMode);
+                flushMode = null;
+            }
+        }
+    }
+
+    /**
+     * Carries a checked exception thrown by an intercepted method through the facade, to be rethrown as is.
+     */
+    private static class CheckedFailure extends RuntimeException {
+        public CheckedFailure(Exception cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>Runs tasks in the background after the transaction that registered them commits, so that work such as cache
+ * warming, notification, and indexing does not add to the latency of
+ * {@link HibernateFacade#inTransaction(TransactionReceiver)}.  Tasks registered by a transaction that rolls back
+ * are discarded.</p>
+ *
+ * <p>Tasks run on a fixed number of threads, each with a bounded queue.  Every task has an ordering key, and all
+ * tasks with equal keys run one at a time on the same thread, in the order that they were queued.  A transaction's
+ * tasks are queued as it completes, so the tasks of successive transactions on one thread run in commit order, but
+ * the tasks of transactions committing at the same time on different threads may be queued in either order.  When a
+ * queue is full, the committing thread waits for room rather than discarding or reordering tasks.  A task that
+ * throws is logged and does not affect any other task.</p>
+ *
+ * <p>Once {@link #shutdown(long, TimeUnit)} has been called, registering a task is rejected, and the tasks of a
+ * transaction which commits afterwards are discarded.  Every task queued before then runs.</p>
+ *
+ * <p>Tasks do not run with a session; a task that needs one should open it with
+ * {@link HibernateFacade#runInSession(Runnable)}, and the session belongs to the tenant of the thread that registered
+ * the task.</p>
+ */
+@Singleton
+public class PostCommitExecutor implements PostCommitExecutorMXBean, BackgroundService {
+    /**
+     * The binding name of the number of threads that run tasks.
+     */
+    public static final String THREADS = "org.movealong.persistence.postCommit.threads";
+
+    /**
+     * The binding name of the capacity of each thread's task queue.
+     */
+    public static final String QUEUE_CAPACITY = "org.movealong.persistence.postCommit.queueCapacity";
+
+    private static final Logger log = LoggerFactory.getLogger(PostCommitExecutor.class);
+    private static final Task SHUTDOWN = new Task(null, null);
+
+    private final HibernateFacade hibernateFacade;
+    private final ThreadLocal<PendingTasks> pending = new ThreadLocal<PendingTasks>();
+    private final AtomicInteger unkeyed = new AtomicInteger();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong lastLagNanos = new AtomicLong();
+    private final AtomicLong totalLagNanos = new AtomicLong();
+    private final AtomicLong maximumLagNanos = new AtomicLong();
+    private int threads = 4;
+    private int queueCapacity = 1000;
+    private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+    private volatile Lane[] lanes;
+    private volatile boolean shutdown;
+
+    @Inject
+    public PostCommitExecutor(HibernateFacade hibernateFacade) {
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    @Inject(optional = true)
+    public void setThreads(@Named(THREADS) int threads) {
+        this.threads = threads;
+    }
+
+    @Inject(optional = true)
+    public void setQueueCapacity(@Named(QUEUE_CAPACITY) int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Registers a task to run after the current thread's transaction commits.  Tasks with equal keys run one at a
+     * time, in the order that they were queued.
+     *
+     * @param key  the ordering key, or null if the task need not be ordered with respect to any other
+     * @param task the task
+     * @throws NoTransactionException     if the current thread is not in a transaction
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    public void afterCommit(Object key, Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Post-commit tasks may not be registered after shutdown");
+        }
+        Transaction transaction = hibernateFacade.getSession().getTransaction();
+        if (!transaction.isActive()) {
+            throw new NoTransactionException("Post-commit tasks may only be registered inside of inTransaction");
+        }
+        Object scope = hibernateFacade.getSynchronizationScope(transaction);
+        PendingTasks pendingTasks = pending.get();
+        if (pendingTasks == null || pendingTasks.scope != scope) {
+            pendingTasks = new PendingTasks(scope);
+            hibernateFacade.registerSynchronization(transaction, pendingTasks);
+            pending.set(pendingTasks);
+        }
+        pendingTasks.tasks.add(new Task(key, hibernateFacade.getTenantContext().wrap(task)));
+    }
+
+    /**
+     * Stops the task threads once they have run every task already queued.
+     *
+     * @param timeout the maximum time to wait for the queued tasks to run
+     * @param unit    the unit of timeout
+     * @return true if every queued task ran within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        Lane[] lanes;
+        // no task is queued once this is held, so each lane's SHUTDOWN is the last in its queue
+        shutdownLock.writeLock().lock();
+        try {
+            shutdown = true;
+            lanes = this.lanes;
+        } finally {
+            shutdownLock.writeLock().unlock();
+        }
+        if (lanes == null) {
+            return true;
+        }
+        for (Lane lane : lanes) {
+            lane.queue.put(SHUTDOWN);
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Lane lane : lanes) {
+            lane.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (lane.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public long getLastLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastLagNanos.get());
+    }
+
+    @Override
+    public double getAverageLagMillis() {
+        long count = completed.get();
+        return count == 0 ? 0.0 : (double) totalLagNanos.get() / TimeUnit.MILLISECONDS.toNanos(1) / count;
+    }
+
+    @Override
+    public long getMaximumLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maximumLagNanos.get());
+    }
+
+    private void enqueue(Task task) {
+        shutdownLock.readLock().lock();
+        try {
+            if (shutdown) {
+                log.warn("Discarding post-commit task {} committed after shutdown", task.runnable);
+                dropped.incrementAndGet();
+                return;
+            }
+            Lane[] lanes = lanes();
+            int hash = task.key == null ? unkeyed.getAndIncrement() : task.key.hashCode();
+            Lane lane = lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+            task.enqueued = System.nanoTime();
+            queueDepth.incrementAndGet();
+            try {
+                lane.queue.put(task);
+            } catch (InterruptedException e) {
+                queueDepth.decrementAndGet();
+                dropped.incrementAndGet();
+                log.warn("Interrupted while queueing post-commit task " + task.runnable + ", which was discarded");
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            shutdownLock.readLock().unlock();
+        }
+    }
+
+    private Lane[] lanes() {
+        Lane[] lanes = this.lanes;
+        if (lanes == null) {
+            synchronized (this) {
+                lanes = this.lanes;
+                if (lanes == null) {
+                    lanes = new Lane[threads];
+                    for (int i = 0; i < threads; i++) {
+                        lanes[i] = new Lane(i);
+                    }
+                    this.lanes = lanes;
+                }
+            }
+        }
+        return lanes;
+    }
+
+    private void run(Task task) {
+        queueDepth.decrementAndGet();
+        long lag = System.nanoTime() - task.enqueued;
+        lastLagNanos.set(lag);
+        totalLagNanos.addAndGet(lag);
+        long maximum;
+        do {
+            maximum = maximumLagNanos.get();
+        } while (lag > maximum && !maximumLagNanos.compareAndSet(maximum, lag));
+        try {
+            task.runnable.run();
+        } catch (Throwable t) {
+            failed.incrementAndGet();
+            log.error("Post-commit task " + task.runnable + " failed", t);
+        } finally {
+            completed.incrementAndGet();
+        }
+    }
+
+    private static class Task {
+        private final Object key;
+        private final Runnable runnable;
+        private long enqueued;
+
+        private Task(Object key, Runnable runnable) {
+            this.key = key;
+            this.runnable = runnable;
+        }
+    }
+
+    private class Lane implements Runnable {
+        private final BlockingQueue<Task> queue = new LinkedBlockingQueue<Task>(queueCapacity);
+        private final Thread thread;
+
+        private Lane(int index) {
+            thread = new Thread(this, "hibernate-fu-post-commit-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Task task;
+                while ((task = queue.take()) != SHUTDOWN) {
+                    PostCommitExecutor.this.run(task);
+                }
+            } catch (InterruptedException e) {
+                log.warn("Post-commit thread {} interrupted with {} tasks queued", thread.getName(), queue.size());
+            }
+        }
+    }
+
+    private class PendingTasks implements Synchronization {
+        private final Object scope;
+        private final List<Task> tasks = new ArrayList<Task>();
+
+        private PendingTasks(Object scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (pending.get() == this) {
+                pending.remove();
+            }
+            if (status == Status.STATUS_COMMITTED) {
+                for (Task task : tasks) {
+                    enqueue(task);
+                }
+            } else {
+                dropped.addAndGet(tasks.size());
+            }
+        }
+    }
+}
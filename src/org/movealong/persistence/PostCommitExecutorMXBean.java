@@ -0,0 +1,60 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+/**
+ * The JMX view of the {@link PostCommitExecutor}.
+ */
+public interface PostCommitExecutorMXBean {
+    /**
+     * @return the number of tasks waiting to run
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of tasks that have run, successfully or not
+     */
+    long getCompletedCount();
+
+    /**
+     * @return the number of tasks that threw an exception
+     */
+    long getFailedCount();
+
+    /**
+     * @return the number of tasks discarded because their transaction rolled back
+     */
+    long getDroppedCount();
+
+    /**
+     * @return the time the most recently started task spent waiting to run, in milliseconds
+     */
+    long getLastLagMillis();
+
+    /**
+     * @return the mean time tasks have spent waiting to run, in milliseconds
+     */
+    double getAverageLagMillis();
+
+    /**
+     * @return the longest time a task has spent waiting to run, in milliseconds
+     */
+    long getMaximumLagMillis();
+}
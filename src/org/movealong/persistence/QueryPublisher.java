@@ -0,0 +1,238 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Transaction;
+import org.movealong.persistence.stream.Publisher;
+import org.movealong.persistence.stream.QueryBuilder;
+import org.movealong.persistence.stream.Subscriber;
+import org.movealong.persistence.stream.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Publisher} of the rows of a scrolled query.  Each subscription opens its own session and read-only
+ * transaction on its first request and holds a forward-only cursor until the rows run out, an error occurs, or the
+ * subscription is cancelled, at which point the cursor, transaction and session are closed.  Rows are read and
+ * delivered on whichever thread requests them, one thread at a time, so no thread is held while the subscriber is
+ * idle.  Rows of one column are delivered as that column's value and wider rows as arrays.  Entities are evicted
+ * from the session once delivered, so the session does not grow with the result.
+ *
+ * <p>The session is opened through the facade's admission control, and holds its admission until the subscription
+ * ends.  While a thread drains the subscription, the session is bound to it and the {@link SessionListener}s see it
+ * as that thread's session, unless the thread has a session of its own; it is unbound while the subscriber is
+ * called, so that the subscriber may open sessions of its own.</p>
+ *
+ * @param <T> the type of the rows
+ */
+class QueryPublisher<T> implements Publisher<T> {
+    private static final Logger log = LoggerFactory.getLogger(QueryPublisher.class);
+
+    private final HibernateFacade hibernateFacade;
+    private final QueryBuilder queryBuilder;
+
+    QueryPublisher(HibernateFacade hibernateFacade, QueryBuilder queryBuilder) {
+        this.hibernateFacade = hibernateFacade;
+        this.queryBuilder = queryBuilder;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        QuerySubscription subscription = new QuerySubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private class QuerySubscription implements Subscription {
+        private final Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger drains = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private boolean done;
+        private HibernateFacade.SessionState state;
+        private boolean bound;
+        private Transaction transaction;
+        private ScrollableResults results;
+        private boolean hasNext;
+
+        private QuerySubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " items");
+            } else {
+                long current;
+                long updated;
+                do {
+                    current = demand.get();
+                    updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, updated));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        /**
+         * Delivers rows while there is demand.  Only one thread drains at a time; a thread which finds another
+         * draining leaves it to pick up the new demand or cancellation.
+         */
+        private void drain() {
+            if (drains.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!done) {
+                    emit();
+                }
+                missed = drains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            bind();
+            try {
+                while (!done) {
+                    if (cancelled) {
+                        finish();
+                    } else if (invalidRequest != null) {
+                        finish();
+                        subscriber.onError(invalidRequest);
+                    } else if (results != null && !hasNext) {
+                        // completion needs no demand
+                        finish();
+                        subscriber.onComplete();
+                    } else if (demand.get() == 0) {
+                        return;
+                    } else if (results == null) {
+                        open();
+                    } else {
+                        Object row = row();
+                        hasNext = results.next();
+                        demand.decrementAndGet();
+                        @SuppressWarnings("unchecked") T item = (T) row;
+                        deliver(item);
+                        evict(row);
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (!done) {
+                    finish();
+                    subscriber.onError(e);
+                } else {
+                    log.warn("Query subscriber failed after the subscription ended", e);
+                }
+            } finally {
+                unbind();
+            }
+        }
+
+        private void open() {
+            state = hibernateFacade.openState(SessionPriority.NORMAL);
+            bind();
+            transaction = state.getSession().beginTransaction();
+            results = queryBuilder.build(state.getSession()).scroll(ScrollMode.FORWARD_ONLY);
+            hasNext = results.next();
+        }
+
+        private void deliver(T item) {
+            HibernateFacade.SessionState suspended = bound ? hibernateFacade.suspendState() : null;
+            try {
+                subscriber.onNext(item);
+            } finally {
+                if (suspended != null) {
+                    hibernateFacade.resumeState(suspended);
+                }
+            }
+        }
+
+        private void bind() {
+            if (state != null && !bound && !hibernateFacade.hasSession()) {
+                hibernateFacade.bindState(state);
+                bound = true;
+            }
+        }
+
+        private void unbind() {
+            if (bound) {
+                bound = false;
+                hibernateFacade.unbindState(state);
+            }
+        }
+
+        private Object row() {
+            Object[] row = results.get();
+            return row.length == 1 ? row[0] : row;
+        }
+
+        private void evict(Object row) {
+            if (row instanceof Object[]) {
+                for (Object column : (Object[]) row) {
+                    evict(column);
+                }
+            } else if (row != null && state.getSession().contains(row)) {
+                state.getSession().evict(row);
+            }
+        }
+
+        /**
+         * Ends the subscription and releases its resources, each even if releasing another fails.
+         */
+        private void finish() {
+            done = true;
+            try {
+                if (results != null) {
+                    results.close();
+                }
+            } catch (RuntimeException e) {
+                log.warn("Failed to close query results", e);
+            } finally {
+                try {
+                    if (transaction != null) {
+                        transaction.rollback();
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Failed to end query transaction", e);
+                } finally {
+                    try {
+                        unbind();
+                    } finally {
+                        if (state != null) {
+                            hibernateFacade.closeState(state);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
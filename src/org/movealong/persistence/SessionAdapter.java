@@ -37,6 +37,10 @@ public abstract class SessionAdapter<T> implements SessionReceiver<T> {
      */
     @Override
     public RuntimeException translateException(Exception e) {
+        return uncheck(e);
+    }
+
+    static RuntimeException uncheck(Exception e) {
         return e instanceof RuntimeException
                 ? (RuntimeException) e
                 : new UndeclaredThrowableException(e, "Checked exception occurred during session");
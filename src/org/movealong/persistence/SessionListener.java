@@ -0,0 +1,42 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import org.hibernate.classic.Session;
+
+/**
+ * Receives notice as the {@link HibernateFacade} opens and closes each session.  Listeners are called on the thread
+ * which owns the session, while the session is associated with that thread.
+ */
+public interface SessionListener {
+    /**
+     * Called after a session is opened and associated with the calling thread, before it is used.
+     *
+     * @param session the session
+     */
+    void sessionOpened(Session session);
+
+    /**
+     * Called after a session is last used and before it is closed.
+     *
+     * @param session the session
+     */
+    void sessionClosing(Session session);
+}
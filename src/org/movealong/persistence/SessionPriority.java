@@ -0,0 +1,55 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+/**
+ * The priority with which a session is admitted by the {@link AdmissionController}.  Waiting work of a higher
+ * priority is always admitted before waiting work of a lower one, and each priority may only use its share of the
+ * session limit, so that some sessions are held in reserve for the more important work when the limit is reached.
+ */
+public enum SessionPriority {
+    /**
+     * Work which may use every session.
+     */
+    HIGH(1.0),
+
+    /**
+     * Work which may use nine tenths of the sessions.  This is the priority of sessions opened without one.
+     */
+    NORMAL(0.9),
+
+    /**
+     * Work which may use half of the sessions, such as background and batch work.
+     */
+    LOW(0.5);
+
+    private final double share;
+
+    private SessionPriority(double share) {
+        this.share = share;
+    }
+
+    /**
+     * @return the fraction of the session limit that work of this priority may use
+     */
+    public double getShare() {
+        return share;
+    }
+}
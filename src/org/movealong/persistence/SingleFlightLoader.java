@@ -0,0 +1,202 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.hibernate.FlushMode;
+import org.hibernate.classic.Session;
+import org.hibernate.jdbc.Work;
+
+import java.io.Serializable;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.sql.Connection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Loads entities by id, collapsing concurrent loads of the same entity into a single read.  The first thread to
+ * ask for an entity reads it, and every thread that asks for the same entity while that read is in progress waits
+ * for it and receives the same instance.  Nothing is kept once the read completes, so a later load reads again.
+ * </p>
+ *
+ * <p>Each read uses a short-lived session of its own rather than the calling thread's session, and that session is
+ * closed before the entity is returned, so the entity is detached.  Since the same instance may be shared by many
+ * threads, it must be treated as read-only, and its lazy associations cannot be loaded.  The loader is suited to hot
+ * entities such as configuration, which are read by many concurrent requests at once.</p>
+ *
+ * <p>When the reading thread has no session, the read session is opened as
+ * {@link HibernateFacade#callInSession(Callable)} opens one, so it is subject to admission control and is seen by
+ * the session listeners.  When the reading thread already has a session, the read session uses that session's
+ * connection, so a read takes no connection beyond the one already admitted.  A thread in a transaction could see
+ * its own uncommitted changes on that connection, which must not be shared with other threads, so its loads are
+ * never coalesced: it neither waits for another thread's read nor lets other threads wait for its own.  When
+ * sessions are kept per tenant, only loads by threads of the same tenant are coalesced.</p>
+ */
+@Singleton
+public class SingleFlightLoader implements SingleFlightLoaderMXBean {
+    private final HibernateFacade hibernateFacade;
+    private final ConcurrentMap<Flight, FutureTask<Object>> flights = new ConcurrentHashMap<Flight, FutureTask<Object>>();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    @Inject
+    public SingleFlightLoader(HibernateFacade hibernateFacade) {
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    /**
+     * Loads an entity, or waits for a load of the same entity that is already in progress.  Within a transaction
+     * the entity is always read privately.
+     *
+     * @param entityClass the class of the entity
+     * @param id          the id of the entity
+     * @param <E>         the type of the entity
+     * @return the detached entity, or null if there is none with the id
+     * @throws HibernateFacadeException if interrupted while waiting for another thread's read
+     */
+    @SuppressWarnings("unchecked")
+    public <E> E load(final Class<E> entityClass, final Serializable id) {
+        if (hibernateFacade.isInTransaction()) {
+            loads.incrementAndGet();
+            return (E) read(entityClass, id);
+        }
+        Flight key = new Flight(hibernateFacade.getTenantContext().currentTenant(), entityClass, id);
+        FutureTask<Object> flight = flights.get(key);
+        if (flight == null) {
+            FutureTask<Object> read = new FutureTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return read(entityClass, id);
+                }
+            });
+            flight = flights.putIfAbsent(key, read);
+            if (flight == null) {
+                loads.incrementAndGet();
+                try {
+                    read.run();
+                } finally {
+                    flights.remove(key, read);
+                }
+                flight = read;
+            } else {
+                coalesced.incrementAndGet();
+            }
+        } else {
+            coalesced.incrementAndGet();
+        }
+        return (E) await(flight);
+    }
+
+    private Object read(final Class<?> entityClass, final Serializable id) {
+        if (!hibernateFacade.hasSession()) {
+            try {
+                return hibernateFacade.callInSession(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        Session session = hibernateFacade.getSession();
+                        session.setFlushMode(FlushMode.MANUAL);
+                        return session.get(entityClass, id);
+                    }
+                });
+            } catch (Exception e) {
+                throw SessionAdapter.uncheck(e);
+            }
+        }
+        final Session caller = hibernateFacade.getSession();
+        final Object[] entity = new Object[1];
+        caller.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) {
+                Session session = caller.getSessionFactory().openSession(connection);
+                try {
+                    session.setFlushMode(FlushMode.MANUAL);
+                    entity[0] = session.get(entityClass, id);
+                } finally {
+                    session.close();
+                }
+            }
+        });
+        return entity[0];
+    }
+
+    private static Object await(FutureTask<Object> flight) {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HibernateFacadeException("Interrupted while waiting for a shared load");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new UndeclaredThrowableException(e.getCause());
+        }
+    }
+
+    @Override
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+    private static class Flight {
+        private final String tenant;
+        private final Class<?> entityClass;
+        private final Serializable id;
+
+        public Flight(String tenant, Class<?> entityClass, Serializable id) {
+            this.tenant = tenant;
+            this.entityClass = entityClass;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Flight)) {
+                return false;
+            }
+            Flight other = (Flight) o;
+            return (tenant == null ? other.tenant == null : tenant.equals(other.tenant))
+                    && entityClass.equals(other.entityClass) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * (tenant == null ? 0 : tenant.hashCode()) + entityClass.hashCode()) * 31 + id.hashCode();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.Callable;
+
+/**
+ * <p>Identifies the tenant of the calling thread when {@link XmlSessionFactoryProvider} keeps a SessionFactory per
+ * tenant.  The tenant is the one named by the bound {@link TenantResolver}, except while a thread runs work which was
+ * handed to it by another, when it is the tenant of the thread that handed the work over.</p>
+ *
+ * <p>Components which open sessions on threads of their own, such as the {@link GroupCommitter} and the pool threads
+ * of {@link HibernateFacade#processInParallel}, capture the tenant when work is submitted and carry it to the thread
+ * that runs it with {@link #wrap(Runnable)} or {@link #callAs(String, Callable)}.  Components which keep results
+ * shared between threads include the tenant in their keys.  Without a tenant resolver the tenant is always null.</p>
+ */
+@Singleton
+public class TenantContext {
+    private final ThreadLocal<String> carried = new ThreadLocal<String>();
+    private TenantResolver tenantResolver;
+
+    @Inject(optional = true)
+    public void setTenantResolver(TenantResolver tenantResolver) {
+        this.tenantResolver = tenantResolver;
+    }
+
+    /**
+     * @return the tenant of the calling thread, or null if sessions are not kept per tenant
+     */
+    public String currentTenant() {
+        if (tenantResolver == null) {
+            return null;
+        }
+        String tenant = carried.get();
+        return tenant == null ? tenantResolver.currentTenant() : tenant;
+    }
+
+    /**
+     * Calls callable as the given tenant, so that sessions it opens belong to that tenant.
+     *
+     * @param tenant   the tenant, or null to keep the calling thread's own
+     * @param callable the work
+     * @param <T>      the return type of callable
+     * @return the value of callable
+     * @throws Exception if callable throws
+     */
+    public <T> T callAs(String tenant, Callable<T> callable) throws Exception {
+        if (tenant == null) {
+            return callable.call();
+        }
+        String previous = carried.get();
+        carried.set(tenant);
+        try {
+            return callable.call();
+        } finally {
+            if (previous == null) {
+                carried.remove();
+            } else {
+                carried.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Runs runnable as the given tenant, so that sessions it opens belong to that tenant.
+     *
+     * @param tenant   the tenant, or null to keep the calling thread's own
+     * @param runnable the work
+     */
+    public void runAs(String tenant, final Runnable runnable) {
+        try {
+            callAs(tenant, new Callable<Object>() {
+                @Override
+                public Object call() {
+                    runnable.run();
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    /**
+     * Captures the calling thread's tenant for work which is to run on another thread.
+     *
+     * @param runnable the work
+     * @return work which runs runnable as the calling thread's tenant
+     */
+    public Runnable wrap(final Runnable runnable) {
+        final String tenant = currentTenant();
+        if (tenant == null) {
+            return runnable;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                runAs(tenant, runnable);
+            }
+        };
+    }
+
+    /**
+     * Captures the calling thread's tenant for work which is to run on another thread.
+     *
+     * @param callable the work
+     * @param <T>      the return type of callable
+     * @return work which calls callable as the calling thread's tenant
+     */
+    public <T> Callable<T> wrap(final Callable<T> callable) {
+        final String tenant = currentTenant();
+        if (tenant == null) {
+            return callable;
+        }
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return callAs(tenant, callable);
+            }
+        };
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import org.hibernate.cfg.AnnotationConfiguration;
+
+/**
+ * Identifies the tenant of each session, when {@link XmlSessionFactoryProvider} keeps a SessionFactory per tenant,
+ * and adapts each tenant's copy of the configuration to the tenant.
+ *
+ * @see HibernateFacadeModule#useTenantSessionFactories(com.google.inject.Binder, Class, int)
+ */
+public interface TenantResolver {
+    /**
+     * Called on the thread about to open a session, such as from {@link HibernateFacade#runInSession(Runnable)}.
+     *
+     * @return the tenant of the session
+     */
+    String currentTenant();
+
+    /**
+     * Called before the SessionFactory of a tenant is built, with the tenant's own full copy of the configuration,
+     * to set the tenant's own properties such as its default schema or connection URL.  The
+     * {@link ConfigurationCustomizer}s are applied afterward.
+     *
+     * @param tenant        the tenant
+     * @param configuration the tenant's copy of the configuration, with its mappings already bound
+     */
+    void configure(String tenant, AnnotationConfiguration configuration);
+}
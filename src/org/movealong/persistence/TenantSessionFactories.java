@@ -0,0 +1,157 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import org.hibernate.SessionFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A size-bounded cache of the SessionFactory of each tenant, built on first use.  When the cache is full, the
+ * least recently used tenant's SessionFactory is retired, and is closed once the sessions in flight against it
+ * have ended.
+ */
+abstract class TenantSessionFactories {
+    private final TenantContext tenantContext;
+    private final int maximumFactories;
+    private final LinkedHashMap<String, Tenant> tenants = new LinkedHashMap<String, Tenant>(16, 0.75f, true);
+    private final ConcurrentMap<SessionFactory, DrainingSessionFactory> leased =
+            new ConcurrentHashMap<SessionFactory, DrainingSessionFactory>();
+
+    TenantSessionFactories(TenantContext tenantContext, int maximumFactories) {
+        this.tenantContext = tenantContext;
+        this.maximumFactories = maximumFactories;
+    }
+
+    /**
+     * Builds the SessionFactory of a tenant.
+     *
+     * @param tenant the tenant
+     * @return the tenant's SessionFactory
+     */
+    abstract SessionFactory build(String tenant);
+
+    SessionFactory get() {
+        String tenant = tenantContext.currentTenant();
+        DrainingSessionFactory factory;
+        do {
+            factory = tenant(tenant).factory();
+        } while (factory == null);
+        return factory.getSessionFactory();
+    }
+
+    SessionFactory acquire() {
+        String tenant = tenantContext.currentTenant();
+        DrainingSessionFactory factory;
+        do {
+            factory = tenant(tenant).factory();
+        } while (factory == null || !factory.lease());
+        return factory.getSessionFactory();
+    }
+
+    void release(SessionFactory sessionFactory) {
+        DrainingSessionFactory factory = leased.get(sessionFactory);
+        if (factory != null && factory.release()) {
+            leased.remove(sessionFactory);
+        }
+    }
+
+    /**
+     * Retires every tenant's SessionFactory, so that each is built again on its next use.
+     */
+    void retireAll() {
+        List<Tenant> retired;
+        synchronized (tenants) {
+            retired = new ArrayList<Tenant>(tenants.values());
+            tenants.clear();
+        }
+        for (Tenant tenant : retired) {
+            retire(tenant);
+        }
+    }
+
+    int size() {
+        synchronized (tenants) {
+            return tenants.size();
+        }
+    }
+
+    private Tenant tenant(String name) {
+        List<Tenant> evicted = new ArrayList<Tenant>();
+        Tenant tenant;
+        synchronized (tenants) {
+            tenant = tenants.get(name);
+            if (tenant == null) {
+                tenant = new Tenant(name);
+                tenants.put(name, tenant);
+                Iterator<Tenant> eldest = tenants.values().iterator();
+                while (tenants.size() > maximumFactories) {
+                    evicted.add(eldest.next());
+                    eldest.remove();
+                }
+            }
+        }
+        for (Tenant eldest : evicted) {
+            retire(eldest);
+        }
+        return tenant;
+    }
+
+    private void retire(Tenant tenant) {
+        DrainingSessionFactory factory = tenant.retire();
+        if (factory != null && factory.retire()) {
+            leased.remove(factory.getSessionFactory());
+        }
+    }
+
+    private class Tenant {
+        private final String name;
+        private DrainingSessionFactory factory;
+        private boolean retired;
+
+        private Tenant(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the tenant's SessionFactory, built if necessary, or null if the tenant has been retired
+         */
+        private synchronized DrainingSessionFactory factory() {
+            if (retired) {
+                return null;
+            }
+            if (factory == null) {
+                factory = new DrainingSessionFactory(build(name));
+                leased.put(factory.getSessionFactory(), factory);
+            }
+            return factory;
+        }
+
+        private synchronized DrainingSessionFactory retire() {
+            retired = true;
+            return factory;
+        }
+    }
+}
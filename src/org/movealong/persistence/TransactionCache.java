@@ -0,0 +1,268 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.hibernate.Transaction;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Memoizes values computed within a transaction, such as permission checks and reference data, so that code
+ * running anywhere under one {@link HibernateFacade#inTransaction(TransactionReceiver)} computes each of them once.
+ * The values are discarded when the transaction commits or rolls back.</p>
+ *
+ * <p>A value may also be promoted: once its transaction commits, it is kept in a shared cache of limited size, from
+ * which later transactions take it instead of computing it.  Promoted values are not invalidated by later writes,
+ * except through {@link #invalidate(Object)}, so promotion is suited to values derived from data that rarely
+ * changes.  The least recently used promoted values are discarded first.  When sessions are kept per tenant,
+ * promoted values are shared only between transactions of the same {@link TenantContext tenant}.</p>
+ */
+@Singleton
+public class TransactionCache implements TransactionCacheMXBean {
+    /**
+     * The binding name of the maximum number of values in the shared cache.
+     */
+    public static final String SHARED_SIZE = "org.movealong.persistence.transactionCache.sharedSize";
+
+    private static final Object NULL = new Object();
+
+    private final HibernateFacade hibernateFacade;
+    private final ThreadLocal<TransactionValues> values = new ThreadLocal<TransactionValues>();
+    private final LinkedHashMap<SharedKey, Object> shared = new LinkedHashMap<SharedKey, Object>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong sharedHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong promoted = new AtomicLong();
+    private int sharedSize = 1000;
+
+    @Inject
+    public TransactionCache(HibernateFacade hibernateFacade) {
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    @Inject(optional = true)
+    public void setSharedSize(@Named(SHARED_SIZE) int sharedSize) {
+        synchronized (shared) {
+            this.sharedSize = sharedSize;
+            trim();
+        }
+    }
+
+    /**
+     * Equivalent to <code>get(key, loader, false)</code>.
+     */
+    public <T> T get(Object key, Callable<T> loader) {
+        return get(key, loader, false);
+    }
+
+    /**
+     * Gets the value of a key in the current transaction, computing it with loader the first time that the key is
+     * used in the transaction.  A value computed by loader is thrown away if loader throws.
+     *
+     * @param key     the key, which must have a meaningful equals and hashCode
+     * @param loader  computes the value
+     * @param promote true to take the value from the shared cache when it is there, and to promote a computed value
+     *                to the shared cache when the transaction commits
+     * @param <T>     the type of the value
+     * @return the value, which may be null
+     * @throws NoTransactionException if the current thread is not in a transaction
+     * @throws UndeclaredThrowableException if loader throws a checked exception
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> loader, boolean promote) {
+        TransactionValues transactionValues = transactionValues();
+        Object value = transactionValues.values.get(key);
+        if (value != null) {
+            hits.incrementAndGet();
+            return value == NULL ? null : (T) value;
+        }
+        if (promote) {
+            synchronized (shared) {
+                value = shared.get(new SharedKey(transactionValues.tenant, key));
+            }
+            if (value != null) {
+                sharedHits.incrementAndGet();
+                transactionValues.values.put(key, value);
+                return value == NULL ? null : (T) value;
+            }
+        }
+        misses.incrementAndGet();
+        T computed;
+        try {
+            computed = loader.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new UndeclaredThrowableException(e);
+        }
+        value = computed == null ? NULL : computed;
+        transactionValues.values.put(key, value);
+        if (promote) {
+            transactionValues.promotions.put(key, value);
+        }
+        return computed;
+    }
+
+    /**
+     * Discards the value of a key from the shared cache, for every tenant, and from the current transaction if there
+     * is one.
+     *
+     * @param key the key
+     */
+    public void invalidate(Object key) {
+        synchronized (shared) {
+            Iterator<SharedKey> keys = shared.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().key.equals(key)) {
+                    keys.remove();
+                }
+            }
+        }
+        TransactionValues transactionValues = values.get();
+        if (transactionValues != null) {
+            transactionValues.values.remove(key);
+            transactionValues.promotions.remove(key);
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getSharedHitCount() {
+        return sharedHits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getPromotedCount() {
+        return promoted.get();
+    }
+
+    @Override
+    public int getSharedSize() {
+        synchronized (shared) {
+            return shared.size();
+        }
+    }
+
+    @Override
+    public void clearShared() {
+        synchronized (shared) {
+            shared.clear();
+        }
+    }
+
+    private TransactionValues transactionValues() {
+        Transaction transaction = hibernateFacade.getSession().getTransaction();
+        if (!transaction.isActive()) {
+            throw new NoTransactionException("Transaction cache values may only be used inside of inTransaction");
+        }
+        Object scope = hibernateFacade.getSynchronizationScope(transaction);
+        TransactionValues transactionValues = values.get();
+        if (transactionValues == null || transactionValues.scope != scope) {
+            transactionValues = new TransactionValues(scope, hibernateFacade.getTenantContext().currentTenant());
+            hibernateFacade.registerSynchronization(transaction, transactionValues);
+            values.set(transactionValues);
+        }
+        return transactionValues;
+    }
+
+    private void trim() {
+        Iterator<SharedKey> keys = shared.keySet().iterator();
+        while (shared.size() > sharedSize && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    private static class SharedKey {
+        private final String tenant;
+        private final Object key;
+
+        private SharedKey(String tenant, Object key) {
+            this.tenant = tenant;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SharedKey)) {
+                return false;
+            }
+            SharedKey other = (SharedKey) o;
+            return (tenant == null ? other.tenant == null : tenant.equals(other.tenant)) && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (tenant == null ? 0 : tenant.hashCode()) + key.hashCode();
+        }
+    }
+
+    private class TransactionValues implements Synchronization {
+        private final Object scope;
+        private final String tenant;
+        private final Map<Object, Object> values = new HashMap<Object, Object>();
+        private final Map<Object, Object> promotions = new HashMap<Object, Object>();
+
+        private TransactionValues(Object scope, String tenant) {
+            this.scope = scope;
+            this.tenant = tenant;
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (TransactionCache.this.values.get() == this) {
+                TransactionCache.this.values.remove();
+            }
+            if (status == Status.STATUS_COMMITTED && !promotions.isEmpty()) {
+                synchronized (shared) {
+                    for (Map.Entry<Object, Object> promotion : promotions.entrySet()) {
+                        shared.put(new SharedKey(tenant, promotion.getKey()), promotion.getValue());
+                    }
+                    trim();
+                }
+                promoted.addAndGet(promotions.size());
+            }
+        }
+    }
+}
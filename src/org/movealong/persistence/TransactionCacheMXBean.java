@@ -0,0 +1,55 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+/**
+ * The JMX view of the {@link TransactionCache}.
+ */
+public interface TransactionCacheMXBean {
+    /**
+     * @return the number of lookups answered by the transaction's own values
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of lookups answered by values promoted from committed transactions
+     */
+    long getSharedHitCount();
+
+    /**
+     * @return the number of lookups that computed their value
+     */
+    long getMissCount();
+
+    /**
+     * @return the number of values promoted to the shared cache by committed transactions
+     */
+    long getPromotedCount();
+
+    /**
+     * @return the number of values in the shared cache
+     */
+    int getSharedSize();
+
+    /**
+     * Discards every value in the shared cache.
+     */
+    void clearShared();
+}
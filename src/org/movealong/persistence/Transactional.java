@@ -0,0 +1,87 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Marks a method of a Guice-managed object which must be called in a transaction.  If the calling thread has no
+ * session, one is opened around the call.  Unless the thread is already in a transaction, the method is called
+ * inside {@link HibernateFacade#inTransaction(TransactionReceiver)}, and any exception it throws, checked or not,
+ * rolls the transaction back and is rethrown as is.  The interceptor is installed by {@link HibernateFacadeModule},
+ * and reads the settings of each method once, when Guice binds it.</p>
+ *
+ * <p>{@link #readOnly()}, {@link #timeout()}, and {@link #retries()} apply only when the method begins the
+ * transaction; a method which joins its caller's transaction is bound by the caller's settings.</p>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Transactional {
+    /**
+     * How a method relates to a transaction that the calling thread is already in.  Since the facade does not nest
+     * transactions, a method always joins an existing transaction.
+     */
+    enum Propagation {
+        /**
+         * Joins the calling thread's transaction, or begins one if there is none.
+         */
+        REQUIRED,
+
+        /**
+         * Joins the calling thread's transaction, or runs in a session without a transaction if there is none.
+         */
+        SUPPORTS,
+
+        /**
+         * Joins the calling thread's transaction, or throws a {@link NoTransactionException} if there is none.
+         */
+        MANDATORY
+    }
+
+    /**
+     * @return true if the transaction is never flushed, so that changes to its entities are not written and the
+     *         session does not check them for changes at commit
+     */
+    boolean readOnly() default false;
+
+    /**
+     * @return the time, in milliseconds, allowed for the transaction, as for
+     *         {@link HibernateFacade#inTransaction(TransactionReceiver, long, java.util.concurrent.TimeUnit)}, or 0
+     *         for no limit
+     */
+    long timeout() default 0;
+
+    /**
+     * @return the number of times the method is called again, each time in a new session, after its transaction
+     *         fails with a HibernateException other than a {@link HibernateFacadeException}.  Retries only happen
+     *         when the call opened the session.
+     */
+    int retries() default 0;
+
+    /**
+     * @return how the method relates to a transaction that the calling thread is already in
+     */
+    Propagation propagation() default Propagation.REQUIRED;
+}
@@ -0,0 +1,362 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.hibernate.classic.Session;
+import org.movealong.persistence.jdbc.StatementExecution;
+import org.movealong.persistence.jdbc.StatementListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Records the facade's workload to a file, for replay by a {@link WorkloadReplayer}: when each session opens and
+ * closes, when each transaction begins and whether it commits, and each statement with its bind parameters, when
+ * it began and how long it took.  Recording is enabled by binding {@link #RECORDING_FILE}, and continues until
+ * {@link #stop()}.  A batch is recorded with the parameters of each of its statements.  Statements outside the
+ * facade's sessions are not recorded.</p>
+ *
+ * <p>When {@link #ANONYMIZE} is bound true, string and binary parameters are replaced by values of the same length
+ * derived from a hash, so that equal values stay equal without being readable.  Numbers and dates are kept, so that
+ * replayed statements still find the rows they found.</p>
+ *
+ * <p>The file is a sequence of events, each a type byte followed by variable-length integers, with each distinct
+ * SQL string written once and referred to by number thereafter.</p>
+ */
+@Singleton
+public class WorkloadRecorder implements WorkloadRecorderMXBean, SessionListener, StatementListener {
+    /**
+     * The binding name of the file to which the workload is recorded.
+     */
+    public static final String RECORDING_FILE = "org.movealong.persistence.workload.recordingFile";
+
+    /**
+     * The binding name of whether to anonymize string and binary parameters.
+     */
+    public static final String ANONYMIZE = "org.movealong.persistence.workload.anonymize";
+
+    static final int MAGIC = 0x48465752;
+    static final byte SESSION_OPENED = 1;
+    static final byte SESSION_CLOSED = 2;
+    static final byte TRANSACTION_BEGUN = 3;
+    static final byte TRANSACTION_COMMITTED = 4;
+    static final byte TRANSACTION_ROLLED_BACK = 5;
+    static final byte SQL = 6;
+    static final byte STATEMENT = 7;
+    static final byte BATCH = 8;
+
+    static final byte NULL = 0;
+    static final byte LONG = 1;
+    static final byte DOUBLE = 2;
+    static final byte DECIMAL = 3;
+    static final byte STRING = 4;
+    static final byte BOOLEAN = 5;
+    static final byte TIMESTAMP = 6;
+    static final byte DATE = 7;
+    static final byte TIME = 8;
+    static final byte BYTES = 9;
+
+    private static final Logger log = LoggerFactory.getLogger(WorkloadRecorder.class);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ThreadLocal<Integer> currentSession = new ThreadLocal<Integer>();
+    private final AtomicInteger sessionIds = new AtomicInteger();
+    private final Map<String, Integer> sqlIds = new HashMap<String, Integer>();
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong statements = new AtomicLong();
+    private final long salt = new Random().nextLong();
+    private final long start = System.nanoTime();
+    private boolean anonymize;
+    private DataOutputStream out;
+    private volatile boolean recording;
+
+    @Inject(optional = true)
+    public void setRecordingFile(@Named(RECORDING_FILE) File recordingFile) throws IOException {
+        synchronized (this) {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordingFile)));
+            out.writeInt(MAGIC);
+            recording = true;
+        }
+        log.info("Recording workload to {}", recordingFile);
+    }
+
+    @Inject(optional = true)
+    public void setAnonymize(@Named(ANONYMIZE) boolean anonymize) {
+        this.anonymize = anonymize;
+    }
+
+    @Override
+    public void sessionOpened(Session session) {
+        if (recording) {
+            int id = sessionIds.incrementAndGet();
+            currentSession.set(id);
+            sessions.incrementAndGet();
+            write(SESSION_OPENED, id, now(), null);
+        }
+    }
+
+    @Override
+    public void sessionClosing(Session session) {
+        Integer id = currentSession.get();
+        if (id != null) {
+            currentSession.remove();
+            write(SESSION_CLOSED, id, now(), null);
+        }
+    }
+
+    /**
+     * Called by the facade as the calling thread's session begins a transaction.
+     */
+    void transactionBegun() {
+        Integer id = currentSession.get();
+        if (id != null) {
+            transactions.incrementAndGet();
+            write(TRANSACTION_BEGUN, id, now(), null);
+        }
+    }
+
+    /**
+     * Called by the facade as the calling thread's transaction completes.
+     */
+    void transactionCompleted(boolean committed) {
+        Integer id = currentSession.get();
+        if (id != null) {
+            write(committed ? TRANSACTION_COMMITTED : TRANSACTION_ROLLED_BACK, id, now(), null);
+        }
+    }
+
+    @Override
+    public void executed(StatementExecution execution) {
+        Integer id = currentSession.get();
+        if (id != null) {
+            statements.incrementAndGet();
+            write(execution.isBatch() ? BATCH : STATEMENT, id,
+                    now() - execution.getElapsedTime(TimeUnit.MICROSECONDS), execution);
+        }
+    }
+
+    @Override
+    public boolean isRecording() {
+        return recording;
+    }
+
+    @Override
+    public long getRecordedSessions() {
+        return sessions.get();
+    }
+
+    @Override
+    public long getRecordedTransactions() {
+        return transactions.get();
+    }
+
+    @Override
+    public long getRecordedStatements() {
+        return statements.get();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!recording) {
+            return;
+        }
+        recording = false;
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.error("Unable to close the workload recording", e);
+        }
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    }
+
+    private synchronized void write(byte type, int session, long time, StatementExecution execution) {
+        if (!recording) {
+            return;
+        }
+        try {
+            Integer sqlId = null;
+            if (execution != null) {
+                sqlId = sqlIds.get(execution.getSql());
+                if (sqlId == null) {
+                    sqlId = sqlIds.size();
+                    sqlIds.put(execution.getSql(), sqlId);
+                    out.writeByte(SQL);
+                    writeVarLong(out, sqlId);
+                    writeString(out, execution.getSql());
+                }
+            }
+            out.writeByte(type);
+            writeVarLong(out, session);
+            writeVarLong(out, Math.max(time, 0));
+            if (execution != null) {
+                writeVarLong(out, execution.getElapsedTime(TimeUnit.MICROSECONDS));
+                writeVarLong(out, sqlId);
+                if (type == BATCH) {
+                    List<List<Object>> batch = execution.getBatchParameters();
+                    writeVarLong(out, batch.size());
+                    for (List<Object> parameters : batch) {
+                        writeParameters(parameters);
+                    }
+                } else {
+                    writeParameters(execution.getParameters());
+                }
+            }
+        } catch (IOException e) {
+            log.error("Unable to record the workload; recording stopped", e);
+            stop();
+        }
+    }
+
+    private void writeParameters(List<Object> parameters) throws IOException {
+        writeVarLong(out, parameters.size());
+        for (Object parameter : parameters) {
+            writeParameter(parameter);
+        }
+    }
+
+    private void writeParameter(Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(LONG);
+            out.writeLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof java.util.Date) {
+            out.writeByte(value instanceof java.sql.Date ? DATE : value instanceof java.sql.Time ? TIME : TIMESTAMP);
+            out.writeLong(((java.util.Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            writeVarLong(out, bytes.length);
+            out.write(anonymize ? anonymize(hash(bytes), bytes.length).getBytes("US-ASCII") : bytes);
+        } else {
+            String string = value.toString();
+            out.writeByte(STRING);
+            writeString(out, anonymize ? anonymize(hash(string.getBytes("UTF-8")), string.length()) : string);
+        }
+    }
+
+    private long hash(byte[] bytes) {
+        long hash = salt;
+        for (byte b : bytes) {
+            hash = (hash ^ b) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static String anonymize(long hash, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = HEX[(int) (hash >>> ((i % 16) * 4)) & 0xf];
+        }
+        return new String(chars);
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static Object readParameter(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case DECIMAL:
+                return new BigDecimal(readString(in));
+            case STRING:
+                return readString(in);
+            case BOOLEAN:
+                return in.readBoolean();
+            case TIMESTAMP:
+                return new java.sql.Timestamp(in.readLong());
+            case DATE:
+                return new java.sql.Date(in.readLong());
+            case TIME:
+                return new java.sql.Time(in.readLong());
+            case BYTES:
+                byte[] bytes = new byte[(int) readVarLong(in)];
+                in.readFully(bytes);
+                return bytes;
+            default:
+                throw new IOException("Unknown parameter type " + type);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+/**
+ * The JMX view of the {@link WorkloadRecorder}.
+ */
+public interface WorkloadRecorderMXBean {
+    /**
+     * @return true if the workload is being written to the recording file
+     */
+    boolean isRecording();
+
+    /**
+     * @return the number of sessions recorded
+     */
+    long getRecordedSessions();
+
+    /**
+     * @return the number of transactions recorded
+     */
+    long getRecordedTransactions();
+
+    /**
+     * @return the number of statements recorded
+     */
+    long getRecordedStatements();
+
+    /**
+     * Stops recording and closes the recording file.
+     */
+    void stop();
+}
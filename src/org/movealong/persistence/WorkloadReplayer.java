@@ -0,0 +1,366 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import org.hibernate.JDBCException;
+import org.hibernate.classic.Session;
+import org.hibernate.jdbc.Work;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Replays a workload recorded by a {@link WorkloadRecorder} through the facade, against whatever database its
+ * session factory is configured for: each recorded session in a session and thread of its own, with its
+ * transactions committed or rolled back as they were, and its statements run with their recorded parameters.</p>
+ *
+ * <p>The replay can run several concurrent copies of the workload, and can keep the recorded pacing, scaled by a
+ * factor, or run each session's statements back to back.  Statements the database rejects, such as inserts of keys
+ * which already exist, are counted and skipped.  It can also be run from the command line, with the recording, the
+ * number of copies, the time scale, and the XML configuration resources of the target database.</p>
+ */
+public class WorkloadReplayer {
+    private static final Logger log = LoggerFactory.getLogger(WorkloadReplayer.class);
+
+    private final HibernateFacade hibernateFacade;
+
+    @Inject
+    public WorkloadReplayer(HibernateFacade hibernateFacade) {
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    /**
+     * Replays a recorded workload and waits for it to finish.
+     *
+     * @param recordingFile the recording
+     * @param copies        the number of copies of the workload to run concurrently
+     * @param timeScale     the factor by which to scale the recorded time between the start of the recording and
+     *                      each session and statement: 1 keeps the recorded pacing, and 0 runs without waiting
+     * @return the report of the replay
+     * @throws IOException if the recording can not be read
+     */
+    public WorkloadReport replay(File recordingFile, int copies, final double timeScale) throws IOException {
+        List<RecordedSession> recordedSessions = read(recordingFile);
+        final AtomicLong transactions = new AtomicLong();
+        final AtomicLong statements = new AtomicLong();
+        final AtomicLong failedStatements = new AtomicLong();
+        final AtomicLong statementMicros = new AtomicLong();
+        long recordedStatementMicros = 0;
+        for (RecordedSession recordedSession : recordedSessions) {
+            for (Action action : recordedSession.actions) {
+                recordedStatementMicros += action.elapsed;
+            }
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hibernate-fu-replay-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int copy = 0; copy < copies; copy++) {
+                for (final RecordedSession recordedSession : recordedSessions) {
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            pace(start, recordedSession.opened, timeScale);
+                            hibernateFacade.runInSession(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Session session = hibernateFacade.getSession();
+                                    List<Action> actions = recordedSession.actions;
+                                    for (int i = 0; i < actions.size(); i++) {
+                                        Action action = actions.get(i);
+                                        if (action.type != WorkloadRecorder.TRANSACTION_BEGUN) {
+                                            pace(start, action.time, timeScale);
+                                            execute(session, action, statements, failedStatements, statementMicros);
+                                            continue;
+                                        }
+                                        int end = i + 1;
+                                        while (end < actions.size() && actions.get(end).sql != null) {
+                                            end++;
+                                        }
+                                        transactions.incrementAndGet();
+                                        replayTransaction(actions.subList(i + 1, end),
+                                                end < actions.size() &&
+                                                        actions.get(end).type == WorkloadRecorder.TRANSACTION_COMMITTED,
+                                                start, timeScale, statements, failedStatements, statementMicros);
+                                        i = end;
+                                    }
+                                }
+                            });
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new HibernateFacadeException("Interrupted while replaying the workload");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    } else if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new UndeclaredThrowableException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new WorkloadReport((long) copies * recordedSessions.size(), transactions.get(), statements.get(),
+                failedStatements.get(), statementMicros.get(), copies * recordedStatementMicros,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    private void replayTransaction(final List<Action> actions, final boolean committed, final long start,
+                                   final double timeScale, final AtomicLong statements,
+                                   final AtomicLong failedStatements, final AtomicLong statementMicros) {
+        try {
+            hibernateFacade.inTransaction(new SessionAdapter<Object>() {
+                @Override
+                public Object receive(Session session) {
+                    for (Action action : actions) {
+                        pace(start, action.time, timeScale);
+                        execute(session, action, statements, failedStatements, statementMicros);
+                    }
+                    if (!committed) {
+                        throw new RolledBack();
+                    }
+                    return null;
+                }
+            });
+        } catch (RolledBack e) {
+            // the recorded transaction rolled back, and so has its replay
+        }
+    }
+
+    private static void execute(Session session, final Action action, AtomicLong statements,
+                                AtomicLong failedStatements, AtomicLong statementMicros) {
+        if (action.sql == null) {
+            return;
+        }
+        statements.incrementAndGet();
+        long began = System.nanoTime();
+        try {
+            session.doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    PreparedStatement statement = connection.prepareStatement(action.sql);
+                    try {
+                        if (action.batch != null) {
+                            for (Object[] parameters : action.batch) {
+                                setParameters(statement, parameters);
+                                statement.addBatch();
+                            }
+                            statement.executeBatch();
+                        } else if (setParameters(statement, action.parameters).execute()) {
+                            ResultSet resultSet = statement.getResultSet();
+                            try {
+                                while (resultSet.next()) {
+                                    // read the whole result, as the recorded statement's caller did
+                                }
+                            } finally {
+                                resultSet.close();
+                            }
+                        }
+                    } finally {
+                        statement.close();
+                    }
+                }
+            });
+        } catch (JDBCException e) {
+            failedStatements.incrementAndGet();
+            log.debug("Replayed statement failed: " + action.sql, e);
+        }
+        statementMicros.addAndGet(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - began));
+    }
+
+    private static PreparedStatement setParameters(PreparedStatement statement, Object[] parameters)
+            throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+        return statement;
+    }
+
+    private static void pace(long start, long time, double timeScale) {
+        long delay = (long) (time * timeScale) - TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        if (delay > 0) {
+            try {
+                TimeUnit.MICROSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HibernateFacadeException("Interrupted while replaying the workload");
+            }
+        }
+    }
+
+    /**
+     * Reads the recording into its sessions, in the order they opened.  A transaction's actions are its begin, its
+     * statements and, unless the recording ended first, its completion.
+     */
+    private static List<RecordedSession> read(File recordingFile) throws IOException {
+        Map<Integer, RecordedSession> sessions = new LinkedHashMap<Integer, RecordedSession>();
+        Map<Integer, String> sql = new HashMap<Integer, String>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(recordingFile)));
+        try {
+            if (in.readInt() != WorkloadRecorder.MAGIC) {
+                throw new IOException("Not a workload recording: " + recordingFile);
+            }
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == WorkloadRecorder.SQL) {
+                    sql.put((int) WorkloadRecorder.readVarLong(in), WorkloadRecorder.readString(in));
+                    continue;
+                }
+                int id = (int) WorkloadRecorder.readVarLong(in);
+                long time = WorkloadRecorder.readVarLong(in);
+                if (type == WorkloadRecorder.SESSION_OPENED) {
+                    sessions.put(id, new RecordedSession(time));
+                    continue;
+                }
+                Action action = new Action(type, time);
+                if (type == WorkloadRecorder.STATEMENT || type == WorkloadRecorder.BATCH) {
+                    action.elapsed = WorkloadRecorder.readVarLong(in);
+                    action.sql = sql.get((int) WorkloadRecorder.readVarLong(in));
+                    if (type == WorkloadRecorder.BATCH) {
+                        action.batch = new Object[(int) WorkloadRecorder.readVarLong(in)][];
+                        for (int i = 0; i < action.batch.length; i++) {
+                            action.batch[i] = readParameters(in);
+                        }
+                    } else {
+                        action.parameters = readParameters(in);
+                    }
+                }
+                RecordedSession session = sessions.get(id);
+                if (session != null && type != WorkloadRecorder.SESSION_CLOSED) {
+                    session.actions.add(action);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return new ArrayList<RecordedSession>(sessions.values());
+    }
+
+    private static Object[] readParameters(DataInputStream in) throws IOException {
+        Object[] parameters = new Object[(int) WorkloadRecorder.readVarLong(in)];
+        for (int i = 0; i < parameters.length; i++) {
+            parameters[i] = WorkloadRecorder.readParameter(in);
+        }
+        return parameters;
+    }
+
+    /**
+     * Replays a recording from the command line.
+     *
+     * @param args the recording file, the number of copies, the time scale, and one or more XML configuration
+     *             resources
+     * @throws IOException if the recording can not be read
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: WorkloadReplayer <recording> <copies> <time scale> <configuration resource>...");
+            System.exit(1);
+        }
+        WorkloadReplayer replayer = Guice.createInjector(new HibernateFacadeModule(), new AbstractModule() {
+            @Override
+            protected void configure() {
+                for (int i = 3; i < args.length; i++) {
+                    HibernateFacadeModule.addXmlConfigurationResource(binder(), args[i]);
+                }
+            }
+        }).getInstance(WorkloadReplayer.class);
+        System.out.println(replayer.replay(new File(args[0]), Integer.parseInt(args[1]), Double.parseDouble(args[2])));
+    }
+
+    private static class RecordedSession {
+        private final long opened;
+        private final List<Action> actions = new ArrayList<Action>();
+
+        private RecordedSession(long opened) {
+            this.opened = opened;
+        }
+    }
+
+    /**
+     * A transaction boundary, or a statement when sql is set, with the parameters of each statement of the batch
+     * when batch is set.
+     */
+    private static class Action {
+        private final byte type;
+        private final long time;
+        private long elapsed;
+        private String sql;
+        private Object[] parameters;
+        private Object[][] batch;
+
+        private Action(byte type, long time) {
+            this.type = type;
+            this.time = time;
+        }
+    }
+
+    private static class RolledBack extends RuntimeException {
+    }
+}
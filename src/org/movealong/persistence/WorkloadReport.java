@@ -0,0 +1,106 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a {@link WorkloadReplayer} run, with the statement time of the recording for comparison.
+ */
+public class WorkloadReport {
+    private final long sessions;
+    private final long transactions;
+    private final long statements;
+    private final long failedStatements;
+    private final long statementMicros;
+    private final long recordedStatementMicros;
+    private final long elapsedMicros;
+
+    WorkloadReport(long sessions, long transactions, long statements, long failedStatements, long statementMicros,
+                   long recordedStatementMicros, long elapsedMicros) {
+        this.sessions = sessions;
+        this.transactions = transactions;
+        this.statements = statements;
+        this.failedStatements = failedStatements;
+        this.statementMicros = statementMicros;
+        this.recordedStatementMicros = recordedStatementMicros;
+        this.elapsedMicros = elapsedMicros;
+    }
+
+    /**
+     * @return the number of sessions replayed, counting each copy
+     */
+    public long getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @return the number of transactions replayed, counting each copy
+     */
+    public long getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * @return the number of statements replayed, counting each copy
+     */
+    public long getStatements() {
+        return statements;
+    }
+
+    /**
+     * @return the number of replayed statements which the database rejected
+     */
+    public long getFailedStatements() {
+        return failedStatements;
+    }
+
+    /**
+     * @param unit the unit of the result
+     * @return the total time spent executing the replayed statements and reading their results
+     */
+    public long getStatementTime(TimeUnit unit) {
+        return unit.convert(statementMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @param unit the unit of the result
+     * @return the total time the recorded statements took, once for each copy
+     */
+    public long getRecordedStatementTime(TimeUnit unit) {
+        return unit.convert(recordedStatementMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @param unit the unit of the result
+     * @return the time from the start of the replay until its last session closed
+     */
+    public long getElapsedTime(TimeUnit unit) {
+        return unit.convert(elapsedMicros, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return sessions + " sessions, " + transactions + " transactions, " + statements + " statements (" +
+                failedStatements + " failed) in " + getElapsedTime(TimeUnit.MILLISECONDS) + "ms; statement time " +
+                getStatementTime(TimeUnit.MILLISECONDS) + "ms, recorded " +
+                getRecordedStatementTime(TimeUnit.MILLISECONDS) + "ms";
+    }
+}
@@ -25,27 +25,65 @@ import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.util.SerializationHelper;
+import org.movealong.persistence.jdbc.InstrumentedConnectionProvider;
+import org.movealong.persistence.jdbc.StatementInterceptor;
+import org.movealong.persistence.jdbc.StatementListener;
 
+import java.io.File;
 import java.util.Collections;
 import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A {@link Provider<SessionFactory>} which creates the SessionFactory using a the XML configuration file
  * named in the constructor.  In lieu of naming a configuration file, the provider uses the default name
- * <code>/hibernate.cfg.xml</code>.
+ * <code>/hibernate.cfg.xml</code>.  If a configuration cache file is bound, the bound configuration is persisted
+ * there and reused on later starts for as long as the configuration files and mapped classes are unchanged.
+ *
+ * The SessionFactory is built once, on first use, and published without locking.  It may be rebuilt from the
+ * configuration files while in use by calling {@link #reload()}.
+ *
+ * When a {@link TenantResolver} is bound, the provider instead keeps a SessionFactory for each tenant, built on
+ * first use.  The configuration files are parsed and the mappings bound only once, but each tenant's configuration
+ * is deserialized from that as a full copy, so no mapping metadata is shared between tenants, and each tenant's
+ * SessionFactory costs as much memory as an untenanted one.  At most {@link #MAXIMUM_TENANT_FACTORIES} are kept;
+ * the least recently used is retired when another is needed, and closed once its sessions have ended.  The tenant
+ * of each session is that of the thread opening it, as identified by the {@link TenantContext}.
  */
 @Singleton
-public class XmlSessionFactoryProvider implements Provider<SessionFactory> {
+public class XmlSessionFactoryProvider implements LeasingSessionFactoryProvider {
     /**
      * The default configuration file name, used when another is not specified using the constructor.
      */
     public static final String DEFAULT_CONFIGURATION_FILE = "/hibernate.cfg.xml";
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * The binding name of the optional {@link File} in which the built configuration is cached.
+     */
+    public static final String CONFIGURATION_CACHE_FILE = "org.movealong.persistence.configurationCacheFile";
+
+    /**
+     * The binding name of the maximum number of tenant SessionFactories kept at once.
+     */
+    public static final String MAXIMUM_TENANT_FACTORIES = "org.movealong.persistence.tenants.maximumFactories";
+
+    private final Object buildLock = new Object();
+    private final AtomicReference<DrainingSessionFactory> current = new AtomicReference<DrainingSessionFactory>();
+    private final ConcurrentMap<SessionFactory, DrainingSessionFactory> replaced =
+            new ConcurrentHashMap<SessionFactory, DrainingSessionFactory>();
     private final Set<String> configurationFiles;
-    private SessionFactory sessionFactory;
+    private ConfigurationCache configurationCache;
+    private Set<ConfigurationCustomizer> configurationCustomizers = Collections.emptySet();
+    private Set<StatementInterceptor> statementInterceptors = Collections.emptySet();
+    private Set<StatementListener> statementListeners = Collections.emptySet();
+    private TenantResolver tenantResolver;
+    private TenantContext tenantContext;
+    private int maximumTenantFactories = 16;
+    private volatile TenantSessionFactories tenantSessionFactories;
+    private byte[] serializedConfiguration;
 
     @Inject
     public XmlSessionFactoryProvider(@Named(DEFAULT_CONFIGURATION_FILE) Set<String> configurationFiles) {
@@ -54,30 +92,184 @@ public class XmlSessionFactoryProvider implements Provider<SessionFactory> {
                 : Collections.unmodifiableSet(configurationFiles);
     }
 
+    @Inject(optional = true)
+    public void setConfigurationCacheFile(@Named(CONFIGURATION_CACHE_FILE) File configurationCacheFile) {
+        this.configurationCache = new ConfigurationCache(configurationCacheFile);
+    }
+
+    @Inject(optional = true)
+    public void setConfigurationCustomizers(Set<ConfigurationCustomizer> configurationCustomizers) {
+        this.configurationCustomizers = configurationCustomizers;
+    }
+
+    @Inject(optional = true)
+    public void setStatementInterceptors(Set<StatementInterceptor> statementInterceptors) {
+        this.statementInterceptors = statementInterceptors;
+    }
+
+    @Inject(optional = true)
+    public void setStatementListeners(Set<StatementListener> statementListeners) {
+        this.statementListeners = statementListeners;
+    }
+
+    @Inject(optional = true)
+    public void setTenantResolver(TenantResolver tenantResolver) {
+        this.tenantResolver = tenantResolver;
+    }
+
+    @Inject
+    public void setTenantContext(TenantContext tenantContext) {
+        this.tenantContext = tenantContext;
+    }
+
+    @Inject(optional = true)
+    public void setMaximumTenantFactories(@Named(MAXIMUM_TENANT_FACTORIES) int maximumTenantFactories) {
+        this.maximumTenantFactories = maximumTenantFactories;
+    }
+
     @Override
     public SessionFactory get() {
-        lock.readLock().lock();
-        try {
-            if (sessionFactory == null) {
-                lock.readLock().unlock();
-                lock.writeLock().lock();
-                try {
-                    sessionFactory = createSessionFactory();
-                } finally {
-                    lock.writeLock().unlock();
-                    lock.readLock().lock();
+        if (tenantResolver != null) {
+            return tenantSessionFactories().get();
+        }
+        return current().getSessionFactory();
+    }
+
+    @Override
+    public SessionFactory acquire() {
+        if (tenantResolver != null) {
+            return tenantSessionFactories().acquire();
+        }
+        DrainingSessionFactory current;
+        do {
+            current = current();
+        } while (!current.lease());
+        return current.getSessionFactory();
+    }
+
+    @Override
+    public void release(SessionFactory sessionFactory) {
+        if (tenantResolver != null) {
+            tenantSessionFactories().release(sessionFactory);
+            return;
+        }
+        DrainingSessionFactory leased = current.get();
+        if (leased == null || leased.getSessionFactory() != sessionFactory) {
+            leased = replaced.get(sessionFactory);
+        }
+        if (leased != null && leased.release()) {
+            replaced.remove(sessionFactory);
+        }
+    }
+
+    /**
+     * Builds a new SessionFactory from the configuration files as they are now and replaces the current
+     * SessionFactory with it.  Sessions that are already open continue to use the replaced SessionFactory, which
+     * is closed when the last of them is closed.  If the new SessionFactory cannot be built, the current
+     * SessionFactory remains in use.  When there is a SessionFactory per tenant, every one of them is retired, and
+     * each is built again from the configuration files when its tenant next opens a session.
+     */
+    public void reload() {
+        if (tenantResolver != null) {
+            synchronized (buildLock) {
+                serializedConfiguration = null;
+            }
+            tenantSessionFactories().retireAll();
+            return;
+        }
+        synchronized (buildLock) {
+            DrainingSessionFactory replacement = new DrainingSessionFactory(createSessionFactory());
+            DrainingSessionFactory previous = current.get();
+            if (previous != null) {
+                // must be findable by release() before it stops being current
+                replaced.put(previous.getSessionFactory(), previous);
+            }
+            current.set(replacement);
+            if (previous != null && previous.retire()) {
+                replaced.remove(previous.getSessionFactory());
+            }
+        }
+    }
+
+    private DrainingSessionFactory current() {
+        DrainingSessionFactory current = this.current.get();
+        if (current == null) {
+            synchronized (buildLock) {
+                current = this.current.get();
+                if (current == null) {
+                    current = new DrainingSessionFactory(createSessionFactory());
+                    this.current.set(current);
                 }
             }
-            return sessionFactory;
-        } finally {
-            lock.readLock().unlock();
         }
+        return current;
+    }
+
+    private TenantSessionFactories tenantSessionFactories() {
+        TenantSessionFactories tenantSessionFactories = this.tenantSessionFactories;
+        if (tenantSessionFactories == null) {
+            synchronized (buildLock) {
+                tenantSessionFactories = this.tenantSessionFactories;
+                if (tenantSessionFactories == null) {
+                    tenantSessionFactories = new TenantSessionFactories(tenantContext, maximumTenantFactories) {
+                        @Override
+                        SessionFactory build(String tenant) {
+                            return createTenantSessionFactory(tenant);
+                        }
+                    };
+                    this.tenantSessionFactories = tenantSessionFactories;
+                }
+            }
+        }
+        return tenantSessionFactories;
+    }
+
+    private SessionFactory createTenantSessionFactory(String tenant) {
+        byte[] serializedConfiguration;
+        synchronized (buildLock) {
+            if (this.serializedConfiguration == null) {
+                this.serializedConfiguration = SerializationHelper.serialize(loadConfiguration(true));
+            }
+            serializedConfiguration = this.serializedConfiguration;
+        }
+        // each tenant's copy shares nothing with the others, but skips parsing and annotation binding
+        AnnotationConfiguration configuration =
+                (AnnotationConfiguration) SerializationHelper.deserialize(serializedConfiguration);
+        tenantResolver.configure(tenant, configuration);
+        return buildSessionFactory(configuration);
     }
 
     private SessionFactory createSessionFactory() {
-        AnnotationConfiguration configuration = new AnnotationConfiguration();
-        for (String configurationFile : configurationFiles) {
-            configuration.configure(configurationFile);
+        return buildSessionFactory(loadConfiguration(false));
+    }
+
+    private AnnotationConfiguration loadConfiguration(boolean bindMappings) {
+        AnnotationConfiguration configuration = configurationCache == null
+                ? null
+                : configurationCache.load(configurationFiles);
+        if (configuration == null) {
+            configuration = new AnnotationConfiguration();
+            for (String configurationFile : configurationFiles) {
+                configuration.configure(configurationFile);
+            }
+            if (configurationCache != null || bindMappings) {
+                // bind the mappings before storing or serializing so that a warm start or a tenant skips binding too
+                configuration.buildMappings();
+            }
+            if (configurationCache != null) {
+                configurationCache.store(configurationFiles, configuration);
+            }
+        }
+        return configuration;
+    }
+
+    private SessionFactory buildSessionFactory(AnnotationConfiguration configuration) {
+        for (ConfigurationCustomizer configurationCustomizer : configurationCustomizers) {
+            configurationCustomizer.customize(configuration);
+        }
+        if (!statementInterceptors.isEmpty() || !statementListeners.isEmpty()) {
+            // installed last so that it wraps whichever connection provider the customizers chose
+            InstrumentedConnectionProvider.install(configuration, statementInterceptors, statementListeners);
         }
         return configuration.buildSessionFactory();
     }
@@ -0,0 +1,86 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HQL query whose results may be served from the {@link QueryCache}.  The query string and its positional
+ * parameter values together form the cache key, so parameter values must have meaningful equals() and hashCode()
+ * implementations.  Entities make poor parameters for this reason; pass their identifiers instead.
+ */
+public class CachedQuery {
+    private final String queryString;
+    private final Object[] parameters;
+    private long timeToLiveMillis;
+
+    /**
+     * @param queryString an HQL query
+     * @param parameters  the values of the query's positional parameters, in order
+     */
+    public CachedQuery(String queryString, Object... parameters) {
+        this.queryString = queryString;
+        this.parameters = parameters.clone();
+    }
+
+    /**
+     * Limits how long the results of this query may be served from the cache, regardless of whether the tables
+     * that it reads have changed.  By default results are kept until invalidated or evicted.
+     *
+     * @param timeToLive the maximum age of cached results
+     * @param unit       the unit of timeToLive
+     * @return this
+     */
+    public CachedQuery expireAfter(long timeToLive, TimeUnit unit) {
+        this.timeToLiveMillis = unit.toMillis(timeToLive);
+        return this;
+    }
+
+    public String getQueryString() {
+        return queryString;
+    }
+
+    public Object[] getParameters() {
+        return parameters.clone();
+    }
+
+    public long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CachedQuery)) return false;
+        CachedQuery that = (CachedQuery) o;
+        return queryString.equals(that.queryString) && Arrays.equals(parameters, that.parameters);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * queryString.hashCode() + Arrays.hashCode(parameters);
+    }
+
+    @Override
+    public String toString() {
+        return queryString + " " + Arrays.toString(parameters);
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.cache;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.hibernate.Query;
+import org.hibernate.Transaction;
+import org.hibernate.classic.Session;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.type.Type;
+import org.movealong.persistence.HibernateFacade;
+import org.movealong.persistence.SessionAdapter;
+import org.movealong.persistence.TenantContext;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A cache of HQL query results which is invalidated by committed changes to the tables that the queries read.
+ * A query that misses the cache is run using the current thread's session, as with
+ * {@link HibernateFacade#usingSession(org.movealong.persistence.SessionReceiver)}.  A scalar or projection query
+ * answered from the cache does not use the session at all.</p>
+ *
+ * <p>Invalidation is by table.  {@link QueryCacheInvalidator} records the tables written by each transaction, and
+ * when the transaction commits every cached result that read one of those tables becomes invalid.  Results read
+ * while a transaction has uncommitted changes to one of their tables are never cached.  Results that were read
+ * concurrently with a commit to one of their tables are treated as invalid.  A transaction that has flushed changes
+ * to a table bypasses the cache for queries that read that table, so it sees its own changes; changes that have not
+ * yet been flushed are not seen by a query answered from the cache.</p>
+ *
+ * <p>The cache holds results up to a maximum total weight, where the weight of a result is its row count plus one,
+ * and evicts the least recently used results first.  When sessions are kept per tenant, results are cached per
+ * {@link TenantContext tenant}, and a commit by any tenant invalidates the tables it wrote for every tenant.</p>
+ *
+ * <p>The same result list is returned to every caller that hits the cache, so it is unmodifiable.  Entities belong
+ * to the session that read them, so a query that returns entities, alone or among other values, has their
+ * identifiers cached in their place.  A hit on such a query still needs the current thread's session, through which
+ * each entity is rehydrated with {@link Session#load(String, Serializable)}: an entity already in the session is
+ * returned as is, and any other is returned as a proxy, which is initialized from the database or the second-level
+ * cache when first used, so the query itself is not run again.  Each caller of such a query receives a list of its
+ * own.</p>
+ */
+@Singleton
+public class QueryCache implements QueryCacheMXBean {
+    /**
+     * The binding name of the maximum total weight of cached results.
+     */
+    public static final String MAXIMUM_WEIGHT = "org.movealong.persistence.cache.maximumWeight";
+
+    private static final long DEFAULT_MAXIMUM_WEIGHT = 10000;
+
+    private final HibernateFacade hibernateFacade;
+    private final TenantContext tenantContext;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final AtomicLong generation = new AtomicLong();
+    private final ConcurrentMap<Serializable, Long> invalidations = new ConcurrentHashMap<Serializable, Long>();
+    private final ThreadLocal<PendingInvalidation> pending = new ThreadLocal<PendingInvalidation>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long maximumWeight = DEFAULT_MAXIMUM_WEIGHT;
+    private long weight;
+
+    @Inject
+    public QueryCache(HibernateFacade hibernateFacade, TenantContext tenantContext) {
+        this.hibernateFacade = hibernateFacade;
+        this.tenantContext = tenantContext;
+    }
+
+    @Inject(optional = true)
+    public void setMaximumWeight(@Named(MAXIMUM_WEIGHT) long maximumWeight) {
+        synchronized (entries) {
+            this.maximumWeight = maximumWeight;
+            evict();
+        }
+    }
+
+    /**
+     * Gets the results of a query from the cache, or runs it using the current thread's session and caches the
+     * results if they are not cached.  Entities among the results are cached by identifier and rehydrated in the
+     * current thread's session.
+     *
+     * @param query the query
+     * @param <T>   the type of the query's results
+     * @return the unmodifiable results of the query
+     * @throws org.hibernate.HibernateException if the results are not cached, or include entities, and there is no
+     *                                          session associated with the current thread
+     */
+    public <T> List<T> list(final CachedQuery query) {
+        final Key key = new Key(tenantContext.currentTenant(), query);
+        final Entry cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            if (!cached.entities) {
+                @SuppressWarnings("unchecked")
+                List<T> results = (List<T>) cached.results;
+                return results;
+            }
+            return hibernateFacade.usingSession(
+                    new SessionAdapter<List<T>>() {
+                        @Override
+                        public List<T> receive(Session session) {
+                            return rehydrate(session, cached.results);
+                        }
+                    });
+        }
+        misses.incrementAndGet();
+        final long started = generation.get();
+        return hibernateFacade.usingSession(
+                new SessionAdapter<List<T>>() {
+                    @Override
+                    public List<T> receive(Session session) {
+                        Query hibernateQuery = session.createQuery(query.getQueryString());
+                        Object[] parameters = query.getParameters();
+                        for (int i = 0; i < parameters.length; i++) {
+                            hibernateQuery.setParameter(i, parameters[i]);
+                        }
+                        @SuppressWarnings("unchecked")
+                        List<T> results = Collections.unmodifiableList(new ArrayList<T>(hibernateQuery.list()));
+                        Set<Serializable> querySpaces = querySpaces(session, query.getQueryString());
+                        if (returnsEntities(hibernateQuery)) {
+                            store(key, querySpaces, dehydrate(session, results), true, started);
+                        } else {
+                            store(key, querySpaces, results, false, started);
+                        }
+                        return results;
+                    }
+                });
+    }
+
+    /**
+     * Invalidates every cached result read from any of the given tables.
+     *
+     * @param querySpaces table names, as reported by Hibernate's persisters
+     */
+    public void invalidate(Collection<? extends Serializable> querySpaces) {
+        Long invalidation = generation.incrementAndGet();
+        for (Serializable querySpace : querySpaces) {
+            Long previous = invalidations.putIfAbsent(querySpace, invalidation);
+            while (previous != null && previous < invalidation
+                    && !invalidations.replace(querySpace, previous, invalidation)) {
+                previous = invalidations.get(querySpace);
+            }
+        }
+    }
+
+    /**
+     * Records that the given tables have been written within a transaction.  Unless the transaction is active, the
+     * tables are invalidated at once.  Otherwise they are invalidated when the transaction commits.
+     *
+     * @param transaction the transaction in which the tables were written
+     * @param querySpaces the table names
+     */
+    void written(Transaction transaction, Serializable[] querySpaces) {
+        if (!transaction.isActive()) {
+            invalidate(Arrays.asList(querySpaces));
+            return;
+        }
+        Object scope = hibernateFacade.getSynchronizationScope(transaction);
+        PendingInvalidation pendingInvalidation = pending.get();
+        if (pendingInvalidation == null || pendingInvalidation.scope != scope) {
+            pendingInvalidation = new PendingInvalidation(scope);
+            hibernateFacade.registerSynchronization(transaction, pendingInvalidation);
+            pending.set(pendingInvalidation);
+        }
+        Collections.addAll(pendingInvalidation.querySpaces, querySpaces);
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public long getWeight() {
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    @Override
+    public long getMaximumWeight() {
+        synchronized (entries) {
+            return maximumWeight;
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    private Entry lookup(Key key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null || isWrittenByCurrentThread(entry.querySpaces)) {
+                return null;
+            } else if (isValid(entry)) {
+                return entry;
+            } else {
+                entries.remove(key);
+                weight -= entry.weight;
+                return null;
+            }
+        }
+    }
+
+    private void store(Key key, Set<Serializable> querySpaces, List<?> results, boolean entities, long started) {
+        if (isWrittenByCurrentThread(querySpaces)) {
+            // the results include this thread's uncommitted changes
+            return;
+        }
+        long expires = key.query.getTimeToLiveMillis() > 0
+                ? System.currentTimeMillis() + key.query.getTimeToLiveMillis()
+                : Long.MAX_VALUE;
+        Entry entry = new Entry(querySpaces, results, entities, started, expires);
+        if (!isValid(entry)) {
+            return;
+        }
+        synchronized (entries) {
+            Entry replaced = entries.put(key, entry);
+            weight += entry.weight - (replaced == null ? 0 : replaced.weight);
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (weight > maximumWeight && eldest.hasNext()) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private boolean isWrittenByCurrentThread(Set<Serializable> querySpaces) {
+        PendingInvalidation pendingInvalidation = pending.get();
+        return pendingInvalidation != null && !Collections.disjoint(pendingInvalidation.querySpaces, querySpaces);
+    }
+
+    private boolean isValid(Entry entry) {
+        if (entry.expires < System.currentTimeMillis()) {
+            return false;
+        }
+        for (Serializable querySpace : entry.querySpaces) {
+            Long invalidation = invalidations.get(querySpace);
+            if (invalidation != null && invalidation > entry.generation) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean returnsEntities(Query query) {
+        for (Type type : query.getReturnTypes()) {
+            if (type.isEntityType()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the entities among results, whether rows or columns of rows, with references to them.
+     */
+    private static List<Object> dehydrate(Session session, List<?> results) {
+        List<Object> dehydrated = new ArrayList<Object>(results.size());
+        for (Object row : results) {
+            if (row instanceof Object[]) {
+                Object[] columns = ((Object[]) row).clone();
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = dehydrate(session, columns[i]);
+                }
+                dehydrated.add(columns);
+            } else {
+                dehydrated.add(dehydrate(session, row));
+            }
+        }
+        return Collections.unmodifiableList(dehydrated);
+    }
+
+    private static Object dehydrate(Session session, Object value) {
+        if (value == null || !session.contains(value)) {
+            return value;
+        }
+        return new EntityReference(session.getEntityName(value), session.getIdentifier(value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> rehydrate(Session session, List<?> results) {
+        List<Object> rehydrated = new ArrayList<Object>(results.size());
+        for (Object row : results) {
+            if (row instanceof Object[]) {
+                Object[] columns = ((Object[]) row).clone();
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = rehydrate(session, columns[i]);
+                }
+                rehydrated.add(columns);
+            } else {
+                rehydrated.add(rehydrate(session, row));
+            }
+        }
+        return (List<T>) Collections.unmodifiableList(rehydrated);
+    }
+
+    private static Object rehydrate(Session session, Object value) {
+        if (!(value instanceof EntityReference)) {
+            return value;
+        }
+        EntityReference reference = (EntityReference) value;
+        return session.load(reference.entityName, reference.id);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Serializable> querySpaces(Session session, String queryString) {
+        SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) session.getSessionFactory();
+        return new HashSet<Serializable>(sessionFactory.getQueryPlanCache()
+                .getHQLQueryPlan(queryString, false, Collections.EMPTY_MAP)
+                .getQuerySpaces());
+    }
+
+    /**
+     * A query as asked by one tenant, since tenants with equal queries may read different databases.
+     */
+    private static class Key {
+        private final String tenant;
+        private final CachedQuery query;
+
+        private Key(String tenant, CachedQuery query) {
+            this.tenant = tenant;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return (tenant == null ? other.tenant == null : tenant.equals(other.tenant)) && query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (tenant == null ? 0 : tenant.hashCode()) + query.hashCode();
+        }
+    }
+
+    /**
+     * An entity among cached results, which is loaded again by each session that hits them.
+     */
+    private static class EntityReference {
+        private final String entityName;
+        private final Serializable id;
+
+        private EntityReference(String entityName, Serializable id) {
+            this.entityName = entityName;
+            this.id = id;
+        }
+    }
+
+    private static class Entry {
+        private final Set<Serializable> querySpaces;
+        private final List<?> results;
+        private final boolean entities;
+        private final long generation;
+        private final long expires;
+        private final long weight;
+
+        private Entry(Set<Serializable> querySpaces, List<?> results, boolean entities, long generation,
+                      long expires) {
+            this.querySpaces = querySpaces;
+            this.results = results;
+            this.entities = entities;
+            this.generation = generation;
+            this.expires = expires;
+            this.weight = results.size() + 1;
+        }
+    }
+
+    private class PendingInvalidation implements Synchronization {
+        private final Object scope;
+        private final Set<Serializable> querySpaces = new HashSet<Serializable>();
+
+        private PendingInvalidation(Object scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (pending.get() == this) {
+                pending.remove();
+            }
+            if (status == Status.STATUS_COMMITTED) {
+                invalidate(querySpaces);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.cache;
+
+import com.google.inject.Inject;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.event.*;
+import org.hibernate.classic.Session;
+import org.movealong.persistence.BulkOperationListener;
+import org.movealong.persistence.ConfigurationCustomizer;
+
+import java.io.Serializable;
+import java.util.Set;
+
+import static org.movealong.persistence.EventListenerSupport.append;
+
+/**
+ * Installs Hibernate event listeners which report every table written by an insert, update, delete, or collection
+ * change to the {@link QueryCache}, so that the cached results read from those tables are invalidated when the
+ * writing transaction commits.  It does the same for bulk statements run by
+ * {@link org.movealong.persistence.HibernateFacade#bulkUpdate(String, Object...)}.  Other bulk HQL and native SQL
+ * statements bypass these events; their tables must be invalidated through
+ * {@link QueryCache#invalidate(java.util.Collection)}.
+ */
+public class QueryCacheInvalidator implements ConfigurationCustomizer, BulkOperationListener, PostInsertEventListener,
+        PostUpdateEventListener, PostDeleteEventListener, PostCollectionRecreateEventListener,
+        PostCollectionUpdateEventListener, PostCollectionRemoveEventListener {
+
+    private final transient QueryCache queryCache;
+
+    @Inject
+    public QueryCacheInvalidator(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    @Override
+    public void customize(AnnotationConfiguration configuration) {
+        EventListeners listeners = configuration.getEventListeners();
+        listeners.setPostInsertEventListeners(append(listeners.getPostInsertEventListeners(), this));
+        listeners.setPostUpdateEventListeners(append(listeners.getPostUpdateEventListeners(), this));
+        listeners.setPostDeleteEventListeners(append(listeners.getPostDeleteEventListeners(), this));
+        listeners.setPostCollectionRecreateEventListeners(append(listeners.getPostCollectionRecreateEventListeners(), this));
+        listeners.setPostCollectionUpdateEventListeners(append(listeners.getPostCollectionUpdateEventListeners(), this));
+        listeners.setPostCollectionRemoveEventListeners(append(listeners.getPostCollectionRemoveEventListeners(), this));
+    }
+
+    @Override
+    public void bulkExecuted(Session session, Set<Serializable> querySpaces) {
+        queryCache.written(session.getTransaction(), querySpaces.toArray(new Serializable[querySpaces.size()]));
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        queryCache.written(event.getSession().getTransaction(), event.getPersister().getQuerySpaces());
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        queryCache.written(event.getSession().getTransaction(), event.getPersister().getQuerySpaces());
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        queryCache.written(event.getSession().getTransaction(), event.getPersister().getQuerySpaces());
+    }
+
+    @Override
+    public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+        collectionWritten(event);
+    }
+
+    @Override
+    public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+        collectionWritten(event);
+    }
+
+    @Override
+    public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+        collectionWritten(event);
+    }
+
+    private void collectionWritten(AbstractCollectionEvent event) {
+        EventSource session = event.getSession();
+        queryCache.written(session.getTransaction(), session.getFactory()
+                .getCollectionPersister(event.getCollection().getRole())
+                .getCollectionSpaces());
+    }
+}
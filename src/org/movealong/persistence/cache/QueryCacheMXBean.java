@@ -0,0 +1,60 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.cache;
+
+/**
+ * The JMX view of the {@link QueryCache}.
+ */
+public interface QueryCacheMXBean {
+    /**
+     * @return the number of queries answered from the cache
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of queries that had to be run against the database
+     */
+    long getMissCount();
+
+    /**
+     * @return the number of cached results discarded to stay within the maximum weight
+     */
+    long getEvictionCount();
+
+    /**
+     * @return the number of cached results, including any that are invalid but not yet discarded
+     */
+    int getSize();
+
+    /**
+     * @return the total weight of the cached results
+     */
+    long getWeight();
+
+    /**
+     * @return the maximum total weight of the cached results
+     */
+    long getMaximumWeight();
+
+    /**
+     * Discards every cached result.
+     */
+    void clear();
+}
@@ -0,0 +1,92 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.changes;
+
+import java.io.Serializable;
+
+/**
+ * A committed change to one entity.  EntityChange objects are reused for later changes, so a subscriber must copy
+ * anything it wants to keep before returning from {@link EntityChangeSubscriber#onChange(EntityChange, boolean)}.
+ */
+public class EntityChange {
+    // the fields are volatile so that a copy can tell whether a publisher overwrote the slot while it was copied
+    private volatile long sequence = -1;
+    private volatile String entityName;
+    private volatile Serializable id;
+    private volatile ChangeType type;
+    private volatile boolean lastInTransaction;
+
+    /**
+     * @return the Hibernate entity name, which is the entity's class name unless mapped otherwise
+     */
+    public String getEntityName() {
+        return entityName;
+    }
+
+    /**
+     * @return the identifier of the changed entity
+     */
+    public Serializable getId() {
+        return id;
+    }
+
+    public ChangeType getType() {
+        return type;
+    }
+
+    /**
+     * @return true if this is the last change committed by its transaction
+     */
+    public boolean isLastInTransaction() {
+        return lastInTransaction;
+    }
+
+    void set(long sequence, String entityName, Serializable id, ChangeType type, boolean lastInTransaction) {
+        this.sequence = -1;
+        this.entityName = entityName;
+        this.id = id;
+        this.type = type;
+        this.lastInTransaction = lastInTransaction;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Copies a ring slot into this change.
+     *
+     * @param slot     the slot
+     * @param sequence the sequence the slot is expected to hold
+     * @return false if the slot held a different sequence before or during the copy
+     */
+    boolean copy(EntityChange slot, long sequence) {
+        if (slot.sequence != sequence) {
+            return false;
+        }
+        entityName = slot.entityName;
+        id = slot.id;
+        type = slot.type;
+        lastInTransaction = slot.lastInTransaction;
+        return slot.sequence == sequence;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + entityName + "#" + id;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.changes;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.event.*;
+import org.movealong.persistence.ConfigurationCustomizer;
+import org.movealong.persistence.HibernateFacade;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import static org.movealong.persistence.EventListenerSupport.append;
+
+/**
+ * Installs Hibernate event listeners which collect the entity inserts, updates, and deletes made by each transaction
+ * and publish them to the {@link EntityChangeFeed} when the transaction commits.  The changes of a transaction that
+ * rolls back are discarded.  Each thread reuses one buffer for the changes of its transactions, so collecting and
+ * publishing changes does not allocate once the buffer has grown to fit the largest transaction, except for the
+ * receivers of a {@link org.movealong.persistence.GroupCommitter}, which each collect into a buffer of their own.  Bulk HQL and
+ * native SQL statements bypass these events and are not reported.
+ */
+@Singleton
+public class EntityChangeCollector implements ConfigurationCustomizer, PostInsertEventListener,
+        PostUpdateEventListener, PostDeleteEventListener {
+
+    private final transient EntityChangeFeed entityChangeFeed;
+    private final transient HibernateFacade hibernateFacade;
+    private final transient ThreadLocal<ChangeBuffer> buffers = new ThreadLocal<ChangeBuffer>();
+
+    @Inject
+    public EntityChangeCollector(EntityChangeFeed entityChangeFeed, HibernateFacade hibernateFacade) {
+        this.entityChangeFeed = entityChangeFeed;
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    @Override
+    public void customize(AnnotationConfiguration configuration) {
+        EventListeners listeners = configuration.getEventListeners();
+        listeners.setPostInsertEventListeners(append(listeners.getPostInsertEventListeners(), this));
+        listeners.setPostUpdateEventListeners(append(listeners.getPostUpdateEventListeners(), this));
+        listeners.setPostDeleteEventListeners(append(listeners.getPostDeleteEventListeners(), this));
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        collect(event.getSession(), event.getPersister().getEntityName(), event.getId(), ChangeType.INSERT);
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        collect(event.getSession(), event.getPersister().getEntityName(), event.getId(), ChangeType.UPDATE);
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        collect(event.getSession(), event.getPersister().getEntityName(), event.getId(), ChangeType.DELETE);
+    }
+
+    private void collect(EventSource session, String entityName, Serializable id, ChangeType type) {
+        Transaction transaction = session.getTransaction();
+        if (!transaction.isActive()) {
+            // written without a transaction, so there will be no commit to wait for
+            entityChangeFeed.publish(new String[]{entityName}, new Serializable[]{id}, new ChangeType[]{type}, 1);
+            return;
+        }
+        Object scope = hibernateFacade.getSynchronizationScope(transaction);
+        ChangeBuffer buffer = buffers.get();
+        if (buffer == null || buffer.scope != null && buffer.scope != scope) {
+            // a buffer still awaiting another scope's completion, as in a group commit, is left to it
+            buffer = new ChangeBuffer();
+            buffers.set(buffer);
+        }
+        if (buffer.scope != scope) {
+            buffer.scope = scope;
+            hibernateFacade.registerSynchronization(transaction, buffer);
+        }
+        buffer.add(entityName, id, type);
+    }
+
+    private class ChangeBuffer implements Synchronization {
+        private Object scope;
+        private String[] entityNames = new String[16];
+        private Serializable[] ids = new Serializable[16];
+        private ChangeType[] types = new ChangeType[16];
+        private int size;
+
+        private void add(String entityName, Serializable id, ChangeType type) {
+            if (size == ids.length) {
+                entityNames = Arrays.copyOf(entityNames, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+                types = Arrays.copyOf(types, size * 2);
+            }
+            entityNames[size] = entityName;
+            ids[size] = id;
+            types[size] = type;
+            size++;
+        }
+
+        private void clear() {
+            Arrays.fill(entityNames, 0, size, null);
+            Arrays.fill(ids, 0, size, null);
+            Arrays.fill(types, 0, size, null);
+            size = 0;
+            scope = null;
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            try {
+                if (status == Status.STATUS_COMMITTED && size > 0) {
+                    entityChangeFeed.publish(entityNames, ids, types, size);
+                }
+            } finally {
+                clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.changes;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.movealong.persistence.BackgroundService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Delivers committed entity changes to {@link EntityChangeSubscriber}s.  Changes are published through a ring
+ * buffer of preallocated {@link EntityChange} slots, so that publishing a transaction's changes allocates nothing.
+ * Each subscriber runs on its own thread and receives every change available to it in one pass, so a subscriber
+ * that falls behind catches up in large batches rather than one change at a time.</p>
+ *
+ * <p>The changes of one transaction occupy consecutive slots and are never interleaved with the changes of another
+ * transaction, and {@link EntityChange#isLastInTransaction()} marks where each transaction ends.  A transaction with
+ * more changes than the ring has slots is made visible in parts, and other transactions wait to publish until its
+ * last part is visible.</p>
+ *
+ * <p>Publishing never waits for subscribers.  A subscriber that falls more than a ring's worth of changes behind
+ * loses the oldest changes it has not received, skips ahead to the oldest change still in the ring, and logs a
+ * warning; {@link #getLostCount()} counts the changes lost this way.  A subscriber that must see every change should
+ * hand its work off rather than do it in {@link EntityChangeSubscriber#onChange(EntityChange, boolean)}.</p>
+ */
+@Singleton
+public class EntityChangeFeed implements BackgroundService {
+    /**
+     * The binding name of the number of slots in the ring buffer, which is rounded up to a power of two.
+     */
+    public static final String RING_SIZE = "org.movealong.persistence.changes.ringSize";
+
+    private static final Logger log = LoggerFactory.getLogger(EntityChangeFeed.class);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final AtomicLong published = new AtomicLong(-1);
+    private final AtomicLong lost = new AtomicLong();
+    private final List<EntityChangeSubscriber> pendingSubscribers = new ArrayList<EntityChangeSubscriber>();
+    private int ringSize = 1024;
+    private volatile EntityChange[] ring;
+    private volatile Consumer[] consumers = new Consumer[0];
+    private volatile boolean subscribersPending;
+
+    @Inject(optional = true)
+    public void setRingSize(@Named(RING_SIZE) int ringSize) {
+        this.ringSize = ringSize;
+    }
+
+    @Inject(optional = true)
+    public synchronized void setSubscribers(Set<EntityChangeSubscriber> subscribers) {
+        pendingSubscribers.addAll(subscribers);
+        subscribersPending = !pendingSubscribers.isEmpty();
+    }
+
+    /**
+     * Starts delivering changes to a subscriber, beginning with the next transaction to publish.
+     *
+     * @param subscriber the subscriber
+     */
+    public synchronized void subscribe(EntityChangeSubscriber subscriber) {
+        pendingSubscribers.add(subscriber);
+        subscribersPending = true;
+        ring();
+    }
+
+    /**
+     * @return the number of changes that subscribers missed because they fell a ring's worth of changes behind
+     */
+    public long getLostCount() {
+        return lost.get();
+    }
+
+    /**
+     * Stops every subscriber thread once it has received the changes already published.
+     *
+     * @param timeout the maximum time to wait for the subscribers to catch up
+     * @param unit    the unit of timeout
+     * @return true if every subscriber caught up and stopped within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        Consumer[] consumers;
+        synchronized (this) {
+            consumers = this.consumers;
+            this.consumers = new Consumer[0];
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Consumer consumer : consumers) {
+            consumer.running = false;
+            LockSupport.unpark(consumer.thread);
+        }
+        for (Consumer consumer : consumers) {
+            consumer.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (consumer.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Publishes the changes committed by one transaction.
+     *
+     * @param entityNames the entity name of each change
+     * @param ids         the entity identifier of each change
+     * @param types       the type of each change
+     * @param count       the number of changes, which may be less than the length of the arrays
+     */
+    void publish(String[] entityNames, Serializable[] ids, ChangeType[] types, int count) {
+        EntityChange[] ring = ring();
+        Consumer[] consumers = this.consumers;
+        if (consumers.length == 0) {
+            return;
+        }
+        int mask = ring.length - 1;
+        // the whole transaction is claimed at once, so no other transaction's changes can fall between its slots
+        long first = claimed.addAndGet(count) - count + 1;
+        // slots become visible in the order they were claimed, so wait for earlier claims to be published
+        while (published.get() != first - 1) {
+            Thread.yield();
+        }
+        int offset = 0;
+        while (offset < count) {
+            // a transaction with more changes than the ring has slots is published in parts
+            int length = Math.min(count - offset, ring.length);
+            long start = first + offset;
+            long last = start + length - 1;
+            // slots are overwritten whether or not every subscriber has read them; a subscriber that is lapped
+            // notices when it reads the slot and skips ahead
+            for (int i = 0; i < length; i++) {
+                int change = offset + i;
+                ring[(int) ((start + i) & mask)].set(
+                        start + i, entityNames[change], ids[change], types[change], change == count - 1);
+            }
+            published.set(last);
+            for (Consumer consumer : consumers) {
+                LockSupport.unpark(consumer.thread);
+            }
+            offset += length;
+        }
+    }
+
+    private EntityChange[] ring() {
+        EntityChange[] ring = this.ring;
+        if (ring == null || subscribersPending) {
+            synchronized (this) {
+                ring = this.ring;
+                if (ring == null) {
+                    int size = Integer.highestOneBit(Math.max(1, ringSize - 1)) << 1;
+                    ring = new EntityChange[size];
+                    for (int i = 0; i < size; i++) {
+                        ring[i] = new EntityChange();
+                    }
+                    this.ring = ring;
+                }
+                if (!pendingSubscribers.isEmpty()) {
+                    Consumer[] consumers = Arrays.copyOf(this.consumers, this.consumers.length + pendingSubscribers.size());
+                    // claims are made a whole transaction at a time, so the next claim starts a transaction; a new
+                    // subscriber starts there rather than at a slot that a transaction in progress may be writing
+                    long start = claimed.get() + 1;
+                    for (int i = 0; i < pendingSubscribers.size(); i++) {
+                        consumers[this.consumers.length + i] =
+                                new Consumer(pendingSubscribers.get(i), consumers.length, start);
+                    }
+                    pendingSubscribers.clear();
+                    subscribersPending = false;
+                    this.consumers = consumers;
+                }
+            }
+        }
+        return ring;
+    }
+
+    private class Consumer implements Runnable {
+        private final EntityChangeSubscriber subscriber;
+        private final EntityChange change = new EntityChange();
+        private final Thread thread;
+        private volatile boolean running = true;
+        private long sequence;
+
+        private Consumer(EntityChangeSubscriber subscriber, int index, long start) {
+            this.subscriber = subscriber;
+            this.sequence = start - 1;
+            this.thread = new Thread(this, "hibernate-fu-change-feed-" + index);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+            EntityChange[] ring = EntityChangeFeed.this.ring;
+            int mask = ring.length - 1;
+            while (running || sequence < published.get()) {
+                long available = published.get();
+                long next = sequence + 1;
+                if (next > available) {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                    continue;
+                }
+                long missed = Math.max(0, available - ring.length + 1 - next);
+                for (long slot = next + missed; slot <= available; slot++) {
+                    // the slot is copied so that a publisher overwriting it cannot change it under the subscriber
+                    if (!change.copy(ring[(int) (slot & mask)], slot)) {
+                        missed++;
+                        continue;
+                    }
+                    try {
+                        subscriber.onChange(change, slot == available);
+                    } catch (RuntimeException e) {
+                        log.error("Entity change subscriber " + subscriber + " failed", e);
+                    }
+                }
+                sequence = available;
+                if (missed > 0) {
+                    lost.addAndGet(missed);
+                    log.warn("Entity change subscriber {} fell behind and missed {} changes", subscriber, missed);
+                }
+            }
+        }
+    }
+}
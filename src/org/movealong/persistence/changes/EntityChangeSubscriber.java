@@ -0,0 +1,36 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.changes;
+
+/**
+ * Receives the changes published by the {@link EntityChangeFeed}.  Each subscriber is called from its own thread,
+ * in commit order, with every change that has been published since it was last called.  A subscriber which does
+ * expensive work per call, such as a remote cache invalidation, should accumulate changes until endOfBatch.  A
+ * subscriber that falls more than a ring's worth of changes behind misses the oldest of them.
+ */
+public interface EntityChangeSubscriber {
+    /**
+     * Called with each committed change.
+     *
+     * @param change     the change, which is only valid until this method returns
+     * @param endOfBatch true if no further changes are available yet
+     */
+    void onChange(EntityChange change, boolean endOfBatch);
+}
@@ -0,0 +1,255 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.id;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.TransactionHelper;
+import org.hibernate.id.Configurable;
+import org.hibernate.id.IdentifierGeneratorFactory;
+import org.hibernate.id.PersistentIdentifierGenerator;
+import org.hibernate.mapping.Table;
+import org.hibernate.type.Type;
+import org.hibernate.util.PropertiesHelper;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>An identifier generator which reserves blocks of ids in one round trip and hands them out without locking, so
+ * that inserts need no round trip of their own for their ids and can be batched.  Blocks are reserved from a
+ * sequence which increments by the block size, when the <code>sequence</code> parameter names one, or else from a
+ * row of a shared table, keyed by the <code>segment</code> parameter or the entity's table name, which is updated
+ * in a transaction of its own.  Ids are unique across processes sharing the database, but they are not ordered
+ * across threads or processes, and the unused remainder of a block is skipped when the process ends.</p>
+ *
+ * <p>Mapped with, for example:</p>
+ * <pre>
+ * &#64;GeneratedValue(generator = "blocks")
+ * &#64;GenericGenerator(name = "blocks", strategy = "org.movealong.persistence.id.BlockIdGenerator",
+ *         parameters = &#64;Parameter(name = "block_size", value = "100"))
+ * </pre>
+ */
+public class BlockIdGenerator extends TransactionHelper implements PersistentIdentifierGenerator, Configurable {
+    /**
+     * The parameter naming the sequence from which blocks are reserved.
+     */
+    public static final String SEQUENCE = "sequence";
+
+    /**
+     * The parameter naming the table from which blocks are reserved when no sequence is named.
+     */
+    public static final String TABLE_NAME = "table";
+
+    /**
+     * The parameter naming the row of the table from which blocks are reserved.
+     */
+    public static final String SEGMENT = "segment";
+
+    /**
+     * The parameter giving the number of ids in each block.
+     */
+    public static final String BLOCK_SIZE = "block_size";
+
+    public static final String DEFAULT_TABLE = "hibernate_fu_ids";
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+
+    private static final Block EXHAUSTED = new Block(0, 0);
+
+    private String sequence;
+    private String table;
+    private String segment;
+    private int blockSize;
+    private Class<?> returnedClass;
+    private volatile Block block = EXHAUSTED;
+
+    @Override
+    public void configure(Type type, Properties params, Dialect dialect) throws MappingException {
+        String catalog = params.getProperty(CATALOG);
+        String schema = params.getProperty(SCHEMA);
+        String sequence = params.getProperty(SEQUENCE);
+        if (sequence != null) {
+            if (!dialect.supportsSequences()) {
+                throw new MappingException("Dialect does not support sequences: " + dialect);
+            }
+            this.sequence = Table.qualify(catalog, schema, sequence);
+        } else {
+            table = Table.qualify(catalog, schema, PropertiesHelper.getString(TABLE_NAME, params, DEFAULT_TABLE));
+            segment = PropertiesHelper.getString(SEGMENT, params, params.getProperty(TABLE));
+        }
+        blockSize = PropertiesHelper.getInt(BLOCK_SIZE, params, DEFAULT_BLOCK_SIZE);
+        if (blockSize < 1) {
+            throw new MappingException("Block size must be positive: " + blockSize);
+        }
+        returnedClass = type.getReturnedClass();
+    }
+
+    @Override
+    public Serializable generate(SessionImplementor session, Object object) throws HibernateException {
+        while (true) {
+            Block current = block;
+            long id = current.next.getAndIncrement();
+            if (id < current.limit) {
+                return IdentifierGeneratorFactory.createNumber(id, returnedClass);
+            }
+            synchronized (this) {
+                if (block == current) {
+                    long start = sequence == null
+                            ? (Long) doWorkInNewTransaction(session)
+                            : nextSequenceValue(session);
+                    block = new Block(start, start + blockSize);
+                }
+            }
+        }
+    }
+
+    private long nextSequenceValue(SessionImplementor session) throws HibernateException {
+        String sql = session.getFactory().getDialect().getSequenceNextValString(sequence);
+        try {
+            PreparedStatement statement = session.getBatcher().prepareSelectStatement(sql);
+            try {
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    resultSet.next();
+                    return resultSet.getLong(1);
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                session.getBatcher().closeStatement(statement);
+            }
+        } catch (SQLException e) {
+            throw session.getFactory().getSQLExceptionConverter().convert(e, "could not reserve ids", sql);
+        }
+    }
+
+    /**
+     * Reserves a block from the segment's row, which holds the first unreserved id, inserting the row for the first
+     * block of a new segment.  If the insert fails, another process is assumed to have inserted the row first, and
+     * the update is retried once; if it still finds no row, the insert's failure is thrown.  The insert runs under a
+     * savepoint, since on some databases, such as PostgreSQL, a failed statement otherwise aborts the transaction and
+     * the retried update could not succeed.
+     */
+    @Override
+    protected Serializable doWorkInCurrentTransaction(Connection connection, String sql) throws SQLException {
+        SQLException insertFailure = null;
+        while (true) {
+            PreparedStatement update = connection.prepareStatement(
+                    "update " + table + " set next_value = next_value + ? where id_name = ?");
+            try {
+                update.setLong(1, blockSize);
+                update.setString(2, segment);
+                if (update.executeUpdate() > 0) {
+                    break;
+                }
+            } finally {
+                update.close();
+            }
+            if (insertFailure != null) {
+                throw insertFailure;
+            }
+            Savepoint savepoint = connection.setSavepoint("reserve_segment");
+            PreparedStatement insert = connection.prepareStatement(
+                    "insert into " + table + " (id_name, next_value) values (?, ?)");
+            try {
+                insert.setString(1, segment);
+                insert.setLong(2, 1L + blockSize);
+                insert.executeUpdate();
+                connection.releaseSavepoint(savepoint);
+                return 1L;
+            } catch (SQLException e) {
+                // another process may have inserted the segment first, in which case its row can now be updated
+                insertFailure = e;
+                connection.rollback(savepoint);
+            } finally {
+                insert.close();
+            }
+        }
+        PreparedStatement select = connection.prepareStatement("select next_value from " + table + " where id_name = ?");
+        try {
+            select.setString(1, segment);
+            ResultSet resultSet = select.executeQuery();
+            try {
+                resultSet.next();
+                return resultSet.getLong(1) - blockSize;
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            select.close();
+        }
+    }
+
+    @Override
+    public String[] sqlCreateStrings(Dialect dialect) throws HibernateException {
+        if (sequence != null) {
+            return dialect.getCreateSequenceStrings(sequence, 1, blockSize);
+        }
+        return new String[]{
+                dialect.getCreateTableString() + " " + table + " (id_name " +
+                        dialect.getTypeName(Types.VARCHAR, 255, 0, 0) + " not null, next_value " +
+                        dialect.getTypeName(Types.BIGINT) + " not null, primary key (id_name))"
+        };
+    }
+
+    @Override
+    public String[] sqlDropStrings(Dialect dialect) throws HibernateException {
+        if (sequence != null) {
+            return dialect.getDropSequenceStrings(sequence);
+        }
+        StringBuilder drop = new StringBuilder("drop table ");
+        if (dialect.supportsIfExistsBeforeTableName()) {
+            drop.append("if exists ");
+        }
+        drop.append(table).append(dialect.getCascadeConstraintsString());
+        if (dialect.supportsIfExistsAfterTableName()) {
+            drop.append(" if exists");
+        }
+        return new String[]{drop.toString()};
+    }
+
+    @Override
+    public Object generatorKey() {
+        return sequence != null ? sequence : table;
+    }
+
+    /**
+     * The ids from next, inclusive, to limit, exclusive.  Threads take ids by incrementing next, and the first to
+     * find it at or past the limit reserves the next block.
+     */
+    private static class Block {
+        private final AtomicLong next;
+        private final long limit;
+
+        private Block(long next, long limit) {
+            this.next = new AtomicLong(next);
+            this.limit = limit;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The proxy handler behind an instrumented connection, which wraps each statement that the connection creates.
+ */
+class InstrumentedConnection implements InvocationHandler {
+    private final Connection connection;
+    private final StatementInterceptor[] interceptors;
+    private final StatementListener[] listeners;
+    private Connection proxy;
+
+    private InstrumentedConnection(Connection connection, StatementInterceptor[] interceptors,
+                                   StatementListener[] listeners) {
+        this.connection = connection;
+        this.interceptors = interceptors;
+        this.listeners = listeners;
+    }
+
+    static Connection wrap(Connection connection, StatementInterceptor[] interceptors, StatementListener[] listeners) {
+        InstrumentedConnection handler = new InstrumentedConnection(connection, interceptors, listeners);
+        handler.proxy = (Connection) Proxy.newProxyInstance(
+                InstrumentedConnection.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+        return handler.proxy;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Object result = forward(connection, method, args);
+        if (result instanceof Statement) {
+            String sql = method.getName().equals("createStatement") ? null : (String) args[0];
+            Class<?> type = result instanceof CallableStatement ? CallableStatement.class
+                    : result instanceof PreparedStatement ? PreparedStatement.class
+                    : Statement.class;
+            return Proxy.newProxyInstance(
+                    InstrumentedConnection.class.getClassLoader(), new Class<?>[]{type},
+                    new InstrumentedStatement((Statement) result, sql));
+        }
+        return result;
+    }
+
+    private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void report(String sql, List<List<Object>> parameters, boolean batch, int rowCount, long elapsedNanos,
+                        boolean failed) {
+        StatementExecution execution = new StatementExecution(sql, parameters, batch, rowCount, elapsedNanos, failed);
+        for (StatementListener listener : listeners) {
+            listener.executed(execution);
+        }
+    }
+
+    /**
+     * The proxy handler behind an instrumented statement, which times each execution and records the bind
+     * parameters set for it, or for each statement of a batch.
+     */
+    private class InstrumentedStatement implements InvocationHandler {
+        private final Statement statement;
+        private final String sql;
+        private List<Object> parameters;
+        private String batchSql;
+        private List<List<Object>> batchParameters;
+        private InstrumentedResultSet resultSet;
+
+        private InstrumentedStatement(Statement statement, String sql) {
+            this.statement = statement;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getConnection")) {
+                return InstrumentedConnection.this.proxy;
+            } else if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                setParameter((Integer) args[0], name.equals("setNull") ? null : args[1]);
+            } else if (name.equals("clearParameters")) {
+                parameters = null;
+            } else if (name.equals("addBatch")) {
+                if (batchSql == null) {
+                    batchSql = args == null ? sql : (String) args[0];
+                    batchParameters = new ArrayList<List<Object>>();
+                }
+                // a prepared statement keeps its parameters for the next statement of the batch, so copy them
+                batchParameters.add(args == null && parameters != null
+                        ? new ArrayList<Object>(parameters)
+                        : Collections.emptyList());
+            } else if (name.equals("clearBatch")) {
+                batchSql = null;
+                batchParameters = null;
+            } else if (name.equals("getResultSet") && resultSet != null) {
+                // the result of execute() is reported once its rows have been read
+                return resultSet.isOpen()
+                        ? resultSet.proxy
+                        : resultSet.open((ResultSet) forward(statement, method, args));
+            } else if (name.equals("close") && resultSet != null) {
+                try {
+                    resultSet.complete();
+                } finally {
+                    statement.close();
+                }
+                return null;
+            }
+            if (!name.startsWith("execute")) {
+                return forward(statement, method, args);
+            } else if (resultSet != null) {
+                // executing again closes the previous result set
+                resultSet.complete();
+                resultSet = null;
+            }
+
+            String executed = args != null && args.length > 0 && args[0] instanceof String
+                    ? (String) args[0]
+                    : name.equals("executeBatch") && batchSql != null ? batchSql : sql;
+            boolean batch = name.equals("executeBatch");
+            List<List<Object>> executedParameters;
+            if (batch) {
+                executedParameters = batchParameters == null ? Collections.<List<Object>>emptyList() : batchParameters;
+                batchSql = null;
+                batchParameters = null;
+            } else {
+                executedParameters = Collections.<List<Object>>singletonList(
+                        parameters == null ? Collections.emptyList() : new ArrayList<Object>(parameters));
+            }
+            for (StatementInterceptor interceptor : interceptors) {
+                interceptor.beforeExecute(statement, executed);
+            }
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = forward(statement, method, args);
+            } catch (Throwable t) {
+                report(executed, executedParameters, batch, -1, System.nanoTime() - start, true);
+                throw t;
+            }
+            long elapsed = System.nanoTime() - start;
+            if (result instanceof ResultSet) {
+                // a query is reported once its rows have been read
+                resultSet = new InstrumentedResultSet(executed, executedParameters, elapsed);
+                return resultSet.open((ResultSet) result);
+            } else if (Boolean.TRUE.equals(result)) {
+                // execute() produced a result set, which the caller reads through getResultSet()
+                resultSet = new InstrumentedResultSet(executed, executedParameters, elapsed);
+                return result;
+            }
+            report(executed, executedParameters, batch, rowCount(result), elapsed, false);
+            return result;
+        }
+
+        private void setParameter(int index, Object value) {
+            if (parameters == null) {
+                parameters = new ArrayList<Object>();
+            }
+            while (parameters.size() < index) {
+                parameters.add(null);
+            }
+            parameters.set(index - 1, value);
+        }
+
+        private int rowCount(Object result) {
+            if (result instanceof Integer) {
+                return (Integer) result;
+            } else if (result instanceof int[]) {
+                int rowCount = 0;
+                for (int count : (int[]) result) {
+                    if (count < 0) {
+                        return -1;
+                    }
+                    rowCount += count;
+                }
+                return rowCount;
+            } else {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * The proxy handler behind the result set of an instrumented query, which counts the rows read and the time
+     * spent reading them.
+     */
+    private class InstrumentedResultSet implements InvocationHandler {
+        private final String sql;
+        private final List<List<Object>> parameters;
+        private ResultSet resultSet;
+        private ResultSet proxy;
+        private long elapsedNanos;
+        private int rowCount;
+        private boolean complete;
+
+        private InstrumentedResultSet(String sql, List<List<Object>> parameters, long elapsedNanos) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        private boolean isOpen() {
+            return proxy != null;
+        }
+
+        private ResultSet open(ResultSet resultSet) {
+            if (resultSet == null) {
+                return null;
+            }
+            this.resultSet = resultSet;
+            proxy = (ResultSet) Proxy.newProxyInstance(
+                    InstrumentedConnection.class.getClassLoader(), new Class<?>[]{ResultSet.class}, this);
+            return proxy;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("next")) {
+                long start = System.nanoTime();
+                try {
+                    Object result = forward(resultSet, method, args);
+                    if (Boolean.TRUE.equals(result)) {
+                        rowCount++;
+                    }
+                    return result;
+                } finally {
+                    elapsedNanos += System.nanoTime() - start;
+                }
+            } else if (name.equals("close")) {
+                try {
+                    complete();
+                } finally {
+                    resultSet.close();
+                }
+                return null;
+            }
+            return forward(resultSet, method, args);
+        }
+
+        private void complete() {
+            if (!complete) {
+                complete = true;
+                report(sql, parameters, false, rowCount, elapsedNanos, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.jdbc;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Properties;
+
+/**
+ * A Hibernate {@link ConnectionProvider} which wraps the connections of another provider so that every statement
+ * executed on them passes through a set of {@link StatementInterceptor}s and is reported to a set of
+ * {@link StatementListener}s.  The wrapped provider is whichever Hibernate would have used without instrumentation,
+ * so {@link #install(Configuration, Collection, Collection)} may be applied to any configuration after its other
+ * connection settings are complete.
+ */
+public class InstrumentedConnectionProvider implements ConnectionProvider {
+    /**
+     * The property naming the class of the wrapped provider, when one was configured explicitly.
+     */
+    public static final String DELEGATE_PROVIDER = "org.movealong.persistence.jdbc.delegate_provider_class";
+
+    /**
+     * The property under which the array of {@link StatementListener}s is found.  The value is an object rather
+     * than a string, so it can only be set programmatically.
+     */
+    public static final String LISTENERS = "org.movealong.persistence.jdbc.listeners";
+
+    /**
+     * The property under which the array of {@link StatementInterceptor}s is found.  The value is an object rather
+     * than a string, so it can only be set programmatically.
+     */
+    public static final String INTERCEPTORS = "org.movealong.persistence.jdbc.interceptors";
+
+    private ConnectionProvider delegate;
+    private StatementInterceptor[] interceptors;
+    private StatementListener[] listeners;
+
+    /**
+     * Configures Hibernate to wrap its connections in statement instrumentation.
+     *
+     * @param configuration the configuration, complete except for instrumentation
+     * @param interceptors  the interceptors to call before each statement
+     * @param listeners     the listeners to notify of each statement
+     */
+    public static void install(Configuration configuration, Collection<StatementInterceptor> interceptors,
+                               Collection<StatementListener> listeners) {
+        Properties properties = configuration.getProperties();
+        String provider = properties.getProperty(Environment.CONNECTION_PROVIDER);
+        if (provider != null && !provider.equals(InstrumentedConnectionProvider.class.getName())) {
+            properties.setProperty(DELEGATE_PROVIDER, provider);
+        }
+        properties.setProperty(Environment.CONNECTION_PROVIDER, InstrumentedConnectionProvider.class.getName());
+        properties.put(INTERCEPTORS, interceptors.toArray(new StatementInterceptor[interceptors.size()]));
+        properties.put(LISTENERS, listeners.toArray(new StatementListener[listeners.size()]));
+    }
+
+    @Override
+    public void configure(Properties properties) throws HibernateException {
+        Object interceptors = properties.get(INTERCEPTORS);
+        this.interceptors = interceptors instanceof StatementInterceptor[]
+                ? (StatementInterceptor[]) interceptors
+                : new StatementInterceptor[0];
+        Object listeners = properties.get(LISTENERS);
+        this.listeners = listeners instanceof StatementListener[]
+                ? (StatementListener[]) listeners
+                : new StatementListener[0];
+        Properties delegateProperties = new Properties();
+        delegateProperties.putAll(properties);
+        delegateProperties.remove(Environment.CONNECTION_PROVIDER);
+        String provider = properties.getProperty(DELEGATE_PROVIDER);
+        if (provider != null) {
+            delegateProperties.setProperty(Environment.CONNECTION_PROVIDER, provider);
+        }
+        delegate = ConnectionProviderFactory.newConnectionProvider(delegateProperties);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return InstrumentedConnection.wrap(delegate.getConnection(), interceptors, listeners);
+    }
+
+    @Override
+    public void closeConnection(Connection connection) throws SQLException {
+        delegate.closeConnection(Proxy.isProxyClass(connection.getClass())
+                && Proxy.getInvocationHandler(connection) instanceof InstrumentedConnection
+                ? ((InstrumentedConnection) Proxy.getInvocationHandler(connection)).getConnection()
+                : connection);
+    }
+
+    @Override
+    public void close() throws HibernateException {
+        delegate.close();
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return delegate.supportsAggressiveRelease();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.jdbc;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The record of one statement execution, as passed to each {@link StatementListener}.
+ */
+public class StatementExecution {
+    private final String sql;
+    private final List<List<Object>> parameters;
+    private final boolean batch;
+    private final int rowCount;
+    private final long elapsedNanos;
+    private final boolean failed;
+
+    StatementExecution(String sql, List<List<Object>> parameters, boolean batch, int rowCount, long elapsedNanos,
+                       boolean failed) {
+        this.sql = sql;
+        this.parameters = parameters;
+        this.batch = batch;
+        this.rowCount = rowCount;
+        this.elapsedNanos = elapsedNanos;
+        this.failed = failed;
+    }
+
+    /**
+     * @return the SQL of the statement, or of the first statement of a batch
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return the bind parameters of the statement, in order, or of the first statement of a batch
+     */
+    public List<Object> getParameters() {
+        return parameters.isEmpty() ? Collections.emptyList() : parameters.get(0);
+    }
+
+    /**
+     * @return true if the statement was a batch
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * @return the bind parameters of each statement of a batch, in the order they were added, or a single list of
+     *         the statement's parameters if it was not a batch
+     */
+    public List<List<Object>> getBatchParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return the number of rows updated, or of rows read from a query's result, or -1 if unknown
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @param unit the unit of the result
+     * @return the time spent in the JDBC driver executing the statement and reading its result
+     */
+    public long getElapsedTime(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return true if the driver threw an exception while executing the statement
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.jdbc;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Called by connections handed out by an {@link InstrumentedConnectionProvider} immediately before each statement
+ * executes, on the thread which executes it.  An interceptor may adjust the statement, or prevent its execution by
+ * throwing.
+ */
+public interface StatementInterceptor {
+    /**
+     * @param statement the statement about to execute
+     * @param sql       the SQL about to execute, or of the first statement of a batch
+     * @throws SQLException to fail the execution
+     */
+    void beforeExecute(Statement statement, String sql) throws SQLException;
+}
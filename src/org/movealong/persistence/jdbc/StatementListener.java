@@ -0,0 +1,36 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.jdbc;
+
+/**
+ * Receives notice of each JDBC statement executed through connections handed out by an
+ * {@link InstrumentedConnectionProvider}.  Listeners are called on the thread that executed the statement, so a
+ * listener may attribute the statement to that thread's session.  Listeners are called for every statement and
+ * should do little work.
+ */
+public interface StatementListener {
+    /**
+     * Called after a statement executes, whether or not it succeeded.  The execution of a query is complete, and
+     * is reported, when its result set is closed.
+     *
+     * @param execution the record of the execution
+     */
+    void executed(StatementExecution execution);
+}
@@ -0,0 +1,155 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.pool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of JDBC connections opened through {@link DriverManager}.  At most <code>maximumSize</code>
+ * connections are handed out at once; further requests wait up to the acquire timeout for one to be returned and
+ * then fail.  Idle connections are reused most recently returned first, so that a pool which is larger than the
+ * load requires keeps using the same few connections.
+ */
+class ConnectionPool {
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final String url;
+    private final Properties connectionProperties;
+    private final Integer isolation;
+    private final boolean autocommit;
+    private final int maximumSize;
+    private final long acquireTimeoutNanos;
+    private final ConnectionPoolStatistics statistics;
+    private final Semaphore permits;
+    private final BlockingDeque<Connection> idle = new LinkedBlockingDeque<Connection>();
+    private volatile boolean closed;
+
+    ConnectionPool(String url, Properties connectionProperties, Integer isolation, boolean autocommit,
+                   int maximumSize, long acquireTimeoutMillis, ConnectionPoolStatistics statistics) {
+        this.url = url;
+        this.connectionProperties = connectionProperties;
+        this.isolation = isolation;
+        this.autocommit = autocommit;
+        this.maximumSize = maximumSize;
+        this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        this.statistics = statistics;
+        this.permits = new Semaphore(maximumSize, true);
+    }
+
+    Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool is closed");
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        statistics.waiting(1);
+        try {
+            acquired = permits.tryAcquire(acquireTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection");
+        } finally {
+            statistics.waiting(-1);
+        }
+        if (!acquired) {
+            statistics.timedOut();
+            throw new SQLException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(acquireTimeoutNanos) +
+                    "ms waiting for one of " + maximumSize + " pooled connections");
+        }
+        statistics.acquired(System.nanoTime() - start);
+        try {
+            Connection connection = checkOut();
+            statistics.active(1);
+            return connection;
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void closeConnection(Connection connection) throws SQLException {
+        statistics.active(-1);
+        try {
+            if (closed || connection.isClosed()) {
+                closeQuietly(connection);
+            } else {
+                idle.offerFirst(connection);
+                statistics.idle(1);
+                // close() may have drained the idle connections between the check and the offer
+                if (closed && idle.remove(connection)) {
+                    statistics.idle(-1);
+                    closeQuietly(connection);
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            statistics.idle(-1);
+            closeQuietly(connection);
+        }
+    }
+
+    private Connection checkOut() throws SQLException {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            statistics.idle(-1);
+            if (!connection.isClosed()) {
+                break;
+            }
+        }
+        if (connection == null) {
+            connection = DriverManager.getConnection(url, connectionProperties);
+            if (isolation != null) {
+                connection.setTransactionIsolation(isolation);
+            }
+        }
+        if (connection.getAutoCommit() != autocommit) {
+            connection.setAutoCommit(autocommit);
+        }
+        return connection;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn("Error closing pooled connection", e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.pool;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.cfg.Environment;
+import org.movealong.persistence.ConfigurationCustomizer;
+import org.movealong.persistence.HibernateFacade;
+
+/**
+ * Configures Hibernate to use a {@link PooledConnectionProvider}.  When {@link HibernateFacade#MAXIMUM_SESSIONS} is
+ * bound, the pool is sized to it plus {@link #HEADROOM}.  Each open session holds at most one connection, but some
+ * work takes a second connection while its thread's session holds one: a
+ * {@link org.movealong.persistence.id.BlockIdGenerator} reserving a block from its table, the
+ * {@link org.movealong.persistence.CoalescingCounters} flusher, and the page reader of each prefetching
+ * {@link HibernateFacade#iterateByKey(Class, int, boolean)} iterator.  Without headroom for them, a pool in which
+ * every connection is held by a session would make that work wait for the acquire timeout.  The pool's statistics
+ * are published through JMX as <code>org.movealong.persistence:type=ConnectionPoolStatistics</code>.
+ */
+public class ConnectionPoolCustomizer implements ConfigurationCustomizer {
+    /**
+     * The binding name of the acquire timeout, in milliseconds.
+     */
+    public static final String ACQUIRE_TIMEOUT = "org.movealong.persistence.pool.acquireTimeout";
+
+    /**
+     * The binding name of the number of connections added to {@link HibernateFacade#MAXIMUM_SESSIONS} in sizing the
+     * pool, for work which takes a connection beside its session's.  The default is 4.
+     */
+    public static final String HEADROOM = "org.movealong.persistence.pool.headroom";
+
+    private final ConnectionPoolStatistics statistics;
+    private Integer maximumSessions;
+    private Long acquireTimeout;
+    private int headroom = 4;
+
+    @Inject
+    public ConnectionPoolCustomizer(ConnectionPoolStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    @Inject(optional = true)
+    public void setMaximumSessions(@Named(HibernateFacade.MAXIMUM_SESSIONS) int maximumSessions) {
+        this.maximumSessions = maximumSessions;
+    }
+
+    @Inject(optional = true)
+    public void setAcquireTimeout(@Named(ACQUIRE_TIMEOUT) long acquireTimeout) {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    @Inject(optional = true)
+    public void setHeadroom(@Named(HEADROOM) int headroom) {
+        this.headroom = headroom;
+    }
+
+    @Override
+    public void customize(AnnotationConfiguration configuration) {
+        configuration.setProperty(Environment.CONNECTION_PROVIDER, PooledConnectionProvider.class.getName());
+        if (maximumSessions != null) {
+            configuration.setProperty(Environment.POOL_SIZE, Integer.toString(maximumSessions + headroom));
+        }
+        if (acquireTimeout != null) {
+            configuration.setProperty(PooledConnectionProvider.ACQUIRE_TIMEOUT, acquireTimeout.toString());
+        }
+        configuration.getProperties().put(PooledConnectionProvider.STATISTICS, statistics);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.pool;
+
+import com.google.inject.Singleton;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics collected from every {@link ConnectionPool} built under one injector.  A new pool is built for every
+ * SessionFactory, so when a SessionFactory is reloaded the statistics continue across the old and new pools, and
+ * the connection counts include those still held by sessions of the old SessionFactory.
+ */
+@Singleton
+public class ConnectionPoolStatistics implements ConnectionPoolStatisticsMXBean {
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maximumWaitNanos = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger idle = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    @Override
+    public long getAcquisitionCount() {
+        return acquisitions.get();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    @Override
+    public double getAverageAcquisitionWaitMillis() {
+        long count = acquisitions.get();
+        return count == 0 ? 0.0 : toMillis(totalWaitNanos.get()) / count;
+    }
+
+    @Override
+    public double getMaximumAcquisitionWaitMillis() {
+        return toMillis(maximumWaitNanos.get());
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return idle.get();
+    }
+
+    @Override
+    public int getWaitingThreads() {
+        return waiting.get();
+    }
+
+    @Override
+    public void reset() {
+        acquisitions.set(0);
+        timeouts.set(0);
+        totalWaitNanos.set(0);
+        maximumWaitNanos.set(0);
+    }
+
+    void waiting(int delta) {
+        waiting.addAndGet(delta);
+    }
+
+    void acquired(long waitNanos) {
+        acquisitions.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long maximum;
+        do {
+            maximum = maximumWaitNanos.get();
+        } while (waitNanos > maximum && !maximumWaitNanos.compareAndSet(maximum, waitNanos));
+    }
+
+    void timedOut() {
+        timeouts.incrementAndGet();
+    }
+
+    void active(int delta) {
+        active.addAndGet(delta);
+    }
+
+    void idle(int delta) {
+        idle.addAndGet(delta);
+    }
+
+    private static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
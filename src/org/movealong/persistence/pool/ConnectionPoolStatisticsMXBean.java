@@ -0,0 +1,65 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.pool;
+
+/**
+ * The JMX view of {@link ConnectionPoolStatistics}.
+ */
+public interface ConnectionPoolStatisticsMXBean {
+    /**
+     * @return the number of connections that have been handed out by the pool
+     */
+    long getAcquisitionCount();
+
+    /**
+     * @return the number of requests for a connection that gave up waiting for one
+     */
+    long getTimeoutCount();
+
+    /**
+     * @return the mean time spent waiting for a connection, in milliseconds
+     */
+    double getAverageAcquisitionWaitMillis();
+
+    /**
+     * @return the longest time spent waiting for a connection since the last reset, in milliseconds
+     */
+    double getMaximumAcquisitionWaitMillis();
+
+    /**
+     * @return the number of connections currently handed out
+     */
+    int getActiveConnections();
+
+    /**
+     * @return the number of open connections waiting in the pool to be handed out
+     */
+    int getIdleConnections();
+
+    /**
+     * @return the number of threads currently waiting for a connection
+     */
+    int getWaitingThreads();
+
+    /**
+     * Resets the counters and the maximum wait.  The active, idle, and waiting counts are unaffected.
+     */
+    void reset();
+}
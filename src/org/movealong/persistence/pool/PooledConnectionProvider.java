@@ -0,0 +1,102 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.pool;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.hibernate.util.PropertiesHelper;
+import org.hibernate.util.ReflectHelper;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * A Hibernate {@link ConnectionProvider} backed by a {@link ConnectionPool}.  It is configured from the same
+ * <code>hibernate.connection.*</code> properties as Hibernate's built in connection handling, with the pool size
+ * taken from <code>hibernate.connection.pool_size</code>.  Hibernate instantiates the provider itself, so its
+ * statistics object is passed in through the configuration properties by {@link ConnectionPoolCustomizer}.
+ */
+public class PooledConnectionProvider implements ConnectionProvider {
+    /**
+     * The property naming how long to wait for a connection, in milliseconds, before giving up.
+     */
+    public static final String ACQUIRE_TIMEOUT = "org.movealong.persistence.pool.acquire_timeout";
+
+    /**
+     * The property under which the {@link ConnectionPoolStatistics} object is found.  The value is an object rather
+     * than a string, so it can only be set programmatically.
+     */
+    public static final String STATISTICS = "org.movealong.persistence.pool.statistics";
+
+    private static final int DEFAULT_POOL_SIZE = 20;
+    private static final String DEFAULT_ACQUIRE_TIMEOUT = "30000";
+
+    private ConnectionPool pool;
+
+    @Override
+    public void configure(Properties properties) throws HibernateException {
+        String driver = properties.getProperty(Environment.DRIVER);
+        String url = properties.getProperty(Environment.URL);
+        if (url == null) {
+            throw new HibernateException("No JDBC URL specified by property " + Environment.URL);
+        }
+        if (driver != null) {
+            try {
+                ReflectHelper.classForName(driver);
+            } catch (ClassNotFoundException e) {
+                throw new HibernateException("JDBC Driver class not found: " + driver, e);
+            }
+        }
+        Object statistics = properties.get(STATISTICS);
+        pool = new ConnectionPool(
+                url,
+                ConnectionProviderFactory.getConnectionProperties(properties),
+                PropertiesHelper.getInteger(Environment.ISOLATION, properties),
+                PropertiesHelper.getBoolean(Environment.AUTOCOMMIT, properties),
+                PropertiesHelper.getInt(Environment.POOL_SIZE, properties, DEFAULT_POOL_SIZE),
+                Long.parseLong(PropertiesHelper.getString(ACQUIRE_TIMEOUT, properties, DEFAULT_ACQUIRE_TIMEOUT)),
+                statistics instanceof ConnectionPoolStatistics
+                        ? (ConnectionPoolStatistics) statistics
+                        : new ConnectionPoolStatistics());
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return pool.getConnection();
+    }
+
+    @Override
+    public void closeConnection(Connection connection) throws SQLException {
+        pool.closeConnection(connection);
+    }
+
+    @Override
+    public void close() throws HibernateException {
+        pool.close();
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return false;
+    }
+}
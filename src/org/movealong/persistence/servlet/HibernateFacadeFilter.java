@@ -21,11 +21,21 @@ package org.movealong.persistence.servlet;
 
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import org.movealong.persistence.AdmissionRejectedException;
 import org.movealong.persistence.HibernateFacade;
+import org.movealong.persistence.Installed;
+import org.movealong.persistence.SessionPriority;
+import org.movealong.persistence.stats.SessionMetrics;
+import org.movealong.persistence.stats.SessionMetricsCollector;
 
 import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>A Servlet {@link Filter} which creates a Hibernate session for each servlet request.   This filter requires no
@@ -42,14 +52,84 @@ import java.lang.reflect.UndeclaredThrowableException;
  *      &lt;url-pattern&gt;*&lt;/url-pattern&gt;
  *  &lt;/filter-mapping&gt;
  * </pre></p>
+ *
+ * <p>When session metrics are collected, the {@link SessionMetrics} of each request's session are set as the request
+ * attribute {@link #SESSION_METRICS_ATTRIBUTE}, and are written to the response header
+ * {@link #SESSION_METRICS_HEADER} if the response has not been committed when the request completes.  The metrics
+ * are aggregated by route: the first of the comma separated URL patterns in the optional init-param
+ * {@link #ROUTES_PARAMETER} that matches the request, or else the request path with its numeric segments
+ * replaced by <code>{id}</code>.</p>
+ *
+ * <p>The optional init-param {@link #DEADLINE_PARAMETER} sets a deadline, in milliseconds, for the work of each
+ * request, as though by {@link HibernateFacade#setDeadline(long, TimeUnit)}.</p>
+ *
+ * <p>When the number of sessions is limited, each request's session is admitted with the {@link SessionPriority}
+ * named by the optional init-param {@link #PRIORITY_PARAMETER}, or NORMAL, and a request which is not admitted is
+ * answered with 503 Service Unavailable.</p>
  */
 public class HibernateFacadeFilter implements Filter {
+    /**
+     * The request attribute holding the request's {@link SessionMetrics}.
+     */
+    public static final String SESSION_METRICS_ATTRIBUTE = SessionMetrics.class.getName();
+
+    /**
+     * The response header holding a summary of the request's {@link SessionMetrics}.
+     */
+    public static final String SESSION_METRICS_HEADER = "X-Session-Metrics";
+
+    /**
+     * The init-param listing the URL patterns under which session metrics are aggregated.
+     */
+    public static final String ROUTES_PARAMETER = "routes";
+
+    /**
+     * The init-param setting the deadline, in milliseconds, for each request's session.
+     */
+    public static final String DEADLINE_PARAMETER = "deadline";
+
+    /**
+     * The init-param naming the {@link SessionPriority} of each request's session.
+     */
+    public static final String PRIORITY_PARAMETER = "priority";
 
     @Inject
     public static HibernateFacade hibernate;
 
+    @Inject(optional = true)
+    @Installed
+    public static SessionMetricsCollector sessionMetricsCollector;
+
+    private final List<String> routes = new ArrayList<String>();
+    private long deadline;
+    private SessionPriority priority = SessionPriority.NORMAL;
+
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
+        String deadline = filterConfig.getInitParameter(DEADLINE_PARAMETER);
+        if (deadline != null) {
+            try {
+                this.deadline = Long.parseLong(deadline.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("Invalid " + DEADLINE_PARAMETER + " init-param: " + deadline, e);
+            }
+        }
+        String priority = filterConfig.getInitParameter(PRIORITY_PARAMETER);
+        if (priority != null) {
+            try {
+                this.priority = SessionPriority.valueOf(priority.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("Invalid " + PRIORITY_PARAMETER + " init-param: " + priority, e);
+            }
+        }
+        String routes = filterConfig.getInitParameter(ROUTES_PARAMETER);
+        if (routes != null) {
+            for (String route : routes.split(",")) {
+                if (route.trim().length() > 0) {
+                    this.routes.add(route.trim());
+                }
+            }
+        }
     }
 
     @Override
@@ -58,15 +138,36 @@ public class HibernateFacadeFilter implements Filter {
             hibernate.runInSession(new Runnable() {
                 @Override
                 public void run() {
+                    if (deadline > 0) {
+                        hibernate.setDeadline(deadline, TimeUnit.MILLISECONDS);
+                    }
+                    SessionMetrics metrics = sessionMetricsCollector == null
+                            ? null
+                            : sessionMetricsCollector.getCurrent();
+                    if (metrics != null) {
+                        metrics.setRoute(route(servletRequest));
+                        servletRequest.setAttribute(SESSION_METRICS_ATTRIBUTE, metrics);
+                    }
                     try {
                         filterChain.doFilter(servletRequest, servletResponse);
                     } catch (IOException e) {
                         throw new UndeclaredThrowableException(e);
                     } catch (ServletException e) {
                         throw new UndeclaredThrowableException(e);
+                    } finally {
+                        if (metrics != null && servletResponse instanceof HttpServletResponse
+                                && !servletResponse.isCommitted()) {
+                            ((HttpServletResponse) servletResponse).setHeader(SESSION_METRICS_HEADER, metrics.toString());
+                        }
                     }
                 }
-            });
+            }, priority);
+        } catch (AdmissionRejectedException e) {
+            if (servletResponse instanceof HttpServletResponse && !servletResponse.isCommitted()) {
+                ((HttpServletResponse) servletResponse).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            } else {
+                throw e;
+            }
         } catch (UndeclaredThrowableException e) {
             if (e.getUndeclaredThrowable() instanceof IOException) {
                 throw (IOException) e.getUndeclaredThrowable();
@@ -82,4 +183,31 @@ public class HibernateFacadeFilter implements Filter {
     public void destroy() {
     }
 
+    String route(ServletRequest servletRequest) {
+        if (!(servletRequest instanceof HttpServletRequest)) {
+            return null;
+        }
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        String path = request.getPathInfo() == null
+                ? request.getServletPath()
+                : request.getServletPath() + request.getPathInfo();
+        for (String route : routes) {
+            if (matches(route, path)) {
+                return request.getMethod() + " " + route;
+            }
+        }
+        return request.getMethod() + " " + path.replaceAll("/[0-9]+(?=/|$)", "/{id}");
+    }
+
+    private static boolean matches(String pattern, String path) {
+        if (pattern.endsWith("/*")) {
+            String prefix = pattern.substring(0, pattern.length() - 2);
+            return path.equals(prefix) || path.startsWith(prefix + "/");
+        } else if (pattern.startsWith("*.")) {
+            return path.endsWith(pattern.substring(1));
+        } else {
+            return pattern.equals(path);
+        }
+    }
+
 }
@@ -0,0 +1,158 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.stats;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.hibernate.classic.Session;
+import org.movealong.persistence.HibernateFacade;
+import org.movealong.persistence.SessionListener;
+import org.movealong.persistence.jdbc.StatementExecution;
+import org.movealong.persistence.jdbc.StatementListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Detects the N+1 selects pattern, where lazy loading runs the same statement once per entity of an earlier
+ * result.  The SQL of each statement executed in a session is reduced to a fingerprint, with literals and the
+ * members of IN lists replaced by placeholders, and the number of executions of each fingerprint is counted.  When a
+ * fingerprint runs more often than the threshold within one session, the statement is reported along with the class
+ * of the receiver that ran it and the call site that caused Hibernate to run it.</p>
+ *
+ * <p>A report is logged once per fingerprint per session.  When configured to fail, as suits a test suite, a
+ * {@link RepeatedStatementException} is thrown from the offending statement instead.</p>
+ */
+@Singleton
+public class RepeatedStatementDetector implements SessionListener, StatementListener {
+    /**
+     * The binding name of the number of times a statement shape may run in one session before it is reported.
+     */
+    public static final String THRESHOLD = "org.movealong.persistence.stats.repeatedStatementThreshold";
+
+    /**
+     * The binding name of the flag which, when true, makes repeated statements fail rather than be logged.
+     */
+    public static final String FAIL = "org.movealong.persistence.stats.failOnRepeatedStatement";
+
+    private static final Logger log = LoggerFactory.getLogger(RepeatedStatementDetector.class);
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMERIC_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final Provider<HibernateFacade> hibernateFacade;
+    private final ThreadLocal<Map<String, int[]>> counts = new ThreadLocal<Map<String, int[]>>();
+    private final AtomicLong detections = new AtomicLong();
+    private int threshold = 10;
+    private boolean fail;
+
+    @Inject
+    public RepeatedStatementDetector(Provider<HibernateFacade> hibernateFacade) {
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    @Inject(optional = true)
+    public void setThreshold(@Named(THRESHOLD) int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Inject(optional = true)
+    public void setFail(@Named(FAIL) boolean fail) {
+        this.fail = fail;
+    }
+
+    /**
+     * @return the number of repeated statement shapes detected
+     */
+    public long getDetectionCount() {
+        return detections.get();
+    }
+
+    @Override
+    public void sessionOpened(Session session) {
+        counts.set(new HashMap<String, int[]>());
+    }
+
+    @Override
+    public void sessionClosing(Session session) {
+        counts.remove();
+    }
+
+    @Override
+    public void executed(StatementExecution execution) {
+        Map<String, int[]> counts = this.counts.get();
+        if (counts == null || execution.getSql() == null) {
+            return;
+        }
+        String fingerprint = fingerprint(execution.getSql());
+        int[] count = counts.get(fingerprint);
+        if (count == null) {
+            count = new int[1];
+            counts.put(fingerprint, count);
+        }
+        if (++count[0] == threshold + 1) {
+            detections.incrementAndGet();
+            Class<?> receiverClass = hibernateFacade.get().getReceiverClass();
+            String report = "Statement repeated more than " + threshold + " times in one session by "
+                    + (receiverClass == null ? "no receiver" : receiverClass.getName())
+                    + " at " + callSite() + ": " + fingerprint;
+            if (fail) {
+                throw new RepeatedStatementException(report);
+            }
+            log.warn(report);
+        }
+    }
+
+    static String fingerprint(String sql) {
+        String fingerprint = STRING_LITERAL.matcher(sql).replaceAll("?");
+        fingerprint = NUMERIC_LITERAL.matcher(fingerprint).replaceAll("?");
+        fingerprint = IN_LIST.matcher(fingerprint).replaceAll("(?)");
+        return WHITESPACE.matcher(fingerprint).replaceAll(" ").trim();
+    }
+
+    /**
+     * @return the frame which called into Hibernate to cause the current statement, skipping Hibernate itself and
+     *         the proxies through which lazy loading is triggered
+     */
+    private static StackTraceElement callSite() {
+        boolean inHibernate = false;
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            boolean internal = className.startsWith("org.hibernate.")
+                    || className.contains("$$")
+                    || className.startsWith("sun.reflect.")
+                    || className.startsWith("jdk.internal.")
+                    || className.startsWith("java.lang.reflect.");
+            if (className.startsWith("org.hibernate.")) {
+                inHibernate = true;
+            } else if (inHibernate && !internal) {
+                return element;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.stats;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metrics of every session aggregated under one route.
+ */
+public class RouteStatistics {
+    private final String route;
+    private long sessions;
+    private long statements;
+    private long entitiesLoaded;
+    private long collectionsFetched;
+    private long flushes;
+    private long jdbcNanos;
+    private int maximumStatements;
+
+    RouteStatistics(String route) {
+        this.route = route;
+    }
+
+    private RouteStatistics(RouteStatistics statistics) {
+        this.route = statistics.route;
+        this.sessions = statistics.sessions;
+        this.statements = statistics.statements;
+        this.entitiesLoaded = statistics.entitiesLoaded;
+        this.collectionsFetched = statistics.collectionsFetched;
+        this.flushes = statistics.flushes;
+        this.jdbcNanos = statistics.jdbcNanos;
+        this.maximumStatements = statistics.maximumStatements;
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    public long getSessions() {
+        return sessions;
+    }
+
+    public long getStatements() {
+        return statements;
+    }
+
+    public long getEntitiesLoaded() {
+        return entitiesLoaded;
+    }
+
+    public long getCollectionsFetched() {
+        return collectionsFetched;
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    public long getJdbcMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(jdbcNanos);
+    }
+
+    public int getMaximumStatements() {
+        return maximumStatements;
+    }
+
+    public double getAverageStatements() {
+        return sessions == 0 ? 0.0 : (double) statements / sessions;
+    }
+
+    synchronized void add(SessionMetrics metrics) {
+        sessions++;
+        statements += metrics.getStatements();
+        entitiesLoaded += metrics.getEntitiesLoaded();
+        collectionsFetched += metrics.getCollectionsFetched();
+        flushes += metrics.getFlushes();
+        jdbcNanos += metrics.getJdbcTime(TimeUnit.NANOSECONDS);
+        maximumStatements = Math.max(maximumStatements, metrics.getStatements());
+    }
+
+    synchronized RouteStatistics snapshot() {
+        return new RouteStatistics(this);
+    }
+
+    long getJdbcNanos() {
+        return jdbcNanos;
+    }
+}
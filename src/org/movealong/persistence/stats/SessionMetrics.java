@@ -0,0 +1,102 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.stats;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The database work done by one session: statements executed, entities loaded, collections fetched, flushes, and
+ * the time spent in the JDBC driver.  A session's metrics are updated only by the thread which owns the session.
+ */
+public class SessionMetrics {
+    private final long openedNanos = System.nanoTime();
+    private String route;
+    private int statements;
+    private int entitiesLoaded;
+    private int collectionsFetched;
+    private int flushes;
+    private long jdbcNanos;
+
+    /**
+     * @return the route under which these metrics are aggregated, or null if they are not aggregated
+     */
+    public String getRoute() {
+        return route;
+    }
+
+    /**
+     * Names the route, such as a URL pattern, under which these metrics are aggregated when the session closes.
+     *
+     * @param route the route
+     */
+    public void setRoute(String route) {
+        this.route = route;
+    }
+
+    public int getStatements() {
+        return statements;
+    }
+
+    public int getEntitiesLoaded() {
+        return entitiesLoaded;
+    }
+
+    public int getCollectionsFetched() {
+        return collectionsFetched;
+    }
+
+    public int getFlushes() {
+        return flushes;
+    }
+
+    public long getJdbcTime(TimeUnit unit) {
+        return unit.convert(jdbcNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getElapsedTime(TimeUnit unit) {
+        return unit.convert(System.nanoTime() - openedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void statementExecuted(long elapsedNanos) {
+        statements++;
+        jdbcNanos += elapsedNanos;
+    }
+
+    void entityLoaded() {
+        entitiesLoaded++;
+    }
+
+    void collectionFetched() {
+        collectionsFetched++;
+    }
+
+    void flushed() {
+        flushes++;
+    }
+
+    @Override
+    public String toString() {
+        return "statements=" + statements
+                + "; entitiesLoaded=" + entitiesLoaded
+                + "; collectionsFetched=" + collectionsFetched
+                + "; flushes=" + flushes
+                + "; jdbcMillis=" + getJdbcTime(TimeUnit.MILLISECONDS);
+    }
+}
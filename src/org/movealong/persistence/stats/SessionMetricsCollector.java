@@ -0,0 +1,211 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.stats;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.classic.Session;
+import org.hibernate.event.*;
+import org.movealong.persistence.ConfigurationCustomizer;
+import org.movealong.persistence.SessionListener;
+import org.movealong.persistence.jdbc.StatementExecution;
+import org.movealong.persistence.jdbc.StatementListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.movealong.persistence.EventListenerSupport.append;
+
+/**
+ * <p>Collects {@link SessionMetrics} for each session opened by the facade.  Statements and JDBC time are measured
+ * through connection instrumentation, and entity loads, collection fetches and flushes through Hibernate event
+ * listeners.  The metrics of the calling thread's session are available from {@link #getCurrent()}.</p>
+ *
+ * <p>When a session closes, its metrics are logged if they exceed the statement or JDBC time threshold, and are
+ * added to the totals of their route, if one was set.  The totals are published through JMX as
+ * <code>org.movealong.persistence:type=SessionMetrics</code>.</p>
+ */
+@Singleton
+public class SessionMetricsCollector implements SessionMetricsMXBean, SessionListener, StatementListener,
+        ConfigurationCustomizer, PostLoadEventListener, InitializeCollectionEventListener, FlushEventListener,
+        AutoFlushEventListener {
+    /**
+     * The binding name of the number of statements above which a session is logged.
+     */
+    public static final String STATEMENT_THRESHOLD = "org.movealong.persistence.stats.statementThreshold";
+
+    /**
+     * The binding name of the JDBC time, in milliseconds, above which a session is logged.
+     */
+    public static final String JDBC_TIME_THRESHOLD = "org.movealong.persistence.stats.jdbcTimeThreshold";
+
+    private static final Logger log = LoggerFactory.getLogger(SessionMetricsCollector.class);
+
+    private final transient ThreadLocal<SessionMetrics> current = new ThreadLocal<SessionMetrics>();
+    private final transient ConcurrentMap<String, RouteStatistics> routes = new ConcurrentHashMap<String, RouteStatistics>();
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong exceeded = new AtomicLong();
+    private int statementThreshold = Integer.MAX_VALUE;
+    private long jdbcTimeThreshold = Long.MAX_VALUE;
+
+    @Inject(optional = true)
+    public void setStatementThreshold(@Named(STATEMENT_THRESHOLD) int statementThreshold) {
+        this.statementThreshold = statementThreshold;
+    }
+
+    @Inject(optional = true)
+    public void setJdbcTimeThreshold(@Named(JDBC_TIME_THRESHOLD) long jdbcTimeThreshold) {
+        this.jdbcTimeThreshold = jdbcTimeThreshold;
+    }
+
+    /**
+     * @return the metrics of the calling thread's session, or null if the thread has no session or metrics are
+     *         not being collected
+     */
+    public SessionMetrics getCurrent() {
+        return current.get();
+    }
+
+    @Override
+    public void customize(AnnotationConfiguration configuration) {
+        EventListeners listeners = configuration.getEventListeners();
+        listeners.setPostLoadEventListeners(append(listeners.getPostLoadEventListeners(), this));
+        listeners.setInitializeCollectionEventListeners(append(listeners.getInitializeCollectionEventListeners(), this));
+        listeners.setFlushEventListeners(append(listeners.getFlushEventListeners(), this));
+        listeners.setAutoFlushEventListeners(append(listeners.getAutoFlushEventListeners(), this));
+    }
+
+    @Override
+    public void sessionOpened(Session session) {
+        current.set(new SessionMetrics());
+    }
+
+    @Override
+    public void sessionClosing(Session session) {
+        SessionMetrics metrics = current.get();
+        current.remove();
+        if (metrics == null) {
+            return;
+        }
+        sessions.incrementAndGet();
+        if (metrics.getStatements() > statementThreshold
+                || metrics.getJdbcTime(TimeUnit.MILLISECONDS) > jdbcTimeThreshold) {
+            exceeded.incrementAndGet();
+            log.warn("Session for {} exceeded thresholds in {} ms: {}", new Object[]{
+                    metrics.getRoute() == null ? Thread.currentThread().getName() : metrics.getRoute(),
+                    metrics.getElapsedTime(TimeUnit.MILLISECONDS),
+                    metrics});
+        }
+        if (metrics.getRoute() != null) {
+            RouteStatistics statistics = routes.get(metrics.getRoute());
+            if (statistics == null) {
+                RouteStatistics created = new RouteStatistics(metrics.getRoute());
+                statistics = routes.putIfAbsent(metrics.getRoute(), created);
+                if (statistics == null) {
+                    statistics = created;
+                }
+            }
+            statistics.add(metrics);
+        }
+    }
+
+    @Override
+    public void executed(StatementExecution execution) {
+        SessionMetrics metrics = current.get();
+        if (metrics != null) {
+            metrics.statementExecuted(execution.getElapsedTime(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    @Override
+    public void onPostLoad(PostLoadEvent event) {
+        SessionMetrics metrics = current.get();
+        if (metrics != null) {
+            metrics.entityLoaded();
+        }
+    }
+
+    @Override
+    public void onInitializeCollection(InitializeCollectionEvent event) throws HibernateException {
+        SessionMetrics metrics = current.get();
+        if (metrics != null) {
+            metrics.collectionFetched();
+        }
+    }
+
+    @Override
+    public void onFlush(FlushEvent event) throws HibernateException {
+        SessionMetrics metrics = current.get();
+        if (metrics != null) {
+            metrics.flushed();
+        }
+    }
+
+    @Override
+    public void onAutoFlush(AutoFlushEvent event) throws HibernateException {
+        SessionMetrics metrics = current.get();
+        if (metrics != null && event.isFlushRequired()) {
+            metrics.flushed();
+        }
+    }
+
+    @Override
+    public long getSessionCount() {
+        return sessions.get();
+    }
+
+    @Override
+    public long getExceededCount() {
+        return exceeded.get();
+    }
+
+    @Override
+    public List<RouteStatistics> getRoutes() {
+        List<RouteStatistics> snapshots = new ArrayList<RouteStatistics>(routes.size());
+        for (RouteStatistics statistics : routes.values()) {
+            snapshots.add(statistics.snapshot());
+        }
+        Collections.sort(snapshots, new Comparator<RouteStatistics>() {
+            @Override
+            public int compare(RouteStatistics a, RouteStatistics b) {
+                return a.getJdbcNanos() < b.getJdbcNanos() ? 1 : a.getJdbcNanos() > b.getJdbcNanos() ? -1 : 0;
+            }
+        });
+        return snapshots;
+    }
+
+    @Override
+    public void reset() {
+        routes.clear();
+        sessions.set(0);
+        exceeded.set(0);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.stats;
+
+import java.util.List;
+
+/**
+ * The JMX view of the {@link SessionMetricsCollector}.
+ */
+public interface SessionMetricsMXBean {
+    /**
+     * @return the number of sessions measured
+     */
+    long getSessionCount();
+
+    /**
+     * @return the number of sessions which exceeded a threshold
+     */
+    long getExceededCount();
+
+    /**
+     * @return the aggregated metrics of each route, the route with the most time spent in JDBC first
+     */
+    List<RouteStatistics> getRoutes();
+
+    /**
+     * Discards the aggregated metrics.
+     */
+    void reset();
+}
@@ -0,0 +1,89 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.stats;
+
+import java.util.Date;
+
+/**
+ * One entry in the {@link SlowQueryLog}'s table of the slowest statements.
+ */
+public class SlowQuery {
+    private final String sql;
+    private final String parameters;
+    private final int rowCount;
+    private final long elapsedMillis;
+    private final String receiverClass;
+    private final long transactionAgeMillis;
+    private final Date executed;
+
+    SlowQuery(String sql, String parameters, int rowCount, long elapsedMillis, String receiverClass,
+              long transactionAgeMillis) {
+        this.sql = sql;
+        this.parameters = parameters;
+        this.rowCount = rowCount;
+        this.elapsedMillis = elapsedMillis;
+        this.receiverClass = receiverClass;
+        this.transactionAgeMillis = transactionAgeMillis;
+        this.executed = new Date();
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return the bind parameters, or their types if parameters are redacted
+     */
+    public String getParameters() {
+        return parameters;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return the class of the receiver which executed the statement, or null if it was not run by a receiver
+     */
+    public String getReceiverClass() {
+        return receiverClass;
+    }
+
+    /**
+     * @return the age of the transaction when the statement completed, or -1 if it ran outside a transaction
+     */
+    public long getTransactionAgeMillis() {
+        return transactionAgeMillis;
+    }
+
+    public Date getExecuted() {
+        return new Date(executed.getTime());
+    }
+
+    @Override
+    public String toString() {
+        return elapsedMillis + " ms, " + rowCount + " rows, by " + receiverClass
+                + " in a transaction " + transactionAgeMillis + " ms old: " + sql + " " + parameters;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.stats;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.movealong.persistence.HibernateFacade;
+import org.movealong.persistence.jdbc.StatementExecution;
+import org.movealong.persistence.jdbc.StatementListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Logs each statement which takes longer than a threshold, with its SQL, its bind parameters, the number of rows
+ * it read or updated, the class of the receiver which ran it, and the age of its transaction.  Bind parameters may
+ * be redacted, in which case only their types are logged.</p>
+ *
+ * <p>The slowest statements seen, whether or not they exceeded the threshold, are kept in a bounded table which is
+ * published through JMX as <code>org.movealong.persistence:type=SlowQueryLog</code>, along with the threshold,
+ * which may be changed at runtime.</p>
+ */
+@Singleton
+public class SlowQueryLog implements StatementListener, SlowQueryLogMXBean {
+    /**
+     * The binding name of the time, in milliseconds, above which a statement is logged.
+     */
+    public static final String THRESHOLD = "org.movealong.persistence.stats.slowQueryThreshold";
+
+    /**
+     * The binding name of the number of statements kept in the table of slowest statements.
+     */
+    public static final String TABLE_SIZE = "org.movealong.persistence.stats.slowQueryTableSize";
+
+    /**
+     * The binding name of the flag which, when true, replaces bind parameters with their types.
+     */
+    public static final String REDACT_PARAMETERS = "org.movealong.persistence.stats.redactParameters";
+
+    private static final Logger log = LoggerFactory.getLogger(SlowQueryLog.class);
+    private static final int MAXIMUM_PARAMETER_LENGTH = 100;
+    private static final Comparator<SlowQuery> FASTEST_FIRST = new Comparator<SlowQuery>() {
+        @Override
+        public int compare(SlowQuery a, SlowQuery b) {
+            return a.getElapsedMillis() < b.getElapsedMillis() ? -1 : a.getElapsedMillis() > b.getElapsedMillis() ? 1 : 0;
+        }
+    };
+
+    private final Provider<HibernateFacade> hibernateFacade;
+    private final AtomicLong slowQueries = new AtomicLong();
+    private final PriorityQueue<SlowQuery> slowest = new PriorityQueue<SlowQuery>(11, FASTEST_FIRST);
+    private volatile long thresholdMillis = 1000;
+    private volatile long floorMillis = -1;
+    private int tableSize = 20;
+    private boolean redactParameters;
+
+    @Inject
+    public SlowQueryLog(Provider<HibernateFacade> hibernateFacade) {
+        this.hibernateFacade = hibernateFacade;
+    }
+
+    @Inject(optional = true)
+    public void setThreshold(@Named(THRESHOLD) long thresholdMillis) {
+        this.thresholdMillis = thresholdMillis;
+    }
+
+    @Inject(optional = true)
+    public void setTableSize(@Named(TABLE_SIZE) int tableSize) {
+        this.tableSize = tableSize;
+    }
+
+    @Inject(optional = true)
+    public void setRedactParameters(@Named(REDACT_PARAMETERS) boolean redactParameters) {
+        this.redactParameters = redactParameters;
+    }
+
+    @Override
+    public void executed(StatementExecution execution) {
+        long elapsedMillis = execution.getElapsedTime(TimeUnit.MILLISECONDS);
+        boolean slow = elapsedMillis > thresholdMillis;
+        // cheaply pass over the great majority of statements, which are faster than everything in the table
+        if (!slow && elapsedMillis <= floorMillis) {
+            return;
+        }
+        HibernateFacade hibernateFacade = this.hibernateFacade.get();
+        Class<?> receiverClass = hibernateFacade.getReceiverClass();
+        SlowQuery query = new SlowQuery(
+                execution.getSql(),
+                parameters(execution.getParameters()),
+                execution.getRowCount(),
+                elapsedMillis,
+                receiverClass == null ? null : receiverClass.getName(),
+                hibernateFacade.getTransactionAge(TimeUnit.MILLISECONDS));
+        if (slow) {
+            slowQueries.incrementAndGet();
+            log.warn("Slow statement: {}", query);
+        }
+        synchronized (slowest) {
+            slowest.add(query);
+            if (slowest.size() > tableSize) {
+                slowest.poll();
+            }
+            if (slowest.size() == tableSize) {
+                floorMillis = slowest.peek().getElapsedMillis();
+            }
+        }
+    }
+
+    @Override
+    public long getThresholdMillis() {
+        return thresholdMillis;
+    }
+
+    @Override
+    public void setThresholdMillis(long thresholdMillis) {
+        this.thresholdMillis = thresholdMillis;
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return slowQueries.get();
+    }
+
+    @Override
+    public List<SlowQuery> getSlowestQueries() {
+        List<SlowQuery> queries;
+        synchronized (slowest) {
+            queries = new ArrayList<SlowQuery>(slowest);
+        }
+        Collections.sort(queries, Collections.reverseOrder(FASTEST_FIRST));
+        return queries;
+    }
+
+    @Override
+    public void reset() {
+        synchronized (slowest) {
+            slowest.clear();
+            floorMillis = -1;
+        }
+        slowQueries.set(0);
+    }
+
+    private String parameters(List<Object> parameters) {
+        StringBuilder builder = new StringBuilder("[");
+        for (Object parameter : parameters) {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            if (parameter == null) {
+                builder.append("null");
+            } else if (redactParameters) {
+                builder.append('<').append(parameter.getClass().getSimpleName()).append('>');
+            } else {
+                String value = String.valueOf(parameter);
+                builder.append(value.length() > MAXIMUM_PARAMETER_LENGTH
+                        ? value.substring(0, MAXIMUM_PARAMETER_LENGTH) + "..."
+                        : value);
+            }
+        }
+        return builder.append(']').toString();
+    }
+}
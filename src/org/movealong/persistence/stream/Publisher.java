@@ -0,0 +1,35 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.stream;
+
+/**
+ * A source of items delivered to {@link Subscriber}s on demand.  The contract is that of
+ * <code>java.util.concurrent.Flow.Publisher</code>, for platforms which lack it.
+ *
+ * @param <T> the type of the items
+ */
+public interface Publisher<T> {
+    /**
+     * Adds a subscriber, which is passed its {@link Subscription} through {@link Subscriber#onSubscribe}.
+     *
+     * @param subscriber the subscriber
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,36 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.stream;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+
+/**
+ * Creates the query that a query publisher scrolls, against the publisher's own session.
+ *
+ * @see org.movealong.persistence.HibernateFacade#publish(QueryBuilder)
+ */
+public interface QueryBuilder {
+    /**
+     * @param session the session in which the query will run
+     * @return the query, with its parameters bound
+     */
+    Query build(Session session);
+}
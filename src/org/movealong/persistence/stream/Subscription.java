@@ -0,0 +1,40 @@
+/*
+ * (c) Copyright 2010 Nate Riffe <inkblot@movealong.org>
+ *
+ * This file is part of movealong-hibernate.
+ *
+ * movealong-hibernate is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * movealong-hibernate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with movealong-hibernate.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.movealong.persistence.stream;
+
+/**
+ * The link between a {@link Publisher} and one {@link Subscriber}.  The contract is that of
+ * <code>java.util.concurrent.Flow.Subscription</code>.
+ */
+public interface Subscription {
+    /**
+     * Adds n items to the subscriber's outstanding demand.  A non-positive n cancels the subscription and signals
+     * an {@link IllegalArgumentException} through onError.
+     *
+     * @param n the number of additional items to deliver
+     */
+    void request(long n);
+
+    /**
+     * Stops the delivery of items and releases the subscription's resources.  Some items already requested may
+     * still be delivered.
+     */
+    void cancel();
+}
@@ -0,0 +1,120 @@
+package org.movealong.persistence;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+
+    private AdmissionController controller;
+
+    @Before
+    public void setUp() throws Exception {
+        controller = new AdmissionController();
+        controller.setMaximumSessions(2);
+        controller.setQueueTimeout(20);
+    }
+
+    @Test
+    public void disabledWithoutQueueTimeout() throws Exception {
+        AdmissionController disabled = new AdmissionController();
+        disabled.setMaximumSessions(1);
+        assertFalse(disabled.admit(SessionPriority.NORMAL));
+        assertFalse(disabled.admit(SessionPriority.NORMAL));
+    }
+
+    @Test
+    public void rejectAfterQueueTimeout() throws Exception {
+        assertTrue(controller.admit(SessionPriority.NORMAL));
+        assertTrue(controller.admit(SessionPriority.NORMAL));
+        long start = System.nanoTime();
+        try {
+            controller.admit(SessionPriority.NORMAL);
+            fail("admitted past the limit");
+        } catch (AdmissionRejectedException e) {
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        assertEquals(1, controller.getRejectedCount());
+        assertEquals(0, controller.getWaitingCount());
+
+        controller.release();
+        assertTrue(controller.admit(SessionPriority.NORMAL));
+        assertEquals(3, controller.getAdmittedCount());
+        assertEquals(2, controller.getInFlightCount());
+    }
+
+    @Test
+    public void lowPriorityShare() throws Exception {
+        assertTrue(controller.admit(SessionPriority.LOW));
+        try {
+            controller.admit(SessionPriority.LOW);
+            fail("low priority work exceeded its share");
+        } catch (AdmissionRejectedException e) {
+            // expected
+        }
+        assertTrue(controller.admit(SessionPriority.NORMAL));
+    }
+
+    @Test
+    public void admitHigherPriorityFirst() throws Exception {
+        controller.setQueueTimeout(5000);
+        controller.setMaximumSessions(1);
+        assertTrue(controller.admit(SessionPriority.HIGH));
+
+        final List<SessionPriority> order = new CopyOnWriteArrayList<SessionPriority>();
+        final CountDownLatch done = new CountDownLatch(2);
+        Thread normal = waiter(SessionPriority.NORMAL, order, done);
+        normal.start();
+        while (controller.getWaitingCount() < 1) {
+            Thread.sleep(1);
+        }
+        Thread high = waiter(SessionPriority.HIGH, order, done);
+        high.start();
+        while (controller.getWaitingCount() < 2) {
+            Thread.sleep(1);
+        }
+
+        controller.release();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(SessionPriority.HIGH, order.get(0));
+        assertEquals(SessionPriority.NORMAL, order.get(1));
+    }
+
+    @Test
+    public void adaptLimitToLatency() throws Exception {
+        controller.setMaximumSessions(10);
+        controller.setMinimumSessions(2);
+        controller.setLatencyTarget(10);
+
+        controller.transactionCompleted(TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(9, controller.getLimit());
+        controller.transactionCompleted(TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(9, controller.getLimit());
+
+        for (int i = 0; i < 9; i++) {
+            controller.admit(SessionPriority.HIGH);
+        }
+        for (int i = 0; i < 10; i++) {
+            controller.transactionCompleted(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assertEquals(10, controller.getLimit());
+    }
+
+    private Thread waiter(final SessionPriority priority, final List<SessionPriority> order,
+                          final CountDownLatch done) {
+        return new Thread(new Runnable() {
+            public void run() {
+                controller.admit(priority);
+                order.add(priority);
+                controller.release();
+                done.countDown();
+            }
+        });
+    }
+}
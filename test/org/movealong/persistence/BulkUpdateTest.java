@@ -0,0 +1,121 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.cache.CachedQuery;
+import org.movealong.persistence.cache.QueryCache;
+import org.movealong.persistence.test.entity.SomeEntity;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, BulkUpdateTest.TestModule.class})
+public class BulkUpdateTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public QueryCache queryCache;
+
+    @Before
+    public void setUp() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        session.createQuery("delete from SomeOtherEntity").executeUpdate();
+                        session.createQuery("delete from SomeEntity").executeUpdate();
+                        for (int i = 0; i < 3; i++) {
+                            SomeOtherEntity entity = new SomeOtherEntity();
+                            entity.setName("old");
+                            session.save(entity);
+                        }
+                        SomeEntity unrelated = new SomeEntity();
+                        unrelated.setId(1L);
+                        session.save(unrelated);
+                        return null;
+                    }
+                });
+            }
+        });
+        queryCache.clear();
+    }
+
+    @Test
+    public void updateAndEvict() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                Session session = hibernate.getSession();
+                List<?> loaded = session.createQuery("from SomeOtherEntity").list();
+                Object unrelated = session.get(SomeEntity.class, 1L);
+
+                assertEquals(3, hibernate.bulkUpdate("update SomeOtherEntity set name = ? where name = ?", "new", "old"));
+                assertFalse(session.contains(loaded.get(0)));
+                assertTrue(session.contains(unrelated));
+                assertFalse(hibernate.isInTransaction());
+
+                SomeOtherEntity reloaded = (SomeOtherEntity) session.get(SomeOtherEntity.class,
+                        ((SomeOtherEntity) loaded.get(0)).getId());
+                assertEquals("new", reloaded.getName());
+            }
+        });
+    }
+
+    @Test
+    public void deleteInTransaction() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        session.createQuery("from SomeOtherEntity").list();
+                        assertEquals(3, hibernate.bulkUpdate("delete from SomeOtherEntity"));
+                        assertEquals(0, session.getStatistics().getEntityCount());
+                        return null;
+                    }
+                });
+            }
+        });
+        assertEquals(0, names("old").size());
+    }
+
+    @Test
+    public void invalidateQueryCache() throws Exception {
+        assertEquals(3, names("old").size());
+        assertEquals(3, names("old").size());
+        assertEquals(1, queryCache.getHitCount());
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.bulkUpdate("delete from SomeOtherEntity o where o.name = ?", "old");
+            }
+        });
+        assertEquals(0, names("old").size());
+        assertEquals(1, queryCache.getHitCount());
+    }
+
+    private List<String> names(final String name) throws Exception {
+        return hibernate.callInSession(new Callable<List<String>>() {
+            public List<String> call() throws Exception {
+                return queryCache.list(new CachedQuery("select o.name from SomeOtherEntity o where o.name = ?", name));
+            }
+        });
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.useQueryCache(binder(), 100);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.MappingException;
+import org.hibernate.classic.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.test.entity.SomeEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, CoalescingCountersTest.TestModule.class})
+public class CoalescingCountersTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public CoalescingCounters counters;
+    @Inject public HibernateFacadeLifecycle lifecycle;
+
+    @Before
+    public void setUp() throws Exception {
+        counters.flush();
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        session.createQuery("delete from SomeEntity").executeUpdate();
+                        for (long id = 1; id <= 2; id++) {
+                            SomeEntity entity = new SomeEntity();
+                            entity.setId(id);
+                            entity.setVisits(10);
+                            session.save(entity);
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void coalesceIncrements() throws Exception {
+        long flushes = counters.getFlushCount();
+        for (int i = 0; i < 5; i++) {
+            counters.increment(SomeEntity.class, 1L, "visits", 1);
+        }
+        counters.increment(SomeEntity.class, 2L, "visits", -3);
+        assertEquals(6, counters.getUnflushedCount());
+        assertEquals(2, counters.getUnflushedDelta());
+        assertEquals(10, visits(1L));
+
+        counters.flush();
+        assertEquals(flushes + 1, counters.getFlushCount());
+        assertEquals(0, counters.getUnflushedCount());
+        assertEquals(0, counters.getUnflushedDelta());
+        assertEquals(15, visits(1L));
+        assertEquals(7, visits(2L));
+    }
+
+    @Test
+    public void concurrentIncrements() throws Exception {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 250; i++) {
+                        counters.increment(SomeEntity.class, 1L, "visits", 1);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        counters.flush();
+        assertEquals(1010, visits(1L));
+    }
+
+    @Test
+    public void keepDeltasOfFailedFlush() throws Exception {
+        long failures = counters.getFailedFlushCount();
+        counters.increment(SomeEntity.class, 1L, "visits", 4);
+        try {
+            hibernate.runInSession(new Runnable() {
+                public void run() {
+                    counters.flush();
+                }
+            });
+            fail();
+        } catch (SessionExistsException expected) {
+        }
+        assertEquals(failures + 1, counters.getFailedFlushCount());
+        assertEquals(4, counters.getUnflushedDelta());
+        assertEquals(10, visits(1L));
+
+        counters.flush();
+        assertEquals(14, visits(1L));
+    }
+
+    @Test
+    public void removeIdleCounters() throws Exception {
+        counters.increment(SomeEntity.class, 1L, "visits", 1);
+        counters.increment(SomeEntity.class, 2L, "visits", 1);
+        assertEquals(2, counters.getCounterCount());
+        counters.flush();
+        assertEquals(2, counters.getCounterCount());
+        counters.increment(SomeEntity.class, 1L, "visits", 1);
+        counters.flush();
+        assertEquals(1, counters.getCounterCount());
+        counters.flush();
+        assertEquals(0, counters.getCounterCount());
+
+        counters.increment(SomeEntity.class, 2L, "visits", 5);
+        counters.flush();
+        assertEquals(12, visits(1L));
+        assertEquals(16, visits(2L));
+    }
+
+    @Test
+    public void waitForFlushAfterShutdown() throws Exception {
+        counters.setMaximumPending(2);
+        counters.shutdown();
+        for (int i = 0; i < 3; i++) {
+            counters.increment(SomeEntity.class, 1L, "visits", 1);
+        }
+        assertEquals(10, visits(1L));
+        counters.flush();
+        assertEquals(13, visits(1L));
+    }
+
+    @Test
+    public void flushOnLifecycleShutdown() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            counters.increment(SomeEntity.class, 1L, "visits", 1);
+        }
+        assertTrue(lifecycle.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(0, counters.getUnflushedCount());
+        assertEquals(13, visits(1L));
+    }
+
+    @Test(expected = MappingException.class)
+    public void rejectUnmappedProperty() throws Exception {
+        counters.increment(SomeEntity.class, 1L, "noSuchProperty", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectWrongIdType() throws Exception {
+        counters.increment(SomeEntity.class, "1", "visits", 1);
+    }
+
+    private long visits(final long id) throws Exception {
+        return hibernate.callInSession(new Callable<Long>() {
+            public Long call() throws Exception {
+                return ((SomeEntity) hibernate.getSession().get(SomeEntity.class, id)).getVisits();
+            }
+        });
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.configureCoalescingCounters(binder(), 1, TimeUnit.HOURS, 100000);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.movealong.persistence;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.cfg.Environment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.persistence.test.entity.SomeEntity;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+public class ConfigurationCacheTest {
+
+    private static final List<String> CONFIGURATION_FILES = Arrays.asList(
+            "org/movealong/persistence/test/hibernate.one.xml",
+            "org/movealong/persistence/test/hibernate.two.xml");
+
+    private File cacheFile;
+    private ConfigurationCache configurationCache;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheFile = File.createTempFile("hibernate-fu", ".cfg.ser");
+        cacheFile.delete();
+        configurationCache = new ConfigurationCache(cacheFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cacheFile.delete();
+    }
+
+    @Test
+    public void loadWithoutCacheFile() throws Exception {
+        assertNull(configurationCache.load(CONFIGURATION_FILES));
+    }
+
+    @Test
+    public void storeAndLoad() throws Exception {
+        configurationCache.store(CONFIGURATION_FILES, buildConfiguration(CONFIGURATION_FILES));
+        assertTrue(cacheFile.isFile());
+
+        AnnotationConfiguration cached = configurationCache.load(CONFIGURATION_FILES);
+        assertNotNull(cached);
+        SessionFactory sessionFactory = cached.buildSessionFactory();
+        try {
+            assertNotNull(sessionFactory.getClassMetadata(SomeEntity.class));
+            assertNotNull(sessionFactory.getClassMetadata(SomeOtherEntity.class));
+        } finally {
+            sessionFactory.close();
+        }
+    }
+
+    @Test
+    public void loadWithChangedConfigurationFiles() throws Exception {
+        configurationCache.store(CONFIGURATION_FILES, buildConfiguration(CONFIGURATION_FILES));
+        assertNull(configurationCache.load(CONFIGURATION_FILES.subList(0, 1)));
+    }
+
+    @Test
+    public void fingerprintIsStable() throws Exception {
+        assertEquals(configurationCache.fingerprint(CONFIGURATION_FILES), configurationCache.fingerprint(CONFIGURATION_FILES));
+        assertFalse(configurationCache.fingerprint(CONFIGURATION_FILES).equals(
+                configurationCache.fingerprint(CONFIGURATION_FILES.subList(1, 2))));
+    }
+
+    @Test
+    public void storeWithoutCredentials() throws Exception {
+        AnnotationConfiguration configuration = buildConfiguration(CONFIGURATION_FILES);
+        configuration.setProperty(Environment.PASS, "not-in-the-cache");
+        configurationCache.store(CONFIGURATION_FILES, configuration);
+        assertEquals("not-in-the-cache", configuration.getProperty(Environment.PASS));
+        String stored = new String(readFully(cacheFile), "ISO-8859-1");
+        assertFalse(stored.contains("not-in-the-cache"));
+
+        AnnotationConfiguration cached = configurationCache.load(CONFIGURATION_FILES);
+        assertEquals("SA", cached.getProperty(Environment.PASS));
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static AnnotationConfiguration buildConfiguration(List<String> configurationFiles) {
+        AnnotationConfiguration configuration = new AnnotationConfiguration();
+        for (String configurationFile : configurationFiles) {
+            configuration.configure(configurationFile);
+        }
+        configuration.buildMappings();
+        return configuration;
+    }
+}
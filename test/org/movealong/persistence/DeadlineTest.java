@@ -0,0 +1,126 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, DeadlineTest.TestModule.class})
+public class DeadlineTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public DeadlineInterceptor deadlineInterceptor;
+
+    @Test
+    public void refuseToBegin() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.setDeadline(-1, TimeUnit.MILLISECONDS);
+                try {
+                    hibernate.inTransaction(new TransactionAdapter<Object>() {
+                        @Override
+                        public Object receive(Session session) throws Exception {
+                            fail("The transaction should not have begun");
+                            return null;
+                        }
+                    });
+                    fail("The deadline should have passed");
+                } catch (DeadlineExceededException e) {
+                    // expected
+                }
+            }
+        });
+    }
+
+    @Test
+    public void refuseToCommit() throws Exception {
+        final boolean[] rolledBack = new boolean[1];
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                try {
+                    hibernate.inTransaction(new TransactionAdapter<Object>() {
+                        @Override
+                        public Object receive(Session session) throws Exception {
+                            Thread.sleep(60);
+                            return null;
+                        }
+
+                        @Override
+                        public void postRollback(Session session) {
+                            rolledBack[0] = true;
+                        }
+                    }, 30, TimeUnit.MILLISECONDS);
+                    fail("The deadline should have passed");
+                } catch (DeadlineExceededException e) {
+                    assertTrue(e.getMessage(), e.getMessage().contains("committing"));
+                }
+                assertEquals(Long.MAX_VALUE, hibernate.getRemainingTime(TimeUnit.MILLISECONDS));
+            }
+        });
+        assertTrue(rolledBack[0]);
+    }
+
+    @Test
+    public void refuseStatement() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                try {
+                    hibernate.inTransaction(new TransactionAdapter<Object>() {
+                        @Override
+                        public Object receive(Session session) throws Exception {
+                            Thread.sleep(60);
+                            return session.createQuery("from SomeOtherEntity").list();
+                        }
+                    }, 30, TimeUnit.MILLISECONDS);
+                    fail("The deadline should have passed");
+                } catch (DeadlineExceededException e) {
+                    assertTrue(e.getMessage(), e.getMessage().contains("executing"));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void limitQueryTimeout() throws Exception {
+        final Mockery mockery = new Mockery();
+        final Statement statement = mockery.mock(Statement.class);
+        mockery.checking(new Expectations() {{
+            allowing(statement).getQueryTimeout(); will(returnValue(0));
+            one(statement).setQueryTimeout(5);
+        }});
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.setDeadline(5, TimeUnit.SECONDS);
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        assertTrue(hibernate.getRemainingTime(TimeUnit.SECONDS) < 5);
+                        deadlineInterceptor.beforeExecute(statement, "select 1");
+                        return null;
+                    }
+                }, 1, TimeUnit.HOURS);
+            }
+        });
+        mockery.assertIsSatisfied();
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.enforceStatementDeadlines(binder());
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, GroupCommitterTest.TestModule.class})
+public class GroupCommitterTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public GroupCommitter groupCommitter;
+    @Inject public PostCommitExecutor postCommitExecutor;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shareTransactions() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(submit(start, new Save("shared-" + i, null)));
+        }
+        start.countDown();
+        for (Future<Long> future : futures) {
+            assertNotNull(future.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(8, count("shared-%"));
+        assertTrue(groupCommitter.getBatchCount() < groupCommitter.getReceiverCount());
+    }
+
+    @Test
+    public void isolateFailures() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<String> callbacks = Collections.synchronizedList(new ArrayList<String>());
+        Future<Long> first = submit(start, new Save("isolated-1", callbacks));
+        Future<Long> failing = submit(start, new Save("isolated-2", callbacks) {
+            @Override
+            public Long receive(Session session) throws Exception {
+                super.receive(session);
+                throw new IllegalStateException("roll back");
+            }
+        });
+        Future<Long> last = submit(start, new Save("isolated-3", callbacks));
+        start.countDown();
+
+        assertNotNull(first.get(5, TimeUnit.SECONDS));
+        assertNotNull(last.get(5, TimeUnit.SECONDS));
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail("The failing receiver should have thrown");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(2, count("isolated-%"));
+        assertTrue(callbacks.contains("postCommit isolated-1"));
+        assertTrue(callbacks.contains("postRollback isolated-2"));
+        assertTrue(callbacks.contains("postCommit isolated-3"));
+        assertFalse(callbacks.contains("postCommit isolated-2"));
+    }
+
+    @Test
+    public void discardSynchronizationsOfRolledBackReceivers() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> tasks = Collections.synchronizedList(new ArrayList<String>());
+        Future<Long> kept = submit(start, new Save("synchronized-1", null) {
+            @Override
+            public Long receive(Session session) throws Exception {
+                postCommitExecutor.afterCommit(null, new Record(tasks, "kept"));
+                return super.receive(session);
+            }
+        });
+        Future<Long> failing = submit(start, new Save("synchronized-2", null) {
+            @Override
+            public Long receive(Session session) throws Exception {
+                postCommitExecutor.afterCommit(null, new Record(tasks, "discarded"));
+                super.receive(session);
+                throw new IllegalStateException("roll back");
+            }
+        });
+        start.countDown();
+
+        assertNotNull(kept.get(5, TimeUnit.SECONDS));
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail("The failing receiver should have thrown");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(postCommitExecutor.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("kept"), tasks);
+    }
+
+    @Test
+    public void isolateErrors() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Future<Long> first = submit(start, new Save("error-1", null));
+        Future<Long> failing = submit(start, new Save("error-2", null) {
+            @Override
+            public Long receive(Session session) throws Exception {
+                super.receive(session);
+                throw new ReceiverError();
+            }
+        });
+        start.countDown();
+
+        assertNotNull(first.get(5, TimeUnit.SECONDS));
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail("The failing receiver should have thrown");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof ReceiverError);
+        }
+        assertNotNull(submit(start, new Save("error-3", null)).get(5, TimeUnit.SECONDS));
+        assertEquals(2, count("error-%"));
+    }
+
+    @Test
+    public void survivePostCommitErrors() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Future<Long> failing = submit(start, new Save("postCommitError-1", null) {
+            @Override
+            public void postCommit(Session session) {
+                throw new ReceiverError();
+            }
+        });
+        start.countDown();
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail("The failing callback should have thrown");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof ReceiverError);
+        }
+        assertNotNull(submit(start, new Save("postCommitError-2", null)).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = SessionExistsException.class)
+    public void rejectSubmissionsWithSession() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                groupCommitter.inTransaction(new Save("session-1", null));
+            }
+        });
+    }
+
+    @Test
+    public void timeOutWaiting() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Long> blocking = submit(new CountDownLatch(0), new Save("timeout-1", null) {
+            @Override
+            public Long receive(Session session) throws Exception {
+                entered.countDown();
+                release.await();
+                return super.receive(session);
+            }
+        });
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        try {
+            groupCommitter.inTransaction(new Save("timeout-2", null));
+            fail("The wait should have timed out");
+        } catch (HibernateFacadeException e) {
+            assertTrue(e.getMessage().contains("withdrawn"));
+        }
+        try {
+            blocking.get(5, TimeUnit.SECONDS);
+            fail("The wait should have timed out");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("may still commit"));
+        }
+        release.countDown();
+        for (int i = 0; i < 500 && count("timeout-1") == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, count("timeout-1"));
+        assertNotNull(submit(new CountDownLatch(0), new Save("timeout-3", null)).get(5, TimeUnit.SECONDS));
+        assertEquals(0, count("timeout-2"));
+    }
+
+    private Future<Long> submit(final CountDownLatch start, final TransactionReceiver<Long> receiver) {
+        return executor.submit(new Callable<Long>() {
+            public Long call() throws Exception {
+                start.await();
+                return groupCommitter.inTransaction(receiver);
+            }
+        });
+    }
+
+    private long count(final String pattern) throws Exception {
+        return hibernate.callInSession(new Callable<Long>() {
+            public Long call() throws Exception {
+                return (Long) hibernate.getSession()
+                        .createQuery("select count(*) from SomeOtherEntity o where o.name like ?")
+                        .setString(0, pattern)
+                        .uniqueResult();
+            }
+        });
+    }
+
+    private static class Save extends TransactionAdapter<Long> {
+        private final String name;
+        private final List<String> callbacks;
+
+        private Save(String name, List<String> callbacks) {
+            this.name = name;
+            this.callbacks = callbacks;
+        }
+
+        @Override
+        public Long receive(Session session) throws Exception {
+            SomeOtherEntity entity = new SomeOtherEntity();
+            entity.setName(name);
+            return (Long) session.save(entity);
+        }
+
+        @Override
+        public void postCommit(Session session) {
+            if (callbacks != null) {
+                callbacks.add("postCommit " + name);
+            }
+        }
+
+        @Override
+        public void postRollback(Session session) {
+            if (callbacks != null) {
+                callbacks.add("postRollback " + name);
+            }
+        }
+    }
+
+    private static class Record implements Runnable {
+        private final List<String> tasks;
+        private final String name;
+
+        private Record(List<String> tasks, String name) {
+            this.tasks = tasks;
+            this.name = name;
+        }
+
+        public void run() {
+            tasks.add(name);
+        }
+    }
+
+    private static class ReceiverError extends Error {
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.useGroupCommit(binder(), 100, TimeUnit.MILLISECONDS, 50, 1, TimeUnit.SECONDS);
+        }
+    }
+}
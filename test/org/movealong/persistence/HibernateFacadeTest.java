@@ -16,6 +16,7 @@ import org.junit.runner.RunWith;
 import org.movealong.junitfu.JUnitFu;
 import org.movealong.junitfu.Mock;
 
+import java.lang.reflect.UndeclaredThrowableException;
 import java.sql.Connection;
 import java.util.concurrent.Callable;
 
@@ -200,6 +201,24 @@ public class HibernateFacadeTest {
         }));
     }
 
+    @Test(expected = UndeclaredThrowableException.class)
+    public void inTransactionWithSessionReceiverThrowsChecked() throws Exception {
+        final MockCheckedException checked = new MockCheckedException();
+        final SessionReceiver<Object> receiver = mockery.mock(SessionReceiver.class, "receiver");
+        mockery.checking(new Expectations() {{
+            exactly(1).of(session).beginTransaction(); will(returnValue(transaction));
+            exactly(1).of(receiver).receive(with(sameInstance(session))); will(throwException(checked));
+            never(receiver).translateException(with(any(Exception.class)));
+            never(transaction).commit();
+            exactly(1).of(transaction).rollback();
+        }});
+        hibernateFacade.runInSession(new Runnable() {
+            public void run() {
+                hibernateFacade.inTransaction(receiver);
+            }
+        });
+    }
+
     @Test(expected = TransactionExistsException.class)
     public void inTransactionNested() throws Exception {
         final TransactionReceiver<Object> checkedReceiver = mockery.mock(TransactionReceiver.class, "checkedReceiver");
@@ -0,0 +1,102 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.SessionFactory;
+import org.hibernate.classic.Session;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, KeysetIteratorTest.TestModule.class})
+public class KeysetIteratorTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public SessionFactory sessionFactory;
+
+    private Statistics statistics;
+
+    @Before
+    public void setUp() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        session.createQuery("delete from SomeOtherEntity").executeUpdate();
+                        for (int i = 0; i < 25; i++) {
+                            SomeOtherEntity entity = new SomeOtherEntity();
+                            entity.setName(String.format("name-%02d", 24 - i));
+                            session.save(entity);
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+        statistics = sessionFactory.getStatistics();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+    }
+
+    @Test
+    public void iterateByIdentifier() throws Exception {
+        List<SomeOtherEntity> entities = drain(hibernate.iterateByKey(SomeOtherEntity.class, 10, false));
+        assertEquals(25, entities.size());
+        for (int i = 1; i < entities.size(); i++) {
+            assertTrue(entities.get(i - 1).getId() < entities.get(i).getId());
+        }
+        assertEquals(3, statistics.getSessionOpenCount());
+        assertEquals(3, statistics.getSessionCloseCount());
+    }
+
+    @Test
+    public void iterateByPropertyWithPrefetch() throws Exception {
+        List<SomeOtherEntity> entities = drain(hibernate.iterateByKey(SomeOtherEntity.class, "name", 5, true));
+        assertEquals(25, entities.size());
+        for (int i = 0; i < entities.size(); i++) {
+            assertEquals(String.format("name-%02d", i), entities.get(i).getName());
+        }
+        // the fifth page is full, so a sixth, empty page is read to find the end
+        assertEquals(6, statistics.getSessionOpenCount());
+    }
+
+    @Test
+    public void iterateWithinSession() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                Iterator<SomeOtherEntity> iterator = hibernate.iterateByKey(SomeOtherEntity.class, 10, true);
+                SomeOtherEntity first = iterator.next();
+                assertFalse(hibernate.getSession().contains(first));
+                assertEquals(25, 1 + drain(iterator).size());
+            }
+        });
+    }
+
+    private static <E> List<E> drain(Iterator<E> iterator) {
+        List<E> entities = new ArrayList<E>();
+        while (iterator.hasNext()) {
+            entities.add(iterator.next());
+        }
+        return entities;
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.hibernate.classic.Session;
+import org.junit.Test;
+import org.movealong.persistence.cache.QueryCache;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ManagementBeansTest {
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @Test
+    public void neverReplaceAnotherInjectorsBeans() throws Exception {
+        ObjectName name = new ObjectName(ManagementBeans.DOMAIN + ":type=QueryCache,instance=replaced");
+        Injector first = injector("replaced", 10);
+        Injector second = injector("replaced", 20);
+        first.getInstance(QueryCache.class);
+        second.getInstance(QueryCache.class);
+        assertEquals(10L, server.getAttribute(name, "MaximumWeight"));
+
+        assertTrue(second.getInstance(HibernateFacadeLifecycle.class).shutdown(1, TimeUnit.SECONDS));
+        assertEquals(10L, server.getAttribute(name, "MaximumWeight"));
+        assertTrue(first.getInstance(HibernateFacadeLifecycle.class).shutdown(1, TimeUnit.SECONDS));
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void createOptionalFeaturesOnlyWhenInstalled() throws Exception {
+        Injector injector = injector("optional", 10);
+        injector.getInstance(HibernateFacade.class);
+        try {
+            assertFalse(server.isRegistered(
+                    new ObjectName(ManagementBeans.DOMAIN + ":type=AdmissionController,instance=optional")));
+            assertFalse(server.isRegistered(
+                    new ObjectName(ManagementBeans.DOMAIN + ":type=PersistenceContextGuard,instance=optional")));
+            assertFalse(server.isRegistered(
+                    new ObjectName(ManagementBeans.DOMAIN + ":type=WorkloadRecorder,instance=optional")));
+        } finally {
+            injector.getInstance(HibernateFacadeLifecycle.class).shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void stopBackgroundServices() throws Exception {
+        Injector injector = injector("services", 10);
+        final HibernateFacade hibernate = injector.getInstance(HibernateFacade.class);
+        final PostCommitExecutor executor = injector.getInstance(PostCommitExecutor.class);
+        final AtomicBoolean ran = new AtomicBoolean();
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        executor.afterCommit(null, new Runnable() {
+                            public void run() {
+                                ran.set(true);
+                            }
+                        });
+                        return null;
+                    }
+                });
+            }
+        });
+        assertTrue(injector.getInstance(HibernateFacadeLifecycle.class).shutdown(1, TimeUnit.SECONDS));
+        assertTrue(ran.get());
+        assertEquals(1, executor.getCompletedCount());
+        assertFalse(server.isRegistered(
+                new ObjectName(ManagementBeans.DOMAIN + ":type=PostCommitExecutor,instance=services")));
+    }
+
+    private static Injector injector(final String instance, final long maximumWeight) {
+        return Guice.createInjector(new HibernateFacadeModule(), new AbstractModule() {
+            @Override
+            protected void configure() {
+                HibernateFacadeModule.addXmlConfigurationResource(binder(),
+                        "org/movealong/persistence/test/hibernate.one.xml");
+                HibernateFacadeModule.setManagementBeanInstance(binder(), instance);
+                HibernateFacadeModule.useQueryCache(binder(), maximumWeight);
+            }
+        });
+    }
+}
@@ -0,0 +1,134 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, PersistenceContextGuardTest.TestModule.class})
+public class PersistenceContextGuardTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public PersistenceContextGuard guard;
+
+    @Before
+    public void setUp() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        session.createQuery("delete from SomeOtherEntity").executeUpdate();
+                        insert(session, "guarded", 6);
+                        return null;
+                    }
+                });
+            }
+        });
+        guard.reset();
+    }
+
+    @Test
+    public void warnOnceAndRecordPeak() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.getSession().createQuery("from SomeOtherEntity").list();
+                hibernate.getSession().createQuery("from SomeOtherEntity").list();
+                assertEquals(6, guard.getCurrentPeakSize());
+            }
+        });
+        assertEquals(1, guard.getWarningCount());
+        assertEquals(6, guard.getMaximumPeakSize());
+        assertEquals(0, guard.getClearCount());
+    }
+
+    @Test
+    public void clearAtCheckpointInTransaction() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        insert(session, "batched", 6);
+                        hibernate.checkpoint();
+                        assertEquals(0, session.getStatistics().getEntityCount());
+                        return null;
+                    }
+                });
+            }
+        });
+        assertEquals(1, guard.getClearCount());
+        assertEquals(12, count());
+    }
+
+    @Test
+    public void clearOnlyAtExplicitCheckpoints() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                final List<?> loaded = hibernate.getSession().createQuery("from SomeOtherEntity").list();
+                ((SomeOtherEntity) loaded.get(0)).setName("unflushed");
+                hibernate.checkpoint();
+                assertEquals(0, guard.getClearCount());
+                hibernate.getSession().clear();
+
+                final List<?> reloaded = hibernate.getSession().createQuery("from SomeOtherEntity").list();
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        assertTrue(session.contains(reloaded.get(0)));
+                        ((SomeOtherEntity) reloaded.get(0)).setName("changed");
+                        return null;
+                    }
+                });
+                assertEquals(0, guard.getClearCount());
+
+                hibernate.checkpoint();
+                assertEquals(1, guard.getClearCount());
+                assertFalse(hibernate.getSession().contains(reloaded.get(0)));
+            }
+        });
+        assertEquals(1, hibernate.callInSession(new Callable<Long>() {
+            public Long call() throws Exception {
+                return (Long) hibernate.getSession()
+                        .createQuery("select count(*) from SomeOtherEntity o where o.name = 'changed'")
+                        .uniqueResult();
+            }
+        }).longValue());
+    }
+
+    private long count() throws Exception {
+        return hibernate.callInSession(new Callable<Long>() {
+            public Long call() throws Exception {
+                return (Long) hibernate.getSession().createQuery("select count(*) from SomeOtherEntity").uniqueResult();
+            }
+        });
+    }
+
+    private static void insert(org.hibernate.Session session, String prefix, int count) {
+        for (int i = 0; i < count; i++) {
+            SomeOtherEntity entity = new SomeOtherEntity();
+            entity.setName(prefix + "-" + i);
+            session.save(entity);
+        }
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.guardPersistenceContext(binder(), 3, 5);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, PostCommitExecutorTest.TestModule.class})
+public class PostCommitExecutorTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public PostCommitExecutor postCommitExecutor;
+
+    @After
+    public void tearDown() throws Exception {
+        postCommitExecutor.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void runAfterCommit() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                postCommitExecutor.afterCommit(null, countDown(latch));
+                return null;
+            }
+
+            @Override
+            public void preCommit(Session session) {
+                assertEquals(1, latch.getCount());
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void dropOnRollback() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            inTransaction(new TransactionAdapter<Object>() {
+                @Override
+                public Object receive(Session session) throws Exception {
+                    postCommitExecutor.afterCommit(null, countDown(latch));
+                    throw new IllegalStateException("roll back");
+                }
+            });
+            fail("The transaction should have rolled back");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(postCommitExecutor.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(1, latch.getCount());
+        assertEquals(1, postCommitExecutor.getDroppedCount());
+    }
+
+    @Test
+    public void orderByKey() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 50; i++) {
+            final int value = i;
+            inTransaction(new TransactionAdapter<Object>() {
+                @Override
+                public Object receive(Session session) throws Exception {
+                    postCommitExecutor.afterCommit("key", new Runnable() {
+                        public void run() {
+                            order.add(value);
+                        }
+                    });
+                    return null;
+                }
+            });
+        }
+        assertTrue(postCommitExecutor.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(50, order.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void isolateFailures() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                postCommitExecutor.afterCommit("key", new Runnable() {
+                    public void run() {
+                        throw new IllegalStateException("failed task");
+                    }
+                });
+                postCommitExecutor.afterCommit("key", countDown(latch));
+                return null;
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(postCommitExecutor.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(1, postCommitExecutor.getFailedCount());
+        assertEquals(2, postCommitExecutor.getCompletedCount());
+    }
+
+    @Test
+    public void rejectAfterShutdown() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                postCommitExecutor.afterCommit(null, countDown(latch));
+                assertTrue(postCommitExecutor.shutdown(1, TimeUnit.SECONDS));
+                try {
+                    postCommitExecutor.afterCommit(null, countDown(latch));
+                    fail("The task should have been rejected");
+                } catch (RejectedExecutionException e) {
+                    // expected
+                }
+                return null;
+            }
+        });
+        assertEquals(1, latch.getCount());
+        assertEquals(1, postCommitExecutor.getDroppedCount());
+    }
+
+    @Test(expected = NoTransactionException.class)
+    public void afterCommitWithoutTransaction() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                postCommitExecutor.afterCommit(null, new Runnable() {
+                    public void run() {
+                        fail("The task should never run");
+                    }
+                });
+            }
+        });
+    }
+
+    private void inTransaction(final TransactionReceiver<Object> receiver) {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(receiver);
+            }
+        });
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.configurePostCommitExecutor(binder(), 2, 10);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, ProcessInParallelTest.TestModule.class})
+public class ProcessInParallelTest {
+
+    @Inject public HibernateFacade hibernate;
+
+    @Test
+    public void processPartitions() throws Exception {
+        final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        PartitionedResult<String, Integer> result = hibernate.processInParallel(names("parallel", 20), 5, 4,
+                new PartitionReceiverFactory<String, Integer>() {
+                    public TransactionReceiver<Integer> receiverFor(List<String> partition) {
+                        threads.add(Thread.currentThread().getName());
+                        return new Insert(partition);
+                    }
+                });
+        assertTrue(result.isSuccessful());
+        assertEquals(Arrays.asList(5, 5, 5, 5), result.getResults());
+        assertEquals(20, count("parallel-%"));
+        assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    public void retryPartition() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        PartitionedResult<String, Integer> result = hibernate.processInParallel(names("retried", 6), 3, 2, 1,
+                failingOnce("retried-4", attempts));
+        assertTrue(result.isSuccessful());
+        assertEquals(6, count("retried-%"));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void aggregateFailures() throws Exception {
+        PartitionedResult<String, Integer> result = hibernate.processInParallel(names("failed", 6), 3, 2,
+                failingOnce("failed-4", new AtomicInteger()));
+        assertFalse(result.isSuccessful());
+        assertEquals(Arrays.asList(3), result.getResults());
+        assertEquals(Arrays.asList("failed-3", "failed-4", "failed-5"), result.getFailedIds());
+        assertTrue(result.getFailures().values().iterator().next() instanceof IllegalStateException);
+        assertEquals(3, count("failed-%"));
+    }
+
+    private PartitionReceiverFactory<String, Integer> failingOnce(final String failing, final AtomicInteger attempts) {
+        final AtomicInteger failures = new AtomicInteger();
+        return new PartitionReceiverFactory<String, Integer>() {
+            public TransactionReceiver<Integer> receiverFor(final List<String> partition) {
+                attempts.incrementAndGet();
+                return new Insert(partition) {
+                    @Override
+                    public Integer receive(Session session) throws Exception {
+                        Integer inserted = super.receive(session);
+                        if (partition.contains(failing) && failures.getAndIncrement() == 0) {
+                            throw new IllegalStateException("roll back");
+                        }
+                        return inserted;
+                    }
+                };
+            }
+        };
+    }
+
+    private static List<String> names(String prefix, int count) {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            names.add(prefix + "-" + i);
+        }
+        return names;
+    }
+
+    private long count(final String pattern) throws Exception {
+        return hibernate.callInSession(new Callable<Long>() {
+            public Long call() throws Exception {
+                return (Long) hibernate.getSession()
+                        .createQuery("select count(*) from SomeOtherEntity o where o.name like ?")
+                        .setString(0, pattern)
+                        .uniqueResult();
+            }
+        });
+    }
+
+    private static class Insert extends TransactionAdapter<Integer> {
+        private final List<String> names;
+
+        private Insert(List<String> names) {
+            this.names = names;
+        }
+
+        @Override
+        public Integer receive(Session session) throws Exception {
+            for (String name : names) {
+                SomeOtherEntity entity = new SomeOtherEntity();
+                entity.setName(name);
+                session.save(entity);
+            }
+            return names.size();
+        }
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+        }
+    }
+}
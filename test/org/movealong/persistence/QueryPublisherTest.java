@@ -0,0 +1,207 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.stream.Publisher;
+import org.movealong.persistence.stream.QueryBuilder;
+import org.movealong.persistence.stream.Subscriber;
+import org.movealong.persistence.stream.Subscription;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, QueryPublisherTest.TestModule.class})
+public class QueryPublisherTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public SessionFactory sessionFactory;
+    @Inject public AdmissionController admissionController;
+    @Inject public CountingListener listener;
+
+    private Statistics statistics;
+
+    @Before
+    public void setUp() throws Exception {
+        statistics = sessionFactory.getStatistics();
+        statistics.setStatisticsEnabled(true);
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(org.hibernate.classic.Session session) throws Exception {
+                        session.createQuery("delete from SomeOtherEntity").executeUpdate();
+                        for (int i = 0; i < 5; i++) {
+                            SomeOtherEntity entity = new SomeOtherEntity();
+                            entity.setName("published-" + i);
+                            session.save(entity);
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+        statistics.clear();
+    }
+
+    @Test
+    public void deliverOnDemand() throws Exception {
+        RecordingSubscriber<SomeOtherEntity> subscriber = new RecordingSubscriber<SomeOtherEntity>();
+        hibernate.<SomeOtherEntity>publish(query("from SomeOtherEntity o order by o.name")).subscribe(subscriber);
+        assertEquals(0, statistics.getSessionOpenCount());
+
+        subscriber.subscription.request(2);
+        assertEquals(2, subscriber.items.size());
+        assertFalse(subscriber.complete);
+        assertEquals(1, statistics.getSessionOpenCount());
+
+        subscriber.subscription.request(3);
+        assertEquals(5, subscriber.items.size());
+        assertEquals("published-4", subscriber.items.get(4).getName());
+        assertTrue(subscriber.complete);
+        assertEquals(1, statistics.getSessionCloseCount());
+    }
+
+    @Test
+    public void admitAndBindSubscriptionSessions() throws Exception {
+        final List<Boolean> hadSession = new ArrayList<Boolean>();
+        RecordingSubscriber<SomeOtherEntity> subscriber = new RecordingSubscriber<SomeOtherEntity>() {
+            @Override
+            public void onNext(SomeOtherEntity item) {
+                super.onNext(item);
+                hadSession.add(hibernate.hasSession());
+            }
+        };
+        long admitted = admissionController.getAdmittedCount();
+        int opened = listener.opened;
+        hibernate.<SomeOtherEntity>publish(query("from SomeOtherEntity o order by o.name")).subscribe(subscriber);
+
+        subscriber.subscription.request(2);
+        assertEquals(admitted + 1, admissionController.getAdmittedCount());
+        assertEquals(1, admissionController.getInFlightCount());
+        assertEquals(opened + 1, listener.opened);
+        assertEquals(opened + 1, listener.closing);
+        assertFalse(hibernate.hasSession());
+        assertEquals(2, hadSession.size());
+        assertFalse(hadSession.contains(true));
+
+        subscriber.subscription.request(3);
+        assertTrue(subscriber.complete);
+        assertEquals(0, admissionController.getInFlightCount());
+        assertEquals(opened + 2, listener.opened);
+        assertEquals(opened + 2, listener.closing);
+    }
+
+    @Test
+    public void deliverProjections() throws Exception {
+        RecordingSubscriber<String> subscriber = new RecordingSubscriber<String>();
+        Publisher<String> publisher = hibernate.publish(query("select o.name from SomeOtherEntity o order by o.name"));
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals("published-0", subscriber.items.get(0));
+        assertEquals(5, subscriber.items.size());
+        assertTrue(subscriber.complete);
+    }
+
+    @Test
+    public void closeOnCancel() throws Exception {
+        RecordingSubscriber<SomeOtherEntity> subscriber = new RecordingSubscriber<SomeOtherEntity>() {
+            @Override
+            public void onNext(SomeOtherEntity item) {
+                super.onNext(item);
+                subscription.cancel();
+            }
+        };
+        hibernate.<SomeOtherEntity>publish(query("from SomeOtherEntity")).subscribe(subscriber);
+        subscriber.subscription.request(5);
+        assertEquals(1, subscriber.items.size());
+        assertFalse(subscriber.complete);
+        assertEquals(1, statistics.getSessionCloseCount());
+    }
+
+    @Test
+    public void closeOnError() throws Exception {
+        RecordingSubscriber<Object> subscriber = new RecordingSubscriber<Object>();
+        hibernate.publish(query("from NoSuchEntity")).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertNotNull(subscriber.error);
+        assertEquals(statistics.getSessionOpenCount(), statistics.getSessionCloseCount());
+    }
+
+    @Test
+    public void rejectNonPositiveRequest() throws Exception {
+        RecordingSubscriber<Object> subscriber = new RecordingSubscriber<Object>();
+        hibernate.publish(query("from SomeOtherEntity")).subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(0, statistics.getSessionOpenCount());
+    }
+
+    private static QueryBuilder query(final String hql) {
+        return new QueryBuilder() {
+            public Query build(Session session) {
+                return session.createQuery(hql);
+            }
+        };
+    }
+
+    private static class RecordingSubscriber<T> implements Subscriber<T> {
+        Subscription subscription;
+        final List<T> items = new ArrayList<T>();
+        boolean complete;
+        Throwable error;
+
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        public void onComplete() {
+            complete = true;
+        }
+    }
+
+    @com.google.inject.Singleton
+    public static class CountingListener implements SessionListener {
+        private int opened;
+        private int closing;
+
+        public void sessionOpened(org.hibernate.classic.Session session) {
+            opened++;
+        }
+
+        public void sessionClosing(org.hibernate.classic.Session session) {
+            closing++;
+        }
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.limitSessions(binder(), 4, 1, TimeUnit.SECONDS);
+            HibernateFacadeModule.addSessionListener(binder(), CountingListener.class);
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.hibernate.classic.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.jdbc.StatementInterceptor;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, SingleFlightLoaderTest.TestModule.class})
+public class SingleFlightLoaderTest {
+
+    private static final AtomicInteger reads = new AtomicInteger();
+    private static volatile CountDownLatch gate = new CountDownLatch(0);
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public SingleFlightLoader loader;
+    @Inject public CountingListener listener;
+
+    private Long id;
+
+    @Before
+    public void setUp() throws Exception {
+        id = hibernate.callInSession(new Callable<Long>() {
+            public Long call() {
+                return hibernate.inTransaction(new TransactionAdapter<Long>() {
+                    @Override
+                    public Long receive(Session session) throws Exception {
+                        SomeOtherEntity entity = new SomeOtherEntity();
+                        entity.setName("hot");
+                        return (Long) session.save(entity);
+                    }
+                });
+            }
+        });
+        reads.set(0);
+    }
+
+    @Test
+    public void coalesceConcurrentLoads() throws Exception {
+        gate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<SomeOtherEntity>> loads = new ArrayList<Future<SomeOtherEntity>>();
+            loads.add(executor.submit(load()));
+            while (reads.get() == 0) {
+                Thread.sleep(1);
+            }
+            for (int i = 0; i < 3; i++) {
+                loads.add(executor.submit(load()));
+            }
+            while (loader.getCoalescedCount() < 3) {
+                Thread.sleep(1);
+            }
+            gate.countDown();
+
+            SomeOtherEntity shared = loads.get(0).get(5, TimeUnit.SECONDS);
+            assertEquals("hot", shared.getName());
+            for (Future<SomeOtherEntity> load : loads) {
+                assertSame(shared, load.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            gate.countDown();
+            executor.shutdownNow();
+        }
+        assertEquals(1, reads.get());
+        assertEquals(1, loader.getLoadCount());
+        assertEquals(0, loader.getInFlightCount());
+    }
+
+    @Test
+    public void loadAgainOnceComplete() throws Exception {
+        SomeOtherEntity first = loader.load(SomeOtherEntity.class, id);
+        SomeOtherEntity second = loader.load(SomeOtherEntity.class, id);
+        assertNotSame(first, second);
+        assertEquals(2, reads.get());
+        assertNull(loader.load(SomeOtherEntity.class, -1L));
+    }
+
+    @Test
+    public void loadIsDetached() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                assertFalse(hibernate.getSession().contains(loader.load(SomeOtherEntity.class, id)));
+            }
+        });
+    }
+
+    @Test
+    public void readThroughFacadeSessions() throws Exception {
+        int opened = listener.opened;
+        assertEquals("hot", loader.load(SomeOtherEntity.class, id).getName());
+        assertEquals(opened + 1, listener.opened);
+        assertEquals(opened + 1, listener.closing);
+        assertFalse(hibernate.hasSession());
+
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                assertEquals("hot", loader.load(SomeOtherEntity.class, id).getName());
+            }
+        });
+        assertEquals(opened + 2, listener.opened);
+        assertEquals(opened + 2, listener.closing);
+    }
+
+    @Test
+    public void neverShareReadsInTransaction() throws Exception {
+        try {
+            hibernate.runInSession(new Runnable() {
+                public void run() {
+                    hibernate.inTransaction(new TransactionAdapter<Object>() {
+                        @Override
+                        public Object receive(Session session) throws Exception {
+                            SomeOtherEntity entity = (SomeOtherEntity) session.get(SomeOtherEntity.class, id);
+                            entity.setName("uncommitted");
+                            session.flush();
+                            assertEquals("uncommitted", loader.load(SomeOtherEntity.class, id).getName());
+                            assertEquals(0, loader.getInFlightCount());
+                            throw new IllegalStateException("roll back");
+                        }
+                    });
+                }
+            });
+            fail("The transaction should have rolled back");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, loader.getLoadCount());
+        assertEquals("hot", loader.load(SomeOtherEntity.class, id).getName());
+    }
+
+    private Callable<SomeOtherEntity> load() {
+        return new Callable<SomeOtherEntity>() {
+            public SomeOtherEntity call() {
+                return loader.load(SomeOtherEntity.class, id);
+            }
+        };
+    }
+
+    public static class GatedReads implements StatementInterceptor {
+        @Override
+        public void beforeExecute(Statement statement, String sql) {
+            if (sql.startsWith("select") && sql.contains("some_others")) {
+                reads.incrementAndGet();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    @Singleton
+    public static class CountingListener implements SessionListener {
+        private int opened;
+        private int closing;
+
+        public void sessionOpened(Session session) {
+            opened++;
+        }
+
+        public void sessionClosing(Session session) {
+            closing++;
+        }
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.addStatementInterceptor(binder(), GatedReads.class);
+            HibernateFacadeModule.addSessionListener(binder(), CountingListener.class);
+        }
+    }
+}
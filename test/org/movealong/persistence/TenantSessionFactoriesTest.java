@@ -0,0 +1,174 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.classic.Session;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, TenantSessionFactoriesTest.TestModule.class})
+public class TenantSessionFactoriesTest {
+
+    private static final ThreadLocal<String> tenant = new ThreadLocal<String>();
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public XmlSessionFactoryProvider provider;
+
+    @After
+    public void tearDown() throws Exception {
+        tenant.remove();
+    }
+
+    @Test
+    public void separateTenants() throws Exception {
+        save("a", "one");
+        save("a", "two");
+        save("b", "three");
+        assertEquals(2, count("a"));
+        assertEquals(1, count("b"));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        SessionFactory a = factory("a");
+        SessionFactory b = factory("b");
+        assertSame(a, factory("a"));
+        factory("c");
+        assertFalse(a.isClosed());
+        assertTrue(b.isClosed());
+        factory("d");
+        assertTrue(a.isClosed());
+    }
+
+    @Test
+    public void drainBeforeClosing() throws Exception {
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch evicted = new CountDownLatch(1);
+        final AtomicReference<SessionFactory> held = new AtomicReference<SessionFactory>();
+        Thread holder = new Thread(new Runnable() {
+            public void run() {
+                tenant.set("held");
+                hibernate.runInSession(new Runnable() {
+                    public void run() {
+                        held.set(hibernate.getSession().getSessionFactory());
+                        opened.countDown();
+                        try {
+                            evicted.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+        });
+        holder.start();
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        factory("b");
+        factory("c");
+        assertFalse(held.get().isClosed());
+        evicted.countDown();
+        holder.join(5000);
+        assertTrue(held.get().isClosed());
+    }
+
+    @Test
+    public void carryTenantToWorkers() throws Exception {
+        save("a", "one");
+        save("a", "two");
+        save("b", "three");
+        tenant.set("a");
+        Iterator<SomeOtherEntity> entities = hibernate.iterateByKey(SomeOtherEntity.class, 1, true);
+        int iterated = 0;
+        while (entities.hasNext()) {
+            entities.next();
+            iterated++;
+        }
+        assertEquals(2, iterated);
+        tenant.set("b");
+        PartitionedResult<Integer, Long> result = hibernate.processInParallel(Arrays.asList(1, 2), 1, 2,
+                new PartitionReceiverFactory<Integer, Long>() {
+                    public TransactionReceiver<Long> receiverFor(List<Integer> partition) {
+                        return new TransactionAdapter<Long>() {
+                            @Override
+                            public Long receive(Session session) {
+                                return (Long) session.createQuery("select count(*) from SomeOtherEntity")
+                                        .uniqueResult();
+                            }
+                        };
+                    }
+                });
+        assertTrue(result.isSuccessful());
+        assertEquals(Arrays.asList(1L, 1L), result.getResults());
+    }
+
+    private SessionFactory factory(String name) throws Exception {
+        tenant.set(name);
+        return hibernate.callInSession(new Callable<SessionFactory>() {
+            public SessionFactory call() {
+                return hibernate.getSession().getSessionFactory();
+            }
+        });
+    }
+
+    private void save(String name, final String entityName) {
+        tenant.set(name);
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        SomeOtherEntity entity = new SomeOtherEntity();
+                        entity.setName(entityName);
+                        return session.save(entity);
+                    }
+                });
+            }
+        });
+    }
+
+    private long count(String name) throws Exception {
+        tenant.set(name);
+        return hibernate.callInSession(new Callable<Long>() {
+            public Long call() {
+                return (Long) hibernate.getSession().createQuery("select count(*) from SomeOtherEntity").uniqueResult();
+            }
+        });
+    }
+
+    public static class ThreadTenantResolver implements TenantResolver {
+        @Override
+        public String currentTenant() {
+            return tenant.get();
+        }
+
+        @Override
+        public void configure(String tenant, AnnotationConfiguration configuration) {
+            configuration.setProperty("hibernate.connection.url", "jdbc:hsqldb:mem:tenant_" + tenant);
+        }
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.useTenantSessionFactories(binder(), ThreadTenantResolver.class, 2);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, TransactionCacheTest.TestModule.class})
+public class TransactionCacheTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public TransactionCache cache;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        cache.clearShared();
+    }
+
+    @Test
+    public void memoizeWithinTransaction() throws Exception {
+        inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                assertEquals("value-1", cache.get("key", loader()));
+                assertEquals("value-1", cache.get("key", loader()));
+                assertNull(cache.get("null", new Callable<Object>() {
+                    public Object call() {
+                        return null;
+                    }
+                }));
+                assertNull(cache.get("null", loader()));
+                return null;
+            }
+        });
+        assertEquals(1, loads.get());
+        inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                assertEquals("value-2", cache.get("key", loader()));
+                return null;
+            }
+        });
+    }
+
+    @Test(expected = NoTransactionException.class)
+    public void requireTransaction() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                cache.get("key", loader());
+            }
+        });
+    }
+
+    @Test
+    public void promoteOnCommit() throws Exception {
+        inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                return cache.get("key", loader(), true);
+            }
+        });
+        assertEquals(1, cache.getPromotedCount());
+        assertEquals(1, cache.getSharedSize());
+        inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                assertEquals("value-1", cache.get("key", loader(), true));
+                assertEquals("value-2", cache.get("key-2", loader()));
+                return null;
+            }
+        });
+        assertEquals(1, cache.getSharedSize());
+
+        cache.invalidate("key");
+        inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                assertEquals("value-3", cache.get("key", loader(), true));
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void discardOnRollback() throws Exception {
+        try {
+            inTransaction(new TransactionAdapter<Object>() {
+                @Override
+                public Object receive(Session session) throws Exception {
+                    cache.get("key", loader(), true);
+                    throw new IllegalStateException("roll back");
+                }
+            });
+            fail("The transaction should have rolled back");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, cache.getSharedSize());
+    }
+
+    private Callable<Object> loader() {
+        return new Callable<Object>() {
+            public Object call() {
+                return "value-" + loads.incrementAndGet();
+            }
+        };
+    }
+
+    private void inTransaction(final TransactionReceiver<Object> receiver) {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(receiver);
+            }
+        });
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.configureTransactionCache(binder(), 10);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.HibernateException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, TransactionalTest.TestModule.class})
+public class TransactionalTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public Things things;
+
+    @Before
+    public void setUp() throws Exception {
+        things.deleteAll();
+    }
+
+    @Test
+    public void commitWithoutSession() throws Exception {
+        assertFalse(hibernate.hasSession());
+        Long id = things.save("committed");
+        assertEquals("committed", things.name(id));
+    }
+
+    @Test
+    public void rollBackOnCheckedException() throws Exception {
+        try {
+            things.saveAndFail("rolled back");
+            fail("the checked exception was not thrown");
+        } catch (IOException e) {
+            assertEquals("rolled back", e.getMessage());
+        }
+        assertEquals(0, things.count());
+    }
+
+    @Test
+    public void readOnlyDoesNotFlush() throws Exception {
+        Long id = things.save("original");
+        things.rename(id, "renamed");
+        assertEquals("original", things.name(id));
+    }
+
+    @Test
+    public void retryInNewSession() throws Exception {
+        things.failures = 2;
+        assertEquals("retried", things.name(things.saveWithRetries("retried")));
+        assertEquals(1, things.count());
+    }
+
+    @Test(expected = NoTransactionException.class)
+    public void mandatoryWithoutTransaction() throws Exception {
+        things.mandatory();
+    }
+
+    @Test
+    public void joinSessionAndTransaction() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                assertSame(hibernate.getSession(), things.session());
+                hibernate.inTransaction(new SessionAdapter<Object>() {
+                    public Object receive(org.hibernate.classic.Session session) throws Exception {
+                        things.mandatory();
+                        things.save("joined");
+                        assertTrue(hibernate.isInTransaction());
+                        return null;
+                    }
+                });
+            }
+        });
+        assertEquals(1, things.count());
+    }
+
+    public static class Things {
+        @Inject public HibernateFacade hibernate;
+        public int failures;
+
+        @Transactional
+        public Long save(String name) {
+            SomeOtherEntity entity = new SomeOtherEntity();
+            entity.setName(name);
+            return (Long) hibernate.getSession().save(entity);
+        }
+
+        @Transactional
+        public void saveAndFail(String name) throws IOException {
+            save(name);
+            throw new IOException(name);
+        }
+
+        @Transactional(retries = 2)
+        public Long saveWithRetries(String name) {
+            Long id = save(name);
+            if (failures-- > 0) {
+                throw new HibernateException("transient failure");
+            }
+            return id;
+        }
+
+        @Transactional(readOnly = true)
+        public void rename(Long id, String name) {
+            ((SomeOtherEntity) hibernate.getSession().get(SomeOtherEntity.class, id)).setName(name);
+        }
+
+        @Transactional(propagation = Transactional.Propagation.SUPPORTS)
+        public String name(Long id) {
+            assertFalse(hibernate.isInTransaction());
+            return ((SomeOtherEntity) hibernate.getSession().get(SomeOtherEntity.class, id)).getName();
+        }
+
+        @Transactional(propagation = Transactional.Propagation.MANDATORY)
+        public void mandatory() {
+        }
+
+        @Transactional(timeout = 5000)
+        public long count() {
+            return (Long) hibernate.getSession().createQuery("select count(*) from SomeOtherEntity").uniqueResult();
+        }
+
+        @Transactional
+        public void deleteAll() {
+            hibernate.getSession().createQuery("delete from SomeOtherEntity").executeUpdate();
+        }
+
+        @InSession
+        public org.hibernate.classic.Session session() {
+            return hibernate.getSession();
+        }
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+        }
+    }
+}
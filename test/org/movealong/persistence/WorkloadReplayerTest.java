@@ -0,0 +1,162 @@
+package org.movealong.persistence;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.hibernate.jdbc.Work;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, WorkloadReplayerTest.TestModule.class})
+public class WorkloadReplayerTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public WorkloadRecorder recorder;
+    @Inject public WorkloadReplayer replayer;
+
+    @Test
+    public void recordAndReplay() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.getSession().createQuery("from SomeOtherEntity").list();
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        SomeOtherEntity entity = new SomeOtherEntity();
+                        entity.setName("secret");
+                        session.save(entity);
+                        session.save(new SomeOtherEntity());
+                        return null;
+                    }
+                });
+                try {
+                    hibernate.inTransaction(new TransactionAdapter<Object>() {
+                        @Override
+                        public Object receive(Session session) throws Exception {
+                            SomeOtherEntity entity = new SomeOtherEntity();
+                            entity.setName("discarded");
+                            session.save(entity);
+                            throw new IllegalStateException();
+                        }
+                    });
+                    fail();
+                } catch (IllegalStateException expected) {
+                }
+            }
+        });
+        recorder.stop();
+        assertFalse(recorder.isRecording());
+        assertEquals(1, recorder.getRecordedSessions());
+        assertEquals(2, recorder.getRecordedTransactions());
+        long statements = recorder.getRecordedStatements();
+        assertTrue(statements >= 4);
+
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.bulkUpdate("delete from SomeOtherEntity");
+            }
+        });
+        WorkloadReport report = replayer.replay(recordingFile(), 2, 0.0);
+        assertEquals(2, report.getSessions());
+        assertEquals(4, report.getTransactions());
+        assertEquals(2 * statements, report.getStatements());
+        assertEquals(0, report.getFailedStatements());
+
+        List<String> names = hibernate.callInSession(new Callable<List<String>>() {
+            @SuppressWarnings("unchecked")
+            public List<String> call() throws Exception {
+                return hibernate.getSession().createQuery("select o.name from SomeOtherEntity o").list();
+            }
+        });
+        assertEquals(4, names.size());
+        int named = 0;
+        for (String name : names) {
+            if (name != null) {
+                assertEquals(6, name.length());
+                assertFalse("secret".equals(name));
+                named++;
+            }
+        }
+        assertEquals(2, named);
+    }
+
+    @Test
+    public void replayEachBatchRow() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        session.doWork(new Work() {
+                            public void execute(Connection connection) throws SQLException {
+                                PreparedStatement insert =
+                                        connection.prepareStatement("insert into some_others (thing_name) values (?)");
+                                try {
+                                    for (String name : Arrays.asList("a", "bb", "ccc")) {
+                                        insert.setString(1, name);
+                                        insert.addBatch();
+                                    }
+                                    insert.executeBatch();
+                                } finally {
+                                    insert.close();
+                                }
+                            }
+                        });
+                        return null;
+                    }
+                });
+            }
+        });
+        recorder.stop();
+
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.bulkUpdate("delete from SomeOtherEntity");
+            }
+        });
+        WorkloadReport report = replayer.replay(recordingFile(), 1, 0.0);
+        assertEquals(0, report.getFailedStatements());
+
+        List<String> names = hibernate.callInSession(new Callable<List<String>>() {
+            @SuppressWarnings("unchecked")
+            public List<String> call() throws Exception {
+                return hibernate.getSession().createQuery("select o.name from SomeOtherEntity o").list();
+            }
+        });
+        List<Integer> lengths = new ArrayList<Integer>();
+        for (String name : names) {
+            lengths.add(name.length());
+        }
+        Collections.sort(lengths);
+        assertEquals(Arrays.asList(1, 2, 3), lengths);
+    }
+
+    private static File recordingFile() {
+        return new File(System.getProperty("java.io.tmpdir"), "WorkloadReplayerTest.workload");
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.recordWorkload(binder(), recordingFile(), true);
+        }
+    }
+}
@@ -10,7 +10,7 @@ import org.movealong.junitfu.Modules;
 import org.movealong.persistence.test.entity.SomeEntity;
 import org.movealong.persistence.test.entity.SomeOtherEntity;
 
-import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.*;
 
 /**
  * Created by IntelliJ IDEA.
@@ -24,6 +24,8 @@ public class XmlSessionFactoryProviderTest {
 
     @Inject public Mockery mock;
     @Inject public SessionFactory sessionFactory;
+    @Inject public XmlSessionFactoryProvider sessionFactoryProvider;
+    @Inject public HibernateFacade hibernate;
 
     @Test
     public void testStuff() throws Exception {
@@ -31,6 +33,26 @@ public class XmlSessionFactoryProviderTest {
         assertNotNull(sessionFactory.getClassMetadata(SomeOtherEntity.class));
     }
 
+    @Test
+    public void sameSessionFactory() throws Exception {
+        assertSame(sessionFactory, sessionFactoryProvider.get());
+        assertSame(sessionFactory, sessionFactoryProvider.get());
+    }
+
+    @Test
+    public void reloadDrainsOpenSessions() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                sessionFactoryProvider.reload();
+                assertNotSame(sessionFactory, sessionFactoryProvider.get());
+                assertSame(sessionFactory, hibernate.getSession().getSessionFactory());
+                assertFalse(sessionFactory.isClosed());
+            }
+        });
+        assertTrue(sessionFactory.isClosed());
+        assertFalse(sessionFactoryProvider.get().isClosed());
+    }
+
     public static class TestModule extends AbstractModule {
         @Override
         protected void configure() {
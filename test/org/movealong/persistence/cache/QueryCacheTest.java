@@ -0,0 +1,166 @@
+package org.movealong.persistence.cache;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.HibernateFacade;
+import org.movealong.persistence.HibernateFacadeModule;
+import org.movealong.persistence.TransactionAdapter;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, QueryCacheTest.TestModule.class})
+public class QueryCacheTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public QueryCache queryCache;
+
+    private final CachedQuery query = new CachedQuery("select o.name from SomeOtherEntity o where o.name = ?", "cached");
+
+    @Test
+    public void hitWithoutSession() throws Exception {
+        assertTrue(list(query).isEmpty());
+        assertTrue(queryCache.<String>list(query).isEmpty());
+        assertEquals(1, queryCache.getMissCount());
+        assertEquals(1, queryCache.getHitCount());
+    }
+
+    @Test
+    public void invalidateOnCommit() throws Exception {
+        assertTrue(list(query).isEmpty());
+        insert("cached");
+        assertEquals(1, list(query).size());
+        assertEquals(2, queryCache.getMissCount());
+    }
+
+    @Test
+    public void keepOnRollback() throws Exception {
+        assertTrue(list(query).isEmpty());
+        try {
+            hibernate.runInSession(new Runnable() {
+                public void run() {
+                    hibernate.inTransaction(new TransactionAdapter<Object>() {
+                        @Override
+                        public Object receive(Session session) throws Exception {
+                            session.save(newEntity("cached"));
+                            session.flush();
+                            assertEquals(1, queryCache.list(query).size());
+                            throw new IllegalStateException("roll back");
+                        }
+                    });
+                }
+            });
+            fail("The transaction should have rolled back");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(queryCache.<String>list(query).isEmpty());
+        assertEquals(1, queryCache.getHitCount());
+    }
+
+    @Test
+    public void unrelatedWritesDoNotInvalidate() throws Exception {
+        assertTrue(list(query).isEmpty());
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        return session.createSQLQuery("insert into things (thing_id) values (1)").executeUpdate();
+                    }
+                });
+            }
+        });
+        assertTrue(queryCache.<String>list(query).isEmpty());
+        assertEquals(1, queryCache.getHitCount());
+    }
+
+    @Test
+    public void expire() throws Exception {
+        CachedQuery expiring = new CachedQuery(query.getQueryString(), "expiring").expireAfter(1, TimeUnit.MILLISECONDS);
+        list(expiring);
+        Thread.sleep(10);
+        list(expiring);
+        assertEquals(2, queryCache.getMissCount());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        queryCache.setMaximumWeight(1);
+        list(query);
+        list(new CachedQuery(query.getQueryString(), "other"));
+        assertEquals(1, queryCache.getSize());
+        assertEquals(1, queryCache.getEvictionCount());
+    }
+
+    @Test
+    public void rehydrateEntitiesInCallersSession() throws Exception {
+        insert("cached");
+        final CachedQuery entities = new CachedQuery("select o, o.name from SomeOtherEntity o where o.name = ?",
+                "cached");
+        final Serializable[] ids = new Serializable[2];
+        for (int i = 0; i < ids.length; i++) {
+            final int attempt = i;
+            hibernate.runInSession(new Runnable() {
+                public void run() {
+                    Object[] row = queryCache.<Object[]>list(entities).get(0);
+                    assertTrue(hibernate.getSession().contains(row[0]));
+                    assertEquals("cached", ((SomeOtherEntity) row[0]).getName());
+                    assertEquals("cached", row[1]);
+                    ids[attempt] = hibernate.getSession().getIdentifier(row[0]);
+                }
+            });
+        }
+        assertEquals(ids[0], ids[1]);
+        assertEquals(1, queryCache.getSize());
+        assertEquals(1, queryCache.getHitCount());
+        assertEquals(1, queryCache.getMissCount());
+    }
+
+    private List<String> list(final CachedQuery query) throws Exception {
+        return hibernate.callInSession(new Callable<List<String>>() {
+            public List<String> call() throws Exception {
+                return queryCache.list(query);
+            }
+        });
+    }
+
+    private void insert(final String name) {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        return session.save(newEntity(name));
+                    }
+                });
+            }
+        });
+    }
+
+    private static SomeOtherEntity newEntity(String name) {
+        SomeOtherEntity entity = new SomeOtherEntity();
+        entity.setName(name);
+        return entity;
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.useQueryCache(binder(), 100);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.movealong.persistence.changes;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.HibernateFacade;
+import org.movealong.persistence.HibernateFacadeModule;
+import org.movealong.persistence.TransactionAdapter;
+import org.movealong.persistence.TransactionReceiver;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, EntityChangeFeedTest.TestModule.class})
+public class EntityChangeFeedTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public EntityChangeFeed entityChangeFeed;
+
+    private final List<String> changes = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Integer> transactionEnds = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() throws Exception {
+        entityChangeFeed.subscribe(new EntityChangeSubscriber() {
+            public void onChange(EntityChange change, boolean endOfBatch) {
+                changes.add(change.getType() + " " + change.getId());
+                if (change.isLastInTransaction()) {
+                    transactionEnds.add(changes.size());
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        entityChangeFeed.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void publishOnCommit() throws Exception {
+        final Long id = (Long) inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                return session.save(new SomeOtherEntity());
+            }
+        });
+        inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                SomeOtherEntity entity = (SomeOtherEntity) session.get(SomeOtherEntity.class, id);
+                entity.setName("changed");
+                session.flush();
+                session.delete(entity);
+                return null;
+            }
+        });
+        assertTrue(entityChangeFeed.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(3, changes.size());
+        assertEquals("INSERT " + id, changes.get(0));
+        assertEquals("UPDATE " + id, changes.get(1));
+        assertEquals("DELETE " + id, changes.get(2));
+        assertEquals(2, transactionEnds.size());
+        assertEquals(1, transactionEnds.get(0).intValue());
+        assertEquals(3, transactionEnds.get(1).intValue());
+    }
+
+    @Test
+    public void discardOnRollback() throws Exception {
+        try {
+            inTransaction(new TransactionAdapter<Object>() {
+                @Override
+                public Object receive(Session session) throws Exception {
+                    session.save(new SomeOtherEntity());
+                    throw new IllegalStateException("roll back");
+                }
+            });
+            fail("The transaction should have rolled back");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(entityChangeFeed.shutdown(1, TimeUnit.SECONDS));
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void publishTransactionLargerThanRing() throws Exception {
+        inTransaction(new TransactionAdapter<Object>() {
+            @Override
+            public Object receive(Session session) throws Exception {
+                for (int i = 0; i < 10; i++) {
+                    session.save(new SomeOtherEntity());
+                }
+                return null;
+            }
+        });
+        assertTrue(entityChangeFeed.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(10, changes.size() + entityChangeFeed.getLostCount());
+        assertEquals(Collections.singletonList(changes.size()), transactionEnds);
+    }
+
+    @Test
+    public void neverInterleaveTransactionsLargerThanRing() throws Exception {
+        List<Thread> publishers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final long transaction = t;
+            publishers.add(new Thread() {
+                @Override
+                public void run() {
+                    String[] entityNames = new String[10];
+                    Long[] ids = new Long[10];
+                    ChangeType[] types = new ChangeType[10];
+                    for (int i = 0; i < 10; i++) {
+                        entityNames[i] = SomeOtherEntity.class.getName();
+                        ids[i] = transaction;
+                        types[i] = ChangeType.INSERT;
+                    }
+                    for (int i = 0; i < 25; i++) {
+                        entityChangeFeed.publish(entityNames, ids, types, 10);
+                    }
+                }
+            });
+        }
+        for (Thread publisher : publishers) {
+            publisher.start();
+        }
+        for (Thread publisher : publishers) {
+            publisher.join(5000);
+        }
+        assertTrue(entityChangeFeed.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(1000, changes.size() + entityChangeFeed.getLostCount());
+        assertEquals(changes.size(), transactionEnds.get(transactionEnds.size() - 1).intValue());
+        // a subscriber that fell behind may begin a transaction part way through, but never sees two mixed
+        int start = 0;
+        for (int end : transactionEnds) {
+            assertTrue(end - start <= 10);
+            assertEquals(Collections.nCopies(end - start, changes.get(end - 1)), changes.subList(start, end));
+            start = end;
+        }
+    }
+
+    @Test
+    public void neverWaitForSlowSubscribers() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> slowChanges = Collections.synchronizedList(new ArrayList<String>());
+        entityChangeFeed.subscribe(new EntityChangeSubscriber() {
+            public void onChange(EntityChange change, boolean endOfBatch) {
+                slowChanges.add(change.getType() + " " + change.getId());
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        entityChangeFeed.publish(new String[] {SomeOtherEntity.class.getName()}, new Long[] {0L},
+                new ChangeType[] {ChangeType.INSERT}, 1);
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+
+        Thread publisher = new Thread() {
+            @Override
+            public void run() {
+                for (long id = 1; id <= 10; id++) {
+                    entityChangeFeed.publish(new String[] {SomeOtherEntity.class.getName()}, new Long[] {id},
+                            new ChangeType[] {ChangeType.UPDATE}, 1);
+                }
+            }
+        };
+        publisher.start();
+        publisher.join(1000);
+        assertFalse(publisher.isAlive());
+
+        release.countDown();
+        assertTrue(entityChangeFeed.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("INSERT 0", "UPDATE 7", "UPDATE 8", "UPDATE 9", "UPDATE 10"), slowChanges);
+        assertEquals(6 + 11 - changes.size(), entityChangeFeed.getLostCount());
+    }
+
+    private Object inTransaction(final TransactionReceiver<Object> receiver) throws Exception {
+        return hibernate.callInSession(new Callable<Object>() {
+            public Object call() throws Exception {
+                return hibernate.inTransaction(receiver);
+            }
+        });
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.useEntityChangeFeed(binder(), 4);
+        }
+    }
+}
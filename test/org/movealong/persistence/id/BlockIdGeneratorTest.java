@@ -0,0 +1,197 @@
+package org.movealong.persistence.id;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.Hibernate;
+import org.hibernate.classic.Session;
+import org.hibernate.dialect.HSQLDialect;
+import org.hibernate.jdbc.Work;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.HibernateFacade;
+import org.movealong.persistence.HibernateFacadeException;
+import org.movealong.persistence.HibernateFacadeModule;
+import org.movealong.persistence.TransactionAdapter;
+import org.movealong.persistence.test.entity.NumberedEntity;
+import org.movealong.persistence.test.entity.SequencedEntity;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, BlockIdGeneratorTest.TestModule.class})
+public class BlockIdGeneratorTest {
+
+    @Inject public HibernateFacade hibernate;
+
+    @Before
+    public void setUp() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        session.createQuery("delete from NumberedEntity").executeUpdate();
+                        session.createQuery("delete from SequencedEntity").executeUpdate();
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void reserveBlocksFromTable() throws Exception {
+        final long first = nextReserved();
+        final List<Long> ids = new ArrayList<Long>();
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        for (int i = 0; i < 25; i++) {
+                            NumberedEntity entity = new NumberedEntity();
+                            ids.add((Long) session.save(entity));
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+        assertEquals(25, new HashSet<Long>(ids).size());
+        assertTrue(Collections.min(ids) >= first - 10);
+        long reserved = nextReserved() - first;
+        assertTrue(reserved >= 20 && reserved <= 30);
+        assertEquals(25, count("NumberedEntity"));
+    }
+
+    @Test
+    public void reserveBlocksFromSequence() throws Exception {
+        final Set<Serializable> ids = new HashSet<Serializable>();
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new TransactionAdapter<Object>() {
+                    @Override
+                    public Object receive(Session session) throws Exception {
+                        for (int i = 0; i < 15; i++) {
+                            ids.add(session.save(new SequencedEntity()));
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+        assertEquals(15, ids.size());
+        assertEquals(15, count("SequencedEntity"));
+    }
+
+    @Test
+    public void allocateConcurrently() throws Exception {
+        final Set<Serializable> ids = Collections.synchronizedSet(new HashSet<Serializable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    hibernate.runInSession(new Runnable() {
+                        public void run() {
+                            for (int i = 0; i < 100; i++) {
+                                ids.add(hibernate.allocateId(NumberedEntity.class));
+                            }
+                        }
+                    });
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400, ids.size());
+    }
+
+    @Test(expected = HibernateFacadeException.class)
+    public void rejectIdentityIds() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.allocateId(SomeOtherEntity.class);
+            }
+        });
+    }
+
+    @Test(timeout = 5000)
+    public void failWhenSegmentCannotBeInserted() throws Exception {
+        final BlockIdGenerator generator = new BlockIdGenerator();
+        Properties params = new Properties();
+        params.setProperty(BlockIdGenerator.TABLE_NAME, "rejected_ids");
+        params.setProperty(BlockIdGenerator.SEGMENT, "rejected");
+        generator.configure(Hibernate.LONG, params, new HSQLDialect());
+        final List<SQLException> failures = new ArrayList<SQLException>();
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.getSession().doWork(new Work() {
+                    public void execute(Connection connection) throws SQLException {
+                        Statement statement = connection.createStatement();
+                        try {
+                            statement.execute("create table rejected_ids (id_name varchar(255) not null, "
+                                    + "next_value bigint check (next_value < 0))");
+                        } finally {
+                            statement.close();
+                        }
+                        try {
+                            generator.doWorkInCurrentTransaction(connection, null);
+                        } catch (SQLException e) {
+                            failures.add(e);
+                        }
+                    }
+                });
+            }
+        });
+        assertEquals(1, failures.size());
+    }
+
+    private long nextReserved() throws Exception {
+        return hibernate.callInSession(new Callable<Long>() {
+            public Long call() throws Exception {
+                Number next = (Number) hibernate.getSession()
+                        .createSQLQuery("select next_value from hibernate_fu_ids where id_name = 'numbered'")
+                        .uniqueResult();
+                return next == null ? 1L : next.longValue();
+            }
+        });
+    }
+
+    private long count(final String entityName) throws Exception {
+        return hibernate.callInSession(new Callable<Long>() {
+            public Long call() throws Exception {
+                return (Long) hibernate.getSession().createQuery("select count(*) from " + entityName).uniqueResult();
+            }
+        });
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.ids.xml");
+        }
+    }
+}
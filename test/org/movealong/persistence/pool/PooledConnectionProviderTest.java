@@ -0,0 +1,92 @@
+package org.movealong.persistence.pool;
+
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.cfg.Environment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+public class PooledConnectionProviderTest {
+
+    private ConnectionPoolStatistics statistics;
+    private PooledConnectionProvider connectionProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        statistics = new ConnectionPoolStatistics();
+        Properties properties = new Properties();
+        properties.setProperty(Environment.DRIVER, "org.hsqldb.jdbc.JDBCDriver");
+        properties.setProperty(Environment.URL, "jdbc:hsqldb:mem:poolTest");
+        properties.setProperty(Environment.USER, "SA");
+        properties.setProperty(Environment.PASS, "");
+        properties.setProperty(Environment.POOL_SIZE, "1");
+        properties.setProperty(PooledConnectionProvider.ACQUIRE_TIMEOUT, "10");
+        properties.put(PooledConnectionProvider.STATISTICS, statistics);
+        connectionProvider = new PooledConnectionProvider();
+        connectionProvider.configure(properties);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connectionProvider.close();
+    }
+
+    @Test
+    public void reuseConnection() throws Exception {
+        Connection connection = connectionProvider.getConnection();
+        assertEquals(1, statistics.getActiveConnections());
+        assertEquals(0, statistics.getIdleConnections());
+        connectionProvider.closeConnection(connection);
+        assertEquals(0, statistics.getActiveConnections());
+        assertEquals(1, statistics.getIdleConnections());
+        assertFalse(connection.isClosed());
+
+        assertSame(connection, connectionProvider.getConnection());
+        assertEquals(2, statistics.getAcquisitionCount());
+        connectionProvider.closeConnection(connection);
+    }
+
+    @Test
+    public void acquireTimeout() throws Exception {
+        Connection connection = connectionProvider.getConnection();
+        try {
+            connectionProvider.getConnection();
+            fail("The pool should have been exhausted");
+        } catch (SQLException e) {
+            assertEquals(1, statistics.getTimeoutCount());
+            assertEquals(0, statistics.getWaitingThreads());
+        } finally {
+            connectionProvider.closeConnection(connection);
+        }
+    }
+
+    @Test
+    public void closeIdleConnections() throws Exception {
+        Connection connection = connectionProvider.getConnection();
+        connectionProvider.closeConnection(connection);
+        connectionProvider.close();
+        assertTrue(connection.isClosed());
+        assertEquals(0, statistics.getIdleConnections());
+    }
+
+    @Test
+    public void sizePoolWithHeadroom() throws Exception {
+        ConnectionPoolCustomizer customizer = new ConnectionPoolCustomizer(statistics);
+        customizer.setMaximumSessions(10);
+        AnnotationConfiguration configuration = new AnnotationConfiguration();
+        customizer.customize(configuration);
+        assertEquals("14", configuration.getProperty(Environment.POOL_SIZE));
+        customizer.setHeadroom(0);
+        customizer.customize(configuration);
+        assertEquals("10", configuration.getProperty(Environment.POOL_SIZE));
+    }
+}
@@ -0,0 +1,82 @@
+package org.movealong.persistence.stats;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.HibernateFacade;
+import org.movealong.persistence.HibernateFacadeModule;
+import org.movealong.persistence.SessionAdapter;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, RepeatedStatementDetectorTest.TestModule.class})
+public class RepeatedStatementDetectorTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public RepeatedStatementDetector detector;
+
+    @Test
+    public void fingerprint() {
+        assertEquals("select * from t where a = ? and b = ? and c in (?)",
+                RepeatedStatementDetector.fingerprint("select *  from t\n where a = 'it''s' and b = 12.5 and c in (1, 2, 3)"));
+        assertEquals("select x0_.id from t x0_ where x0_.id = ?",
+                RepeatedStatementDetector.fingerprint("select x0_.id from t x0_ where x0_.id = ?"));
+    }
+
+    @Test
+    public void withinThreshold() throws Exception {
+        load(3);
+        assertEquals(0, detector.getDetectionCount());
+    }
+
+    @Test
+    public void failOverThreshold() throws Exception {
+        try {
+            load(4);
+            fail("The fourth load should have been detected");
+        } catch (RepeatedStatementException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(Loader.class.getName()));
+            assertTrue(e.getMessage(), e.getMessage().contains(Loader.class.getName() + ".receive"));
+        }
+        assertEquals(1, detector.getDetectionCount());
+    }
+
+    private void load(final int count) {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.usingSession(new Loader(count));
+            }
+        });
+    }
+
+    private static class Loader extends SessionAdapter<Object> {
+        private final int count;
+
+        private Loader(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public Object receive(Session session) throws Exception {
+            for (long id = 1; id <= count; id++) {
+                session.get(SomeOtherEntity.class, -id);
+            }
+            return null;
+        }
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.detectRepeatedStatements(binder(), 3, true);
+        }
+    }
+}
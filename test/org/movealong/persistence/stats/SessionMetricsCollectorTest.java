@@ -0,0 +1,109 @@
+package org.movealong.persistence.stats;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.HibernateFacade;
+import org.movealong.persistence.HibernateFacadeModule;
+import org.movealong.persistence.TransactionAdapter;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, SessionMetricsCollectorTest.TestModule.class})
+public class SessionMetricsCollectorTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public SessionMetricsCollector collector;
+
+    @Before
+    public void setUp() throws Exception {
+        collector.reset();
+    }
+
+    @Test
+    public void collectPerSession() throws Exception {
+        final Serializable id = save("measured");
+        SessionMetrics metrics = hibernate.callInSession(new Callable<SessionMetrics>() {
+            public SessionMetrics call() throws Exception {
+                SessionMetrics metrics = collector.getCurrent();
+                assertEquals(0, metrics.getStatements());
+                SomeOtherEntity entity = (SomeOtherEntity) hibernate.getSession().get(SomeOtherEntity.class, id);
+                assertEquals("measured", entity.getName());
+                hibernate.getSession().flush();
+                return metrics;
+            }
+        });
+        assertEquals(1, metrics.getStatements());
+        assertEquals(1, metrics.getEntitiesLoaded());
+        assertEquals(1, metrics.getFlushes());
+        assertNull(collector.getCurrent());
+    }
+
+    @Test
+    public void aggregateByRoute() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            hibernate.runInSession(new Runnable() {
+                public void run() {
+                    collector.getCurrent().setRoute("GET /things/{id}");
+                    hibernate.getSession().createQuery("from SomeOtherEntity").list();
+                    hibernate.getSession().createQuery("from SomeOtherEntity").list();
+                }
+            });
+        }
+        List<RouteStatistics> routes = collector.getRoutes();
+        assertEquals(1, routes.size());
+        assertEquals("GET /things/{id}", routes.get(0).getRoute());
+        assertEquals(3, routes.get(0).getSessions());
+        assertEquals(6, routes.get(0).getStatements());
+        assertEquals(2, routes.get(0).getMaximumStatements());
+        assertEquals(3, collector.getSessionCount());
+    }
+
+    @Test
+    public void countExceededThreshold() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 6; i++) {
+                    hibernate.getSession().createQuery("from SomeOtherEntity").list();
+                }
+            }
+        });
+        assertEquals(1, collector.getExceededCount());
+    }
+
+    private Serializable save(final String name) throws Exception {
+        return hibernate.callInSession(new Callable<Serializable>() {
+            public Serializable call() throws Exception {
+                return hibernate.inTransaction(new TransactionAdapter<Serializable>() {
+                    @Override
+                    public Serializable receive(Session session) throws Exception {
+                        SomeOtherEntity entity = new SomeOtherEntity();
+                        entity.setName(name);
+                        return session.save(entity);
+                    }
+                });
+            }
+        });
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.collectSessionMetrics(binder(), 5, 10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.movealong.persistence.stats;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import org.hibernate.classic.Session;
+import org.hibernate.jdbc.Work;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.movealong.junitfu.JUnitFu;
+import org.movealong.junitfu.Modules;
+import org.movealong.persistence.HibernateFacade;
+import org.movealong.persistence.HibernateFacadeModule;
+import org.movealong.persistence.TransactionAdapter;
+import org.movealong.persistence.test.entity.SomeOtherEntity;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnitFu.class)
+@Modules({HibernateFacadeModule.class, SlowQueryLogTest.TestModule.class})
+public class SlowQueryLogTest {
+
+    @Inject public HibernateFacade hibernate;
+    @Inject public SlowQueryLog slowQueryLog;
+
+    @Before
+    public void setUp() throws Exception {
+        slowQueryLog.reset();
+        slowQueryLog.setThresholdMillis(-1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        slowQueryLog.setRedactParameters(false);
+    }
+
+    @Test
+    public void attributeToReceiver() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new Insert("slow"));
+            }
+        });
+        SlowQuery query = find("insert into some_others");
+        assertEquals("[slow]", query.getParameters());
+        assertEquals(1, query.getRowCount());
+        assertEquals(Insert.class.getName(), query.getReceiverClass());
+        assertTrue(query.getTransactionAgeMillis() >= 0);
+        assertTrue(slowQueryLog.getSlowQueryCount() > 0);
+    }
+
+    @Test
+    public void countRowsRead() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new Insert("counted"));
+                hibernate.inTransaction(new Insert("counted"));
+                slowQueryLog.reset();
+                hibernate.getSession().createQuery("from SomeOtherEntity o where o.name = ?")
+                        .setString(0, "counted")
+                        .list();
+            }
+        });
+        SlowQuery query = find("select");
+        assertEquals(2, query.getRowCount());
+        assertNull(query.getReceiverClass());
+        assertEquals(-1, query.getTransactionAgeMillis());
+    }
+
+    @Test
+    public void countRowsReadAfterExecute() throws Exception {
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new Insert("executed"));
+                hibernate.inTransaction(new Insert("executed"));
+                slowQueryLog.reset();
+                hibernate.getSession().doWork(new Work() {
+                    public void execute(Connection connection) throws SQLException {
+                        PreparedStatement select =
+                                connection.prepareStatement("select thing_name from some_others where thing_name = ?");
+                        try {
+                            select.setString(1, "executed");
+                            assertTrue(select.execute());
+                            ResultSet resultSet = select.getResultSet();
+                            while (resultSet.next()) {
+                                assertEquals("executed", resultSet.getString(1));
+                            }
+                            resultSet.close();
+                        } finally {
+                            select.close();
+                        }
+                    }
+                });
+            }
+        });
+        SlowQuery query = find("select thing_name");
+        assertEquals(2, query.getRowCount());
+        assertEquals("[executed]", query.getParameters());
+    }
+
+    @Test
+    public void redactParameters() throws Exception {
+        slowQueryLog.setRedactParameters(true);
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                hibernate.inTransaction(new Insert("secret"));
+            }
+        });
+        assertEquals("[<String>]", find("insert into some_others").getParameters());
+    }
+
+    @Test
+    public void boundTable() throws Exception {
+        slowQueryLog.setThresholdMillis(TimeUnit.HOURS.toMillis(1));
+        hibernate.runInSession(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 5; i++) {
+                    hibernate.getSession().createQuery("from SomeOtherEntity").list();
+                }
+            }
+        });
+        assertEquals(3, slowQueryLog.getSlowestQueries().size());
+        assertEquals(0, slowQueryLog.getSlowQueryCount());
+    }
+
+    private SlowQuery find(String sql) {
+        for (SlowQuery query : slowQueryLog.getSlowestQueries()) {
+            if (query.getSql().startsWith(sql)) {
+                return query;
+            }
+        }
+        fail("No statement beginning with " + sql);
+        return null;
+    }
+
+    private static class Insert extends TransactionAdapter<Object> {
+        private final String name;
+
+        private Insert(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Object receive(Session session) throws Exception {
+            SomeOtherEntity entity = new SomeOtherEntity();
+            entity.setName(name);
+            return session.save(entity);
+        }
+    }
+
+    public static class TestModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.one.xml");
+            HibernateFacadeModule.addXmlConfigurationResource(binder(), "org/movealong/persistence/test/hibernate.two.xml");
+            HibernateFacadeModule.logSlowQueries(binder(), 1, TimeUnit.SECONDS, 3, false);
+        }
+    }
+}
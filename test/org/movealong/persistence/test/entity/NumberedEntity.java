@@ -0,0 +1,25 @@
+package org.movealong.persistence.test.entity;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import javax.persistence.*;
+
+@Entity
+@Table(name = "numbered")
+public class NumberedEntity {
+    private Long id;
+
+    @Id
+    @Column(name = "numbered_id")
+    @GeneratedValue(generator = "numbered_ids")
+    @GenericGenerator(name = "numbered_ids", strategy = "org.movealong.persistence.id.BlockIdGenerator",
+            parameters = @Parameter(name = "block_size", value = "10"))
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+}
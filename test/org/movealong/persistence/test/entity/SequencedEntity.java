@@ -0,0 +1,26 @@
+package org.movealong.persistence.test.entity;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import javax.persistence.*;
+
+@Entity
+@Table(name = "sequenced")
+public class SequencedEntity {
+    private Long id;
+
+    @Id
+    @Column(name = "sequenced_id")
+    @GeneratedValue(generator = "sequenced_ids")
+    @GenericGenerator(name = "sequenced_ids", strategy = "org.movealong.persistence.id.BlockIdGenerator",
+            parameters = {@Parameter(name = "block_size", value = "10"),
+                    @Parameter(name = "sequence", value = "sequenced_ids")})
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+}
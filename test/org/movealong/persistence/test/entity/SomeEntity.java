@@ -15,6 +15,7 @@ import javax.persistence.Table;
 @Table(name = "things")
 public class SomeEntity {
     private Long id;
+    private long visits;
 
     @Id
     @Column(name = "thing_id")
@@ -25,4 +26,13 @@ public class SomeEntity {
     public void setId(Long id) {
         this.id = id;
     }
+
+    @Column(name = "visits")
+    public long getVisits() {
+        return visits;
+    }
+
+    public void setVisits(long visits) {
+        this.visits = visits;
+    }
 }